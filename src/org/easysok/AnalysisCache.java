@@ -0,0 +1,193 @@
+package org.easysok;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+
+/**
+ * This class caches map analyses in memory and on disk.
+ *
+ * The analyses are keyed by the layout hash of the map, so reopening a level or
+ * restarting a batch run loads the push distances from disk instead of recalculating
+ * them. Each analysis is stored in its own file named after the hash.
+ *
+ * All methods are thread safe.
+ */
+public class AnalysisCache {
+
+    /**
+     * The magic number at the start of each cache file.
+     */
+    private static final int MAGIC = 0x45534132;
+
+    /**
+     * The directory of the cache files or null, if only the memory cache is used.
+     */
+    private File directory;
+
+    /**
+     * The analyses in memory, least recently used first.
+     */
+    private LinkedHashMap<Long, MapAnalysis> memory_cache;
+
+    /**
+     * The maximum number of analyses in memory.
+     */
+    private int max_memory_entries;
+
+    /**
+     * Creates a cache.
+     *
+     * @param directory The directory for the cache files or null for a memory only cache.
+     * @param max_memory_entries The maximum number of analyses kept in memory.
+     */
+    public AnalysisCache(File directory, int max_memory_entries) {
+        this.directory = directory;
+        this.max_memory_entries = max_memory_entries;
+        this.memory_cache = new LinkedHashMap<Long, MapAnalysis>(16, 0.75f, true);
+
+        if (directory != null) {
+            directory.mkdirs();
+        }
+    }
+
+    /**
+     * Returns the analysis of the map, which is loaded or calculated if needed.
+     *
+     * @param map The map.
+     */
+    public MapAnalysis get(Map map) {
+        long hash = MapAnalysis.layoutHash(map);
+        MapAnalysis result;
+
+        synchronized (this) {
+            result = memory_cache.get(hash);
+        }
+
+        if ((result != null) && result.matches(map)) {
+            Metrics.count(Metrics.ANALYSIS_HIT);
+
+            return result;
+        }
+
+        result = load(hash, map);
+
+        if (result != null) {
+            Metrics.count(Metrics.ANALYSIS_HIT);
+        }
+        else {
+            Metrics.count(Metrics.ANALYSIS_MISS);
+            result = new MapAnalysis(map);
+            store(result);
+        }
+
+        put(hash, result);
+
+        return result;
+    }
+
+    /**
+     * Removes all analyses from memory.
+     */
+    public synchronized void clearMemory() {
+        memory_cache.clear();
+    }
+
+    /**
+     * Puts an analysis into the memory cache.
+     *
+     * @param hash The layout hash.
+     * @param analysis The analysis.
+     */
+    private synchronized void put(long hash, MapAnalysis analysis) {
+        memory_cache.put(hash, analysis);
+
+        while (memory_cache.size() > max_memory_entries) {
+            Long eldest = memory_cache.keySet().iterator().next();
+            memory_cache.remove(eldest);
+        }
+    }
+
+    /**
+     * Returns the file for the hash.
+     *
+     * @param hash The layout hash.
+     */
+    private File getFile(long hash) {
+        return new File(directory, Long.toHexString(hash) + ".ana");
+    }
+
+    /**
+     * Loads an analysis from disk.
+     *
+     * @param hash The layout hash.
+     * @param map The map, which is used to check for hash collisions.
+     * @return The analysis or null, if there is no valid file.
+     */
+    private MapAnalysis load(long hash, Map map) {
+        if (directory == null) {
+            return null;
+        }
+
+        File file = getFile(hash);
+
+        if (!file.exists()) {
+            return null;
+        }
+
+        DataInputStream in = null;
+
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+            if (in.readInt() != MAGIC) {
+                return null;
+            }
+
+            MapAnalysis result = MapAnalysis.read(in);
+
+            return result.matches(map) ? result : null;
+        }
+        catch (IOException e) {
+            // A broken file is simply recalculated and overwritten.
+            return null;
+        }
+        finally {
+            FileUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Stores an analysis on disk.
+     *
+     * The file is written by FileUtils.write(), so other processes never see a partial
+     * file.
+     *
+     * @param analysis The analysis.
+     */
+    private void store(final MapAnalysis analysis) {
+        if (directory == null) {
+            return;
+        }
+
+        try {
+            FileUtils.write(getFile(analysis.getLayoutHash()), new FileUtils.Content() {
+                public void write(OutputStream stream) throws IOException {
+                    DataOutputStream out = new DataOutputStream(stream);
+
+                    out.writeInt(MAGIC);
+                    analysis.write(out);
+                    out.flush();
+                }
+            });
+        }
+        catch (IOException e) {
+            // The analysis is calculated again next time.
+        }
+    }
+}
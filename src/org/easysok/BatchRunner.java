@@ -0,0 +1,633 @@
+package org.easysok;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * This class is a command line tool, which validates, solves and scores whole packs
+ * without Android.
+ *
+ * Usage: BatchRunner [options] file.xsb...
+ *
+ *   -threads n     The number of threads (default: number of processors).
+ *   -timeout s     The time limit per level in seconds (default: 60).
+ *   -nodes n       The node limit of the solver (default: 1000000).
+ *   -encoding e    The encoding of the files (default: ISO-8859-1).
+ *   -patterns f    The deadlock pattern file, which is used and extended by the solvers.
+ *   -checkpoints d Keep the search state of unfinished levels, the results of finished
+ *                  ones and the map analyses in the directory d, so a run continues where
+ *                  the last one stopped.
+ *   -easiest       Read all files first and solve the levels with the smallest estimated
+ *                  effort first.
+ *   -solve         Solve the valid levels.
+ *   -verify        Replay the solutions on the map.
+ *   -score         Estimate the difficulty from the solver statistics.
+ *
+ * For each level one JSON object is written as a line to stdout, in the order of the
+ * files. The levels are streamed with LevelReader and only a few levels per thread are
+ * in flight, so the memory does not depend on the size of the packs. With -easiest all
+ * levels are kept in memory and the results are written in the order they are finished.
+ *
+ * With -checkpoints a search stopped by the timeout, the node limit or low memory is
+ * continued by the next run and finished levels are not solved again. The files are
+ * named after the hash of the start position of the map.
+ *
+ * The map analyses are shared through an AnalysisCache, so levels with the same layout
+ * are analyzed once.
+ */
+public class BatchRunner {
+
+    /**
+     * The number of expanded nodes between two checkpoints of a search.
+     */
+    private static final int CHECKPOINT_INTERVAL = 200000;
+
+    /**
+     * The number of map analyses kept in memory.
+     */
+    private static final int ANALYSIS_CACHE_SIZE = 64;
+
+    /**
+     * A level waiting to be processed.
+     */
+    private static class Job {
+
+        /**
+         * The name of the pack.
+         */
+        final String pack;
+
+        /**
+         * The number of the level in the pack (1 based).
+         */
+        final int number;
+
+        /**
+         * The level.
+         */
+        final Level level;
+
+        /**
+         * The estimated effort of solving the level.
+         */
+        final long effort;
+
+        /**
+         * Creates a job.
+         */
+        Job(String pack, int number, Level level) {
+            this.pack = pack;
+            this.number = number;
+            this.level = level;
+            this.effort = estimateEffort(level.getMap());
+        }
+    }
+
+    /**
+     * The names of the validity codes of Map.
+     */
+    private static final String[] validity_names = new String[] {
+        "IS_VALID", "NO_KEEPER", "TOO_MANY_KEEPERS", "NO_GEMS", "MORE_GEMS_THAN_GOALS",
+        "MORE_GOALS_THAN_GEMS", "MAP_LEAKS", "MAP_SOLVED", "MAP_INVALID"
+    };
+
+    /**
+     * The number of threads.
+     */
+    private int threads;
+
+    /**
+     * The time limit per level in milliseconds.
+     */
+    private long timeout;
+
+    /**
+     * The node limit of the solver.
+     */
+    private int max_nodes;
+
+    /**
+     * The deadlock patterns shared by the solvers or null.
+     */
+    private DeadlockPatterns patterns;
+
+    /**
+     * The directory of the checkpoints and results or null.
+     */
+    private File checkpoint_directory;
+
+    /**
+     * The analyses of the maps, shared by the solvers.
+     */
+    private AnalysisCache analyses;
+
+    /**
+     * If true, the levels with the smallest estimated effort are solved first.
+     */
+    private boolean easiest_first;
+
+    /**
+     * If true, the levels are solved.
+     */
+    private boolean solve;
+
+    /**
+     * If true, the solutions are verified.
+     */
+    private boolean verify;
+
+    /**
+     * If true, the difficulty is estimated.
+     */
+    private boolean score;
+
+    /**
+     * Cancels the solvers after the time limit.
+     */
+    private ScheduledExecutorService timer;
+
+    /**
+     * Creates a runner with the default settings.
+     */
+    public BatchRunner() {
+        this.threads = Runtime.getRuntime().availableProcessors();
+        this.timeout = 60000;
+        this.max_nodes = 1000000;
+        this.analyses = new AnalysisCache(null, ANALYSIS_CACHE_SIZE);
+    }
+
+    /**
+     * Runs the tool.
+     *
+     * @param args The command line arguments.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        BatchRunner runner = new BatchRunner();
+        String encoding = "ISO-8859-1";
+        int i = 0;
+
+        for (; (i < args.length) && args[i].startsWith("-"); ++i) {
+            String option = args[i];
+
+            if (option.equals("-solve")) {
+                runner.solve = true;
+            }
+            else if (option.equals("-verify")) {
+                runner.verify = true;
+            }
+            else if (option.equals("-score")) {
+                runner.score = true;
+            }
+            else if (option.equals("-easiest")) {
+                runner.easiest_first = true;
+            }
+            else if (i + 1 == args.length) {
+                usage();
+            }
+            else if (option.equals("-threads")) {
+                runner.threads = Math.max(1, Integer.parseInt(args[++i]));
+            }
+            else if (option.equals("-timeout")) {
+                runner.timeout = Long.parseLong(args[++i]) * 1000;
+            }
+            else if (option.equals("-nodes")) {
+                runner.max_nodes = Integer.parseInt(args[++i]);
+            }
+            else if (option.equals("-encoding")) {
+                encoding = args[++i];
+            }
+            else if (option.equals("-patterns")) {
+                runner.patterns = new DeadlockPatterns(new File(args[++i]));
+            }
+            else if (option.equals("-checkpoints")) {
+                runner.checkpoint_directory = new File(args[++i]);
+                runner.checkpoint_directory.mkdirs();
+                runner.analyses = new AnalysisCache(runner.checkpoint_directory, ANALYSIS_CACHE_SIZE);
+            }
+            else {
+                usage();
+            }
+        }
+
+        if (i == args.length) {
+            usage();
+        }
+
+        // Verifying and scoring need a solution.
+        runner.solve |= runner.verify || runner.score;
+
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(System.out, "UTF-8"));
+
+        try {
+            if (runner.easiest_first) {
+                runner.runEasiestFirst(Arrays.asList(args).subList(i, args.length), encoding, out);
+                i = args.length;
+            }
+
+            for (; i < args.length; ++i) {
+                InputStream in = new FileInputStream(args[i]);
+
+                try {
+                    runner.run(new LevelReader(in, encoding, args[i]), args[i], out);
+                }
+                finally {
+                    in.close();
+                }
+            }
+        }
+        finally {
+            out.flush();
+
+            if (runner.patterns != null) {
+                runner.patterns.save();
+            }
+        }
+    }
+
+    /**
+     * Prints the usage and exits.
+     */
+    private static void usage() {
+        System.err.println("Usage: BatchRunner [-threads n] [-timeout s] [-nodes n] [-encoding e] " +
+                "[-patterns f] [-checkpoints d] [-easiest] [-solve] [-verify] [-score] file.xsb...");
+        System.exit(1);
+    }
+
+    /**
+     * Processes all levels of a pack.
+     *
+     * @param reader The reader of the pack.
+     * @param pack The name of the pack used in the output.
+     * @param out Where to write the results.
+     */
+    public void run(LevelReader reader, final String pack, PrintWriter out)
+            throws IOException, InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        LinkedList<Future<String>> pending = new LinkedList<Future<String>>();
+        int max_pending = threads * 4;
+
+        timer = Executors.newSingleThreadScheduledExecutor();
+
+        try {
+            for (Level level = reader.next(); level != null; level = reader.next()) {
+                final Level act_level = level;
+                final int number = reader.getLevelsRead();
+
+                pending.addLast(executor.submit(new Callable<String>() {
+                    public String call() {
+                        return process(pack, number, act_level);
+                    }
+                }));
+
+                while (pending.size() >= max_pending) {
+                    writeResult(pending.removeFirst(), out);
+                }
+            }
+
+            while (!pending.isEmpty()) {
+                writeResult(pending.removeFirst(), out);
+            }
+        }
+        finally {
+            executor.shutdownNow();
+            timer.shutdownNow();
+        }
+    }
+
+    /**
+     * Reads all levels of the files and processes them, the ones with the smallest
+     * estimated effort first.
+     *
+     * @param files The file names, which are also used as names of the packs.
+     * @param encoding The encoding of the files.
+     * @param out Where to write the results.
+     */
+    public void runEasiestFirst(List<String> files, String encoding, PrintWriter out)
+            throws IOException, InterruptedException {
+        ArrayList<Job> jobs = new ArrayList<Job>();
+
+        for (String file: files) {
+            InputStream in = new FileInputStream(file);
+
+            try {
+                LevelReader reader = new LevelReader(in, encoding, file);
+
+                for (Level level = reader.next(); level != null; level = reader.next()) {
+                    jobs.add(new Job(file, reader.getLevelsRead(), level));
+                }
+            }
+            finally {
+                in.close();
+            }
+        }
+
+        Collections.sort(jobs, new Comparator<Job>() {
+            public int compare(Job lhs, Job rhs) {
+                return (lhs.effort < rhs.effort) ? -1 : ((lhs.effort > rhs.effort) ? 1 : 0);
+            }
+        });
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        ExecutorCompletionService<String> completion = new ExecutorCompletionService<String>(executor);
+
+        timer = Executors.newSingleThreadScheduledExecutor();
+
+        try {
+            for (final Job job: jobs) {
+                completion.submit(new Callable<String>() {
+                    public String call() {
+                        return process(job.pack, job.number, job.level);
+                    }
+                });
+            }
+
+            for (int i = 0; i < jobs.size(); ++i) {
+                writeResult(completion.take(), out);
+            }
+        }
+        finally {
+            executor.shutdownNow();
+            timer.shutdownNow();
+        }
+    }
+
+    /**
+     * Waits for a result and writes it.
+     */
+    private static void writeResult(Future<String> future, PrintWriter out) throws InterruptedException {
+        try {
+            out.println(future.get());
+        }
+        catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+
+        if (out.checkError()) {
+            throw new RuntimeException("Error writing the results");
+        }
+    }
+
+    /**
+     * Processes a single level.
+     *
+     * @param pack The name of the pack.
+     * @param number The number of the level in the pack (1 based).
+     * @param level The level.
+     * @return The result as JSON object.
+     */
+    private String process(String pack, int number, Level level) {
+        Map map = level.getMap();
+        int validity = map.validity();
+        StringBuilder result = new StringBuilder(256);
+
+        result.append("{\"pack\":");
+        appendString(result, pack);
+        result.append(",\"level\":").append(number);
+        result.append(",\"name\":");
+        appendString(result, level.getName());
+        result.append(",\"width\":").append(map.getWith());
+        result.append(",\"height\":").append(map.getHeight());
+        result.append(",\"validity\":").append(validity);
+        result.append(",\"validity_name\":");
+        appendString(result, validity_names[validity]);
+
+        if (solve && (validity == Map.IS_VALID)) {
+            appendSolution(result, level);
+        }
+
+        result.append('}');
+
+        return result.toString();
+    }
+
+    /**
+     * Solves the level and appends the results.
+     */
+    private void appendSolution(StringBuilder result, Level level) {
+        File result_file = null;
+        File checkpoint_file = null;
+
+        if (checkpoint_directory != null) {
+            // The start position is part of the name, levels may share the layout.
+            String name = Long.toHexString(level.getMap().getSnapshot().hash());
+            String stored_result = readFile(new File(checkpoint_directory, name + ".result"));
+
+            if (stored_result != null) {
+                result.append(stored_result);
+
+                return;
+            }
+
+            result_file = new File(checkpoint_directory, name + ".result");
+            checkpoint_file = new File(checkpoint_directory, name + ".ckpt");
+        }
+
+        int start_length = result.length();
+        final Solver solver = new Solver(level.getMap(), analyses.get(level.getMap()));
+        final AtomicBoolean timed_out = new AtomicBoolean();
+        long start = System.currentTimeMillis();
+
+        solver.setMaxNodes(max_nodes);
+        solver.setDeadlockPatterns(patterns, true);
+        solver.setCheckpoint(checkpoint_file, CHECKPOINT_INTERVAL);
+
+        ScheduledFuture<?> cancel = timer.schedule(new Runnable() {
+            public void run() {
+                timed_out.set(true);
+                solver.cancel();
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+
+        String solution;
+
+        try {
+            solution = solver.solve();
+        }
+        finally {
+            cancel.cancel(false);
+        }
+
+        long time = System.currentTimeMillis() - start;
+        int nodes = solver.getNodesExpanded();
+
+        result.append(",\"solved\":").append(solution != null);
+        result.append(",\"timeout\":").append(timed_out.get());
+        result.append(",\"nodes\":").append(nodes);
+        result.append(",\"ms\":").append(time);
+
+        if (solver.isSuspended()) {
+            result.append(",\"suspended\":true");
+        }
+
+        if (solution == null) {
+            // Only a complete search proves that the level has no solution, a stopped one
+            // is continued by the next run even if its checkpoint could not be written.
+            if ((result_file != null) && solver.isExhausted() && !timed_out.get() && !solver.isSuspended()) {
+                writeFile(result_file, result.substring(start_length));
+            }
+
+            return;
+        }
+
+        result.append(",\"moves\":").append(solution.length());
+        result.append(",\"pushes\":").append(solver.getSolutionPushes());
+        result.append(",\"solution\":");
+        appendString(result, solution);
+
+        if (verify) {
+            result.append(",\"verified\":").append(new SolutionOptimizer(level).verify(solution));
+        }
+
+        if (score) {
+            result.append(",\"difficulty\":").append(estimateDifficulty(nodes, solver.getSolutionPushes()));
+        }
+
+        if (result_file != null) {
+            writeFile(result_file, result.substring(start_length));
+        }
+    }
+
+    /**
+     * Estimates the effort of solving a map as the number of gems times the number of
+     * floor fields, which grows with the number of positions.
+     *
+     * @param map The map.
+     */
+    static long estimateEffort(Map map) {
+        int size = map.getSize();
+        long gems = 0;
+        long floor = 0;
+
+        for (int i = 0; i < size; ++i) {
+            if (!map.isWallOrOutside(i)) {
+                ++floor;
+
+                if (map.containsGem(i)) {
+                    ++gems;
+                }
+            }
+        }
+
+        return gems * floor;
+    }
+
+    /**
+     * Reads a UTF-8 file.
+     *
+     * @param file The file.
+     * @return The content or null, if the file does not exist or could not be read.
+     */
+    private static String readFile(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+
+        try {
+            InputStream in = new FileInputStream(file);
+
+            try {
+                ByteArrayOutputStream content = new ByteArrayOutputStream();
+                byte[] buffer = new byte[4096];
+
+                for (int length = in.read(buffer); length >= 0; length = in.read(buffer)) {
+                    content.write(buffer, 0, length);
+                }
+
+                return content.toString("UTF-8");
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes a UTF-8 file with FileUtils.write(), errors are ignored, so the level is
+     * only solved again by the next run.
+     *
+     * @param file The file.
+     * @param content The content.
+     */
+    private static void writeFile(File file, final String content) {
+        try {
+            FileUtils.write(file, new FileUtils.Content() {
+                public void write(OutputStream out) throws IOException {
+                    out.write(content.getBytes("UTF-8"));
+                }
+            });
+        }
+        catch (IOException e) {
+            // The level is solved again by the next run.
+        }
+    }
+
+    /**
+     * Estimates the difficulty in the range [0:10] used by Level from the size of the
+     * search and the length of the solution.
+     *
+     * @param nodes The nodes expanded by the solver.
+     * @param pushes The pushes of the solution.
+     */
+    static int estimateDifficulty(int nodes, int pushes) {
+        double difficulty = 1.5 * Math.log10(nodes + 1) + pushes / 40.0;
+
+        return (int)Math.min(10, Math.round(difficulty));
+    }
+
+    /**
+     * Appends a string as JSON string.
+     */
+    private static void appendString(StringBuilder result, String value) {
+        if (value == null) {
+            result.append("null");
+
+            return;
+        }
+
+        result.append('"');
+
+        for (int i = 0; i < value.length(); ++i) {
+            char c = value.charAt(i);
+
+            if ((c == '"') || (c == '\\')) {
+                result.append('\\').append(c);
+            }
+            else if (c == '\n') {
+                result.append("\\n");
+            }
+            else if (c < 0x20) {
+                result.append(String.format("\\u%04x", (int)c));
+            }
+            else {
+                result.append(c);
+            }
+        }
+
+        result.append('"');
+    }
+}
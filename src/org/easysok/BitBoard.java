@@ -0,0 +1,642 @@
+package org.easysok;
+
+import java.util.Arrays;
+
+/**
+ * This class represents a map as bitsets, one bit per field (bit index = map index).
+ *
+ * The static layers (walls, goals and simple deadlocks) never change and are shared by
+ * all copies of a bit board, only the gems and the keeper are copied. Reachability,
+ * solved checks, freeze deadlock detection and hashing are done on whole 64 bit words
+ * at once.
+ *
+ * Like the map this only works for closed maps, where all fields on the border are walls
+ * or outside, so shifting bits over the end of a row never reaches a free field.
+ */
+public class BitBoard {
+
+    /**
+     * The temporary bitsets of each thread, shared by all bit boards.
+     */
+    private static final ThreadLocal<long[][]> scratch_pool = new ThreadLocal<long[][]>();
+
+    /**
+     * The width of the map.
+     */
+    private final int width;
+
+    /**
+     * The number of fields.
+     */
+    private final int size;
+
+    /**
+     * The number of longs per layer.
+     */
+    private final int words;
+
+    /**
+     * The mask for the valid bits of the last word.
+     */
+    private final long last_mask;
+
+    /**
+     * The wall and outside fields (shared).
+     */
+    private final long[] walls;
+
+    /**
+     * The goal fields (shared).
+     */
+    private final long[] goals;
+
+    /**
+     * The simple deadlock fields (shared).
+     */
+    private final long[] dead;
+
+    /**
+     * The fields with simple deadlocks on the left and the right side (shared).
+     */
+    private final long[] dead_horizontal;
+
+    /**
+     * The fields with simple deadlocks above and below (shared).
+     */
+    private final long[] dead_vertical;
+
+    /**
+     * The gems.
+     */
+    private long[] gems;
+
+    /**
+     * The index of the keeper.
+     */
+    private int keeper;
+
+    /**
+     * The fields reachable by the keeper, valid if reachable_valid is true.
+     */
+    private long[] reachable;
+
+    /**
+     * If true, reachable is up to date.
+     */
+    private boolean reachable_valid;
+
+    /**
+     * Creates the bit board of a map.
+     *
+     * @param map The map.
+     */
+    public BitBoard(Map map) {
+        this.width = map.getWith();
+        this.size = map.getSize();
+        this.words = (size + 63) >>> 6;
+        this.last_mask = ((size & 63) == 0) ? -1L : (1L << (size & 63)) - 1;
+        this.walls = new long[words];
+        this.goals = new long[words];
+        this.dead = new long[words];
+        this.gems = new long[words];
+        this.keeper = map.getKeeperIndex();
+
+        for (int i = 0; i < size; ++i) {
+            if (map.isWallOrOutside(i)) {
+                set(walls, i);
+            }
+            else if (map.isDeadlock(i)) {
+                set(dead, i);
+            }
+
+            if (map.containsGoal(i)) {
+                set(goals, i);
+            }
+
+            if (map.containsGem(i)) {
+                set(gems, i);
+            }
+        }
+
+        this.dead_horizontal = new long[words];
+        this.dead_vertical = new long[words];
+        both(dead, 1, dead_horizontal);
+        both(dead, width, dead_vertical);
+    }
+
+    /**
+     * Creates a copy, which shares the static layers.
+     *
+     * @param other The bit board to copy.
+     */
+    private BitBoard(BitBoard other) {
+        this.width = other.width;
+        this.size = other.size;
+        this.words = other.words;
+        this.last_mask = other.last_mask;
+        this.walls = other.walls;
+        this.goals = other.goals;
+        this.dead = other.dead;
+        this.dead_horizontal = other.dead_horizontal;
+        this.dead_vertical = other.dead_vertical;
+        this.gems = other.gems.clone();
+        this.keeper = other.keeper;
+
+        if (other.reachable_valid) {
+            this.reachable = other.reachable.clone();
+            this.reachable_valid = true;
+        }
+    }
+
+    /**
+     * Returns a copy of the bit board, which shares the static layers with this one.
+     */
+    public BitBoard copy() {
+        return new BitBoard(this);
+    }
+
+    /**
+     * Returns the width of the map.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns the number of fields.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the index of the keeper.
+     */
+    public int getKeeper() {
+        return keeper;
+    }
+
+    /**
+     * Sets the index of the keeper.
+     *
+     * @param index The new index.
+     */
+    public void setKeeper(int index) {
+        if (index != keeper) {
+            keeper = index;
+
+            // The reachable area only changes, if the keeper leaves it.
+            if (reachable_valid && !get(reachable, index)) {
+                reachable_valid = false;
+            }
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if the field is a wall or outside.
+     *
+     * @param index The index of the field.
+     */
+    public boolean isWall(int index) {
+        return get(walls, index);
+    }
+
+    /**
+     * Returns <code>true</code> if the field is a goal.
+     *
+     * @param index The index of the field.
+     */
+    public boolean isGoal(int index) {
+        return get(goals, index);
+    }
+
+    /**
+     * Returns <code>true</code> if the field is a simple deadlock.
+     *
+     * @param index The index of the field.
+     */
+    public boolean isDead(int index) {
+        return get(dead, index);
+    }
+
+    /**
+     * Returns <code>true</code> if the field contains a gem.
+     *
+     * @param index The index of the field.
+     */
+    public boolean isGem(int index) {
+        return get(gems, index);
+    }
+
+    /**
+     * Returns <code>true</code> if the field is neither a wall nor contains a gem.
+     *
+     * @param index The index of the field.
+     */
+    public boolean isFree(int index) {
+        return !get(walls, index) && !get(gems, index);
+    }
+
+    /**
+     * Moves a gem.
+     *
+     * @param from The index of the gem.
+     * @param to The new index of the gem.
+     */
+    public void moveGem(int from, int to) {
+        assert get(gems, from);
+        assert !get(gems, to);
+
+        clear(gems, from);
+        set(gems, to);
+        reachable_valid = false;
+    }
+
+    /**
+     * Replaces all gems.
+     *
+     * @param indices The indices of the new gems.
+     */
+    void setGems(int[] indices) {
+        Arrays.fill(gems, 0);
+
+        for (int index: indices) {
+            set(gems, index);
+        }
+
+        reachable_valid = false;
+    }
+
+    /**
+     * Returns the number of gems.
+     */
+    public int numberOfGems() {
+        int result = 0;
+
+        for (int i = 0; i < words; ++i) {
+            result += Long.bitCount(gems[i]);
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns <code>true</code> if all gems are on goals.
+     */
+    public boolean isSolved() {
+        for (int i = 0; i < words; ++i) {
+            if ((gems[i] & ~goals[i]) != 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns <code>true</code> if any gem is on a simple deadlock field.
+     */
+    public boolean hasDeadGem() {
+        for (int i = 0; i < words; ++i) {
+            if ((gems[i] & dead[i]) != 0) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns <code>true</code> if the keeper can reach the field without pushing.
+     *
+     * @param index The index of the field.
+     */
+    public boolean isReachable(int index) {
+        return get(reachable(), index);
+    }
+
+    /**
+     * Returns the fields reachable by the keeper.
+     *
+     * The returned array must not be changed.
+     */
+    public long[] reachable() {
+        if (reachable_valid) {
+            return reachable;
+        }
+
+        if (reachable == null) {
+            reachable = new long[words];
+        }
+
+        long[] free = scratch(1);
+        long[] horizontal = scratch(2);
+        long[] vertical = scratch(3);
+
+        for (int i = 0; i < words; ++i) {
+            free[i] = ~(walls[i] | gems[i]);
+            reachable[i] = 0;
+        }
+
+        free[words - 1] &= last_mask;
+        set(reachable, keeper);
+
+        boolean changed = true;
+
+        while (changed) {
+            changed = false;
+
+            // One step in each direction for all reachable fields at once.
+            neighbours(reachable, 1, horizontal);
+            neighbours(reachable, width, vertical);
+
+            for (int i = 0; i < words; ++i) {
+                long next = (reachable[i] | horizontal[i] | vertical[i]) & free[i];
+
+                if (next != reachable[i]) {
+                    reachable[i] = next;
+                    changed = true;
+                }
+            }
+        }
+
+        reachable_valid = true;
+
+        return reachable;
+    }
+
+    /**
+     * Returns the reachable field with the lowest index.
+     *
+     * Two positions with the same gems and the same normalized keeper are equivalent.
+     */
+    public int normalizedKeeper() {
+        long[] act_reachable = reachable();
+
+        for (int i = 0; i < words; ++i) {
+            if (act_reachable[i] != 0) {
+                return (i << 6) + Long.numberOfTrailingZeros(act_reachable[i]);
+            }
+        }
+
+        return keeper;
+    }
+
+    /**
+     * Returns <code>true</code> if there is a frozen gem not on a goal.
+     *
+     * A gem is frozen along an axis if it has a wall or a frozen gem on one side or
+     * deadlocks on both sides. The frozen gems are calculated as greatest fixpoint
+     * starting with all gems frozen, so groups of gems blocking each other are found.
+     */
+    public boolean hasFreezeDeadlock() {
+        long[] frozen = scratch(1);
+
+        calcFrozenGems(frozen);
+
+        for (int i = 0; i < words; ++i) {
+            if ((frozen[i] & ~goals[i]) != 0) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Calculates the frozen gems (see hasFreezeDeadlock()), including the ones on goals.
+     *
+     * @param frozen Here we store the frozen gems, at least (getSize() + 63) / 64 longs.
+     */
+    public void calcFrozenGems(long[] frozen) {
+        long[] blockers = scratch(2);
+        long[] horizontal = scratch(3);
+        long[] vertical = scratch(4);
+        boolean changed = true;
+
+        System.arraycopy(gems, 0, frozen, 0, words);
+
+        while (changed) {
+            changed = false;
+
+            for (int i = 0; i < words; ++i) {
+                blockers[i] = walls[i] | frozen[i];
+            }
+
+            neighbours(blockers, 1, horizontal);
+            neighbours(blockers, width, vertical);
+
+            for (int i = 0; i < words; ++i) {
+                long next = frozen[i] & (horizontal[i] | dead_horizontal[i]) &
+                        (vertical[i] | dead_vertical[i]);
+
+                if (next != frozen[i]) {
+                    frozen[i] = next;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a hash of the position (the gems and the normalized keeper).
+     */
+    public long hash() {
+        long result = normalizedKeeper() * 0x9e3779b97f4a7c15L;
+
+        for (int i = 0; i < words; ++i) {
+            result = (result ^ gems[i]) * 0xbf58476d1ce4e5b9L;
+            result ^= result >>> 31;
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns a hash of the gems and the exact keeper position.
+     */
+    public long hashExact() {
+        long result = keeper * 0x9e3779b97f4a7c15L;
+
+        for (int i = 0; i < words; ++i) {
+            result = (result ^ gems[i]) * 0xbf58476d1ce4e5b9L;
+            result ^= result >>> 31;
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns <code>true</code> if both bit boards have the same gems and the keeper on
+     * the same field.
+     *
+     * @param other The other bit board of the same map.
+     */
+    public boolean samePositionExact(BitBoard other) {
+        return (keeper == other.keeper) && Arrays.equals(gems, other.gems);
+    }
+
+    /**
+     * Returns <code>true</code> if both bit boards have the same gems and the same
+     * normalized keeper.
+     *
+     * @param other The other bit board of the same map.
+     */
+    public boolean samePosition(BitBoard other) {
+        return Arrays.equals(gems, other.gems) && (normalizedKeeper() == other.normalizedKeeper());
+    }
+
+    /**
+     * Compares the positions by their sorted gem indices and then by the normalized
+     * keeper.
+     *
+     * @param other The other bit board of the same map.
+     * @return A negative number, zero or a positive number if this position is smaller,
+     *         the same or greater.
+     */
+    int comparePosition(BitBoard other) {
+        for (int i = 0; i < words; ++i) {
+            long difference = gems[i] ^ other.gems[i];
+
+            if (difference != 0) {
+                // The position with the lowest gem, which the other lacks, comes first.
+                return ((gems[i] & Long.lowestOneBit(difference)) != 0) ? -1 : 1;
+            }
+        }
+
+        return normalizedKeeper() - other.normalizedKeeper();
+    }
+
+    /**
+     * Calculates the fields which have a field of the bitset at distance offset in either
+     * direction (left/right for offset 1, up/down for offset width).
+     *
+     * @param bits The bitset.
+     * @param offset The offset.
+     * @param result Here we store the result.
+     */
+    private void neighbours(long[] bits, int offset, long[] result) {
+        long[] temp = scratch(0);
+
+        shiftUp(bits, offset, result);
+        shiftDown(bits, offset, temp);
+
+        for (int i = 0; i < words; ++i) {
+            result[i] |= temp[i];
+        }
+    }
+
+    /**
+     * Calculates the fields which have a field of the bitset at distance offset in both
+     * directions.
+     *
+     * @param bits The bitset.
+     * @param offset The offset.
+     * @param result Here we store the result.
+     */
+    private void both(long[] bits, int offset, long[] result) {
+        long[] temp = scratch(0);
+
+        shiftUp(bits, offset, result);
+        shiftDown(bits, offset, temp);
+
+        for (int i = 0; i < words; ++i) {
+            result[i] &= temp[i];
+        }
+    }
+
+    /**
+     * Returns a temporary bitset of the current thread.
+     *
+     * Index 0 is used by the shift operations. The bitset may be longer than needed.
+     *
+     * @param number The number of the bitset in the range [0:4].
+     */
+    private long[] scratch(int number) {
+        long[][] scratch = scratch_pool.get();
+
+        if ((scratch == null) || (scratch[0].length < words)) {
+            scratch = new long[5][words];
+            scratch_pool.set(scratch);
+        }
+
+        return scratch[number];
+    }
+
+    /**
+     * Shifts the bits to higher indices: bit i of source becomes bit i + shift of target.
+     *
+     * @param source The source bitset.
+     * @param shift The number of bits to shift.
+     * @param target The target bitset.
+     */
+    private void shiftUp(long[] source, int shift, long[] target) {
+        int word_shift = shift >>> 6;
+        int bit_shift = shift & 63;
+
+        for (int i = words - 1; i >= 0; --i) {
+            int j = i - word_shift;
+            long value = 0;
+
+            if (j >= 0) {
+                value = source[j] << bit_shift;
+
+                if ((bit_shift != 0) && (j > 0)) {
+                    value |= source[j - 1] >>> (64 - bit_shift);
+                }
+            }
+
+            target[i] = value;
+        }
+
+        target[words - 1] &= last_mask;
+    }
+
+    /**
+     * Shifts the bits to lower indices: bit i + shift of source becomes bit i of target.
+     *
+     * @param source The source bitset.
+     * @param shift The number of bits to shift.
+     * @param target The target bitset.
+     */
+    private void shiftDown(long[] source, int shift, long[] target) {
+        int word_shift = shift >>> 6;
+        int bit_shift = shift & 63;
+
+        for (int i = 0; i < words; ++i) {
+            int j = i + word_shift;
+            long value = 0;
+
+            if (j < words) {
+                value = source[j] >>> bit_shift;
+
+                if ((bit_shift != 0) && (j + 1 < words)) {
+                    value |= source[j + 1] << (64 - bit_shift);
+                }
+            }
+
+            target[i] = value;
+        }
+    }
+
+    /**
+     * Returns the bit with the given index.
+     */
+    static boolean get(long[] bits, int index) {
+        return (bits[index >>> 6] & (1L << index)) != 0;
+    }
+
+    /**
+     * Sets the bit with the given index.
+     */
+    static void set(long[] bits, int index) {
+        bits[index >>> 6] |= 1L << index;
+    }
+
+    /**
+     * Clears the bit with the given index.
+     */
+    private static void clear(long[] bits, int index) {
+        bits[index >>> 6] &= ~(1L << index);
+    }
+}
@@ -0,0 +1,142 @@
+package org.easysok;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import android.graphics.Bitmap;
+
+/**
+ * This class keeps unused mutable bitmaps for reuse.
+ *
+ * Themes draw all pieces at the same tile size, so after a theme switch most bitmaps of
+ * the old theme have exactly the size needed by the new one. Reusing them avoids
+ * allocating a second set of bitmaps while the old one waits for the garbage collector.
+ *
+ * The pool is bounded by bytes, the least recently added bitmaps are recycled first.
+ * All methods are thread safe.
+ */
+public class BitmapPool {
+
+    /**
+     * The pooled bitmaps, least recently added first.
+     */
+    private LinkedList<Bitmap> bitmaps;
+
+    /**
+     * The maximum number of bytes of the pooled bitmaps.
+     */
+    private int max_bytes;
+
+    /**
+     * The number of bytes of the pooled bitmaps.
+     */
+    private int bytes;
+
+    /**
+     * Creates a pool.
+     *
+     * @param max_bytes The maximum number of bytes of the pooled bitmaps.
+     */
+    public BitmapPool(int max_bytes) {
+        this.bitmaps = new LinkedList<Bitmap>();
+        this.max_bytes = max_bytes;
+    }
+
+    /**
+     * Returns the number of bytes of a bitmap.
+     *
+     * @param bitmap The bitmap.
+     */
+    public static int sizeOf(Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    /**
+     * Returns the number of bytes of the pooled bitmaps.
+     */
+    public synchronized int getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Sets the maximum number of bytes and recycles bitmaps if needed.
+     *
+     * @param max_bytes The maximum number of bytes of the pooled bitmaps.
+     */
+    public synchronized void setMaxBytes(int max_bytes) {
+        this.max_bytes = max_bytes;
+        trimToSize(max_bytes);
+    }
+
+    /**
+     * Removes a bitmap with the given size from the pool.
+     *
+     * @param width The width.
+     * @param height The height.
+     * @param config The configuration.
+     * @return The bitmap with undefined content or null, if there is none.
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        Iterator<Bitmap> iterator = bitmaps.descendingIterator();
+
+        while (iterator.hasNext()) {
+            Bitmap bitmap = iterator.next();
+
+            if ((bitmap.getWidth() == width) && (bitmap.getHeight() == height) &&
+                (bitmap.getConfig() == config)) {
+                iterator.remove();
+                bytes -= sizeOf(bitmap);
+
+                return bitmap;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Adds a bitmap, which must not be used anymore by the caller. Immutable bitmaps and
+     * bitmaps larger than the pool are recycled immediately.
+     *
+     * @param bitmap The bitmap.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap.isRecycled()) {
+            return;
+        }
+
+        int size = sizeOf(bitmap);
+
+        if (!bitmap.isMutable() || (size > max_bytes)) {
+            bitmap.recycle();
+
+            return;
+        }
+
+        trimToSize(max_bytes - size);
+        bitmaps.addLast(bitmap);
+        bytes += size;
+    }
+
+    /**
+     * Recycles the least recently added bitmaps until the pool is not larger than the
+     * given size.
+     *
+     * @param size The size in bytes.
+     */
+    public synchronized void trimToSize(int size) {
+        while ((bytes > size) && !bitmaps.isEmpty()) {
+            Bitmap bitmap = bitmaps.removeFirst();
+
+            bytes -= sizeOf(bitmap);
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Recycles all bitmaps.
+     */
+    public void clear() {
+        trimToSize(0);
+    }
+}
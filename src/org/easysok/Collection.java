@@ -0,0 +1,395 @@
+package org.easysok;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * This class represents a collection of sokoban levels.
+ *
+ * The header of a xsb file (all lines before the first map) contains the defaults for
+ * the name, authors, homepage, copyright, info and difficulty of the collection. These
+ * are parsed once and shared by all levels of the collection, which only store the
+ * values they override.
+ */
+public class Collection {
+
+    /**
+     * The name of the collection.
+     */
+    private String name;
+
+    /**
+     * The authors.
+     */
+    private List<String> authors;
+
+    /**
+     * The email addresses of the authors.
+     */
+    private List<String> emails;
+
+    /**
+     * The homepage.
+     */
+    private String homepage;
+
+    /**
+     * The copyright.
+     */
+    private String copyright;
+
+    /**
+     * The additional info.
+     */
+    private String info;
+
+    /**
+     * The difficulty.
+     */
+    private int difficulty;
+
+    /**
+     * The levels.
+     */
+    private List<Level> levels;
+
+    /**
+     * Creates an empty collection.
+     *
+     * @param name The name of the collection.
+     */
+    public Collection(String name) {
+        this.name = name;
+        this.authors = new ArrayList<String>();
+        this.emails = new ArrayList<String>();
+        this.homepage = "";
+        this.copyright = "";
+        this.info = "";
+        this.difficulty = -1;
+        this.levels = new ArrayList<Level>();
+    }
+
+    /**
+     * Constructs the collection from a list of lines in xsb format.
+     *
+     * All lines are removed from the list.
+     *
+     * @param lines The list with the lines.
+     * @param name The name of the collection, if the header does not contain one.
+     */
+    public Collection(List<String> lines, String name) {
+        this(name);
+
+        parseHeader(lines);
+
+        while (!lines.isEmpty()) {
+            long start = Metrics.start();
+            Level level = new Level(lines, this);
+
+            Metrics.stop(Metrics.PARSE_LEVEL, start);
+
+            if (level.getMap().getHeight() == 0) {
+                break;
+            }
+
+            levels.add(level);
+        }
+
+        lines.clear();
+    }
+
+    /**
+     * Reads a collection in xsb format.
+     *
+     * @param stream The stream to read from.
+     * @param encoding The encoding of the stream, e.g. "ISO-8859-1".
+     * @param name The name of the collection, if the header does not contain one.
+     */
+    public static Collection read(InputStream stream, String encoding, String name) throws IOException {
+        return read(new InputStreamReader(stream, encoding), name);
+    }
+
+    /**
+     * Reads a collection in xsb format, maps may be run length encoded.
+     *
+     * @param reader The reader to read from.
+     * @param name The name of the collection, if the header does not contain one.
+     */
+    public static Collection read(Reader reader, String name) throws IOException {
+        BufferedReader buffered_reader = new BufferedReader(reader);
+        LinkedList<String> lines = new LinkedList<String>();
+
+        while (true) {
+            String line = buffered_reader.readLine();
+
+            if (line == null) {
+                break;
+            }
+
+            if (!Map.isMapLine(line) && Map.isRleLine(line)) {
+                Map.expandRle(line, lines);
+            }
+            else {
+                lines.addLast(line);
+            }
+        }
+
+        return new Collection(lines, name);
+    }
+
+    /**
+     * Returns the name of the collection.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Sets the name of the collection.
+     *
+     * @param name The new name.
+     */
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Returns the authors of the collection.
+     */
+    public List<String> getAuthors() {
+        return authors;
+    }
+
+    /**
+     * Returns the email addresses of the authors of the collection.
+     */
+    public List<String> getEmails() {
+        return emails;
+    }
+
+    /**
+     * Sets the authors and emails created from the line.
+     *
+     * @param author_email_line The line containing (separated by ',') the authors and emails.
+     */
+    public void setAuthorEmailLine(String author_email_line) {
+        // The old lists may be referenced by levels.
+        authors = new ArrayList<String>();
+        emails = new ArrayList<String>();
+        Level.parseAuthorEmailLine(author_email_line, authors, emails);
+    }
+
+    /**
+     * Returns the homepage of the collection.
+     */
+    public String getHomepage() {
+        return homepage;
+    }
+
+    /**
+     * Sets the homepage of the collection.
+     *
+     * @param homepage The new homepage.
+     */
+    public void setHomepage(String homepage) {
+        this.homepage = homepage;
+    }
+
+    /**
+     * Returns the copyright of the collection.
+     */
+    public String getCopyright() {
+        return copyright;
+    }
+
+    /**
+     * Sets the copyright of the collection.
+     *
+     * @param copyright The new copyright.
+     */
+    public void setCopyright(String copyright) {
+        this.copyright = copyright;
+    }
+
+    /**
+     * Returns the additional info of the collection.
+     */
+    public String getInfo() {
+        return info;
+    }
+
+    /**
+     * Sets the info of the collection.
+     *
+     * @param info The new info.
+     */
+    public void setInfo(String info) {
+        this.info = info;
+    }
+
+    /**
+     * Returns the difficulty of the collection.
+     */
+    public int getDifficulty() {
+        return difficulty;
+    }
+
+    /**
+     * Sets the difficulty of the collection.
+     *
+     * @param difficulty The new difficulty in the range [-1:10].
+     */
+    public void setDifficulty(int difficulty) {
+        if ((difficulty >= 0) && (difficulty <= 10)) {
+            this.difficulty = difficulty;
+        }
+        else {
+            this.difficulty = -1;
+        }
+    }
+
+    /**
+     * Returns the levels of the collection.
+     */
+    public List<Level> getLevels() {
+        return levels;
+    }
+
+    /**
+     * Returns the number of levels.
+     */
+    public int numberOfLevels() {
+        return levels.size();
+    }
+
+    /**
+     * Returns the level with the given index.
+     *
+     * @param index The index of the level.
+     */
+    public Level getLevel(int index) {
+        return levels.get(index);
+    }
+
+    /**
+     * Appends the header of the collection in xsb format.
+     *
+     * @param out Where to append the header.
+     */
+    public void appendHeader(Appendable out) throws IOException {
+        if (!authors.isEmpty()) {
+            out.append("Author: ");
+            Level.appendAuthorEmailLine(out, authors, emails);
+            out.append('\n');
+        }
+
+        if (!homepage.isEmpty()) {
+            out.append("Homepage: ").append(homepage).append('\n');
+        }
+
+        if (!copyright.isEmpty()) {
+            out.append("Copyright: ").append(copyright).append('\n');
+        }
+
+        if (!name.isEmpty()) {
+            out.append("Name: ").append(name).append('\n');
+        }
+
+        if (difficulty != -1) {
+            out.append("Difficulty: ").append(Integer.toString(difficulty)).append('\n');
+        }
+
+        int start = 0;
+        int length = info.length();
+
+        while (start < length) {
+            int end = info.indexOf('\n', start);
+
+            if (end < 0) {
+                end = length;
+            }
+
+            out.append("Info: ").append(info, start, end).append('\n');
+            start = end + 1;
+        }
+    }
+
+    /**
+     * Writes the header and all levels of the collection in xsb format.
+     *
+     * @param writer The writer to use.
+     */
+    public void write(LevelWriter writer) throws IOException {
+        appendHeader(writer);
+        writer.writeAll(levels, authors, emails, homepage, copyright, info, difficulty);
+    }
+
+    /**
+     * Returns the collection in xsb format.
+     */
+    public String toString() {
+        StringBuilder result = new StringBuilder();
+
+        try {
+            appendHeader(result);
+
+            for (int i = 0; i < levels.size(); ++i) {
+                if (i != 0) {
+                    result.append('\n');
+                }
+
+                levels.get(i).appendText(result, authors, emails, homepage, copyright, info, difficulty);
+            }
+        }
+        catch (IOException e) {
+            // A StringBuilder never throws.
+            throw new RuntimeException(e);
+        }
+
+        return result.toString();
+    }
+
+    /**
+     * Parses the header of a xsb file, which are all lines before the first map.
+     *
+     * @param lines The list with the lines, the header lines are removed.
+     */
+    private void parseHeader(List<String> lines) {
+        while (!lines.isEmpty() && !Map.isMapLine(lines.get(0))) {
+            String act_line = lines.remove(0);
+
+            if (act_line.startsWith("Author:")) {
+                setAuthorEmailLine(act_line.substring(7));
+            }
+            else if (act_line.startsWith("Homepage:")) {
+                homepage = act_line.substring(9).trim();
+            }
+            else if (act_line.startsWith("Copyright:")) {
+                copyright = act_line.substring(10).trim();
+            }
+            else if (act_line.startsWith("Name:")) {
+                name = act_line.substring(5).trim();
+            }
+            else if (act_line.startsWith("Title:")) {
+                name = act_line.substring(6).trim();
+            }
+            else if (act_line.startsWith("Info:")) {
+                info += act_line.substring(5).trim() + '\n';
+            }
+            else if (act_line.startsWith("Difficulty:")) {
+                try {
+                    setDifficulty(Integer.parseInt(act_line.substring(11).trim()));
+                }
+                catch (NumberFormatException e) {
+                    setDifficulty(-1);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,446 @@
+package org.easysok;
+
+import java.util.Arrays;
+
+/**
+ * This class prunes search positions with corral and frozen gem deadlocks.
+ *
+ * A corral is a region of free fields the keeper can not reach. checkPush() is called
+ * after each push and only looks at what the push can have changed: if the pushed gem
+ * is frozen, the frozen gems may close a corral, which can never be entered again, or
+ * take goals away from the other gems. checkCorrals() looks for a PI-corral: a corral
+ * whose boundary gems can only be pushed into it and the keeper can do all of these
+ * pushes. If such a corral is not solved, it has to be entered sooner or later and the
+ * search only needs the pushes into it.
+ *
+ * An instance is not thread safe, each search needs its own.
+ */
+public class CorralPruner {
+
+    /**
+     * Nothing found.
+     */
+    public static final int NONE = 0;
+
+    /**
+     * The position can not be solved.
+     */
+    public static final int PRUNE = 1;
+
+    /**
+     * Only pushes into the corral found by checkCorrals() need to be searched.
+     */
+    public static final int MUST_PUSH = 2;
+
+    /**
+     * The analysis of the map.
+     */
+    private MapAnalysis analysis;
+
+    /**
+     * The number of fields.
+     */
+    private int size;
+
+    /**
+     * The offsets for the directions left, right, up and down.
+     */
+    private int[] offsets;
+
+    /**
+     * The frozen gems of the last check.
+     */
+    private long[] frozen;
+
+    /**
+     * For each field the number of the corral it belongs to, 0 for none, the negative
+     * number for the boundary gems of a corral.
+     */
+    private int[] corral_of_field;
+
+    /**
+     * The number of the last corral, corral numbers are never reused.
+     */
+    private int last_corral;
+
+    /**
+     * The fields of the PI-corral found by checkCorrals().
+     */
+    private long[] pi_corral;
+
+    /**
+     * If true, checkCorrals() found a PI-corral.
+     */
+    private boolean pi_corral_found;
+
+    /**
+     * Queue for the breadth first searches.
+     */
+    private int[] queue;
+
+    /**
+     * The number of fields of the last corral, they are in queue.
+     */
+    private int queue_end;
+
+    /**
+     * The boundary gems of the corral being checked.
+     */
+    private int[] boundary;
+
+    /**
+     * For each goal the gem matched to it (index into the gem list) or -1.
+     */
+    private int[] goal_match;
+
+    /**
+     * Marks for the augmenting path search of the matching.
+     */
+    private boolean[] goal_visited;
+
+    /**
+     * The gems being matched.
+     */
+    private int[] match_gems;
+
+    /**
+     * Creates a pruner.
+     *
+     * @param map The map, which must be valid.
+     * @param analysis The analysis of the map.
+     */
+    public CorralPruner(Map map, MapAnalysis analysis) {
+        this.analysis = analysis;
+        this.size = map.getSize();
+        this.offsets = new int[4];
+        this.frozen = new long[(size + 63) >>> 6];
+        this.pi_corral = new long[frozen.length];
+        this.corral_of_field = new int[size];
+        this.queue = new int[size];
+        this.boundary = new int[size];
+        this.goal_match = new int[analysis.numberOfGoals()];
+        this.goal_visited = new boolean[analysis.numberOfGoals()];
+        this.match_gems = new int[analysis.numberOfGoals()];
+
+        for (int i = 0; i < 4; ++i) {
+            offsets[i] = map.getOffset(i);
+        }
+    }
+
+    /**
+     * Checks a position after a push.
+     *
+     * Only deadlocks caused by the pushed gem are found: a closed corral behind frozen
+     * gems, which is not solved, and goals taken by frozen gems, which leave the other
+     * gems without a complete gem/goal matching.
+     *
+     * @param board The position after the push.
+     * @param gem_index The new position of the pushed gem.
+     * @return PRUNE or NONE.
+     */
+    public int checkPush(BitBoard board, int gem_index) {
+        board.calcFrozenGems(frozen);
+
+        if (!BitBoard.get(frozen, gem_index)) {
+            // Nothing froze, so neither closed corrals nor taken goals can be new.
+            return NONE;
+        }
+
+        for (int direction = 0; direction < 4; ++direction) {
+            int index = gem_index + offsets[direction];
+
+            if (board.isFree(index) && !board.isReachable(index) && isClosedCorralDeadlock(board, index)) {
+                return PRUNE;
+            }
+        }
+
+        return hasCompleteMatching(board) ? NONE : PRUNE;
+    }
+
+    /**
+     * Looks for an unsolved PI-corral.
+     *
+     * @param board The position.
+     * @return MUST_PUSH, if one was found, NONE otherwise.
+     */
+    public int checkCorrals(BitBoard board) {
+        pi_corral_found = false;
+
+        // Fields with a higher number were already visited in this call.
+        int base = nextCorral() - 1;
+
+        for (int i = 0; i < size; ++i) {
+            if (board.isFree(i) && !board.isReachable(i) && (corral_of_field[i] <= base)) {
+                int corral = nextCorral();
+
+                if (isPICorral(board, i, corral)) {
+                    Arrays.fill(pi_corral, 0);
+
+                    for (int j = 0; j < queue_end; ++j) {
+                        BitBoard.set(pi_corral, queue[j]);
+                    }
+
+                    pi_corral_found = true;
+
+                    return MUST_PUSH;
+                }
+            }
+        }
+
+        return NONE;
+    }
+
+    /**
+     * Returns <code>true</code> if the push leads into the corral found by the last call
+     * of checkCorrals(), which returned MUST_PUSH.
+     *
+     * @param gem_index The position of the gem.
+     * @param direction The direction of the push.
+     */
+    public boolean isCorralPush(int gem_index, int direction) {
+        return pi_corral_found && BitBoard.get(pi_corral, gem_index + offsets[direction]);
+    }
+
+    /**
+     * Returns a new corral number.
+     */
+    private int nextCorral() {
+        if (last_corral == Integer.MAX_VALUE) {
+            Arrays.fill(corral_of_field, 0);
+            last_corral = 0;
+        }
+
+        return ++last_corral;
+    }
+
+    /**
+     * Marks the corral starting at a field and checks if it is an unsolved PI-corral.
+     *
+     * @param board The position.
+     * @param start A field of the corral.
+     * @param corral The number for the corral.
+     */
+    private boolean isPICorral(BitBoard board, int start, int corral) {
+        int boundary_size = markCorral(board, start, corral);
+        boolean solved = true;
+        boolean has_push = false;
+
+        for (int i = 0; i < boundary_size; ++i) {
+            int gem_index = boundary[i];
+
+            if (!board.isGoal(gem_index)) {
+                solved = false;
+            }
+
+            for (int direction = 0; direction < 4; ++direction) {
+                int keeper_index = gem_index - offsets[direction];
+                int target = gem_index + offsets[direction];
+
+                // Pushes against walls, onto deadlocks or against gems which can only move
+                // after the corral was entered are never possible before.
+                if (board.isWall(target) || board.isDead(target) ||
+                    (board.isGem(target) && (Math.abs(corral_of_field[target]) == corral))) {
+                    continue;
+                }
+
+                if (corral_of_field[target] == corral) {
+                    // P: all pushes into the corral must be possible now.
+                    if (!board.isReachable(keeper_index)) {
+                        return false;
+                    }
+
+                    has_push = true;
+                }
+                else if (corral_of_field[keeper_index] != corral) {
+                    // I: a push out of the corral is possible now or after other pushes.
+                    return false;
+                }
+            }
+        }
+
+        if (!has_push) {
+            return false;
+        }
+
+        for (int i = 0; i < queue_end; ++i) {
+            int index = queue[i];
+
+            if (board.isGem(index) != board.isGoal(index)) {
+                solved = false;
+            }
+        }
+
+        return !solved;
+    }
+
+    /**
+     * Marks the corral starting at a field and collects its boundary gems.
+     *
+     * The corral contains all fields reachable from the start without walls and without
+     * passing fields the keeper reaches. Gems inside are part of the corral, gems next
+     * to a field of the corral and next to a field the keeper reaches are its boundary.
+     *
+     * @param board The position.
+     * @param start A free field of the corral.
+     * @param corral The number for the corral.
+     * @return The number of boundary gems in boundary.
+     */
+    private int markCorral(BitBoard board, int start, int corral) {
+        int boundary_size = 0;
+
+        queue_end = 0;
+        corral_of_field[start] = corral;
+        queue[queue_end++] = start;
+
+        for (int queue_start = 0; queue_start < queue_end; ++queue_start) {
+            int index = queue[queue_start];
+
+            for (int direction = 0; direction < 4; ++direction) {
+                int neighbour = index + offsets[direction];
+
+                if (board.isWall(neighbour) || board.isReachable(neighbour) ||
+                    (corral_of_field[neighbour] == corral)) {
+                    continue;
+                }
+
+                corral_of_field[neighbour] = corral;
+
+                if (board.isGem(neighbour) && isNextToReachable(board, neighbour)) {
+                    boundary[boundary_size++] = neighbour;
+                }
+                else {
+                    queue[queue_end++] = neighbour;
+                }
+            }
+        }
+
+        // The boundary gems are not part of the corral.
+        for (int i = 0; i < boundary_size; ++i) {
+            corral_of_field[boundary[i]] = -corral;
+        }
+
+        return boundary_size;
+    }
+
+    /**
+     * Returns <code>true</code> if the keeper reaches a field next to the given one.
+     */
+    private boolean isNextToReachable(BitBoard board, int index) {
+        for (int direction = 0; direction < 4; ++direction) {
+            if (board.isReachable(index + offsets[direction])) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns <code>true</code> if the corral starting at the field is closed by walls and
+     * frozen gems and can not be solved anymore: it contains a gem not on a goal or a
+     * goal without a gem.
+     *
+     * @param board The position.
+     * @param start A free field of the corral.
+     */
+    private boolean isClosedCorralDeadlock(BitBoard board, int start) {
+        int corral = nextCorral();
+        boolean solved = true;
+
+        queue_end = 0;
+        corral_of_field[start] = corral;
+        queue[queue_end++] = start;
+
+        for (int queue_start = 0; queue_start < queue_end; ++queue_start) {
+            int index = queue[queue_start];
+
+            if (board.isGem(index) != board.isGoal(index)) {
+                solved = false;
+            }
+
+            for (int direction = 0; direction < 4; ++direction) {
+                int neighbour = index + offsets[direction];
+
+                if (board.isWall(neighbour) || (corral_of_field[neighbour] == corral) ||
+                    BitBoard.get(frozen, neighbour)) {
+                    continue;
+                }
+
+                if (board.isReachable(neighbour)) {
+                    // The corral is open.
+                    return false;
+                }
+
+                corral_of_field[neighbour] = corral;
+                queue[queue_end++] = neighbour;
+            }
+        }
+
+        return !solved;
+    }
+
+    /**
+     * Returns <code>true</code> if each gem can be matched to its own goal, where frozen
+     * gems on goals keep their goal and the other gems need a finite push distance.
+     *
+     * @param board The position.
+     */
+    private boolean hasCompleteMatching(BitBoard board) {
+        int goals = analysis.numberOfGoals();
+        int gems = 0;
+
+        Arrays.fill(goal_match, -1);
+
+        for (int goal = 0; goal < goals; ++goal) {
+            int index = analysis.getGoal(goal);
+
+            if (BitBoard.get(frozen, index)) {
+                // Marks the goal as taken.
+                goal_match[goal] = goals;
+            }
+        }
+
+        for (int i = 0; (i < size) && (gems < goals); ++i) {
+            if (board.isGem(i) && !(BitBoard.get(frozen, i) && board.isGoal(i))) {
+                match_gems[gems++] = i;
+            }
+        }
+
+        for (int gem = 0; gem < gems; ++gem) {
+            Arrays.fill(goal_visited, false);
+
+            if (!augment(gem)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Searches an augmenting path for a gem (Kuhn's algorithm).
+     *
+     * @param gem The number of the gem in match_gems.
+     */
+    private boolean augment(int gem) {
+        int goals = analysis.numberOfGoals();
+        int index = match_gems[gem];
+
+        for (int goal = 0; goal < goals; ++goal) {
+            if (goal_visited[goal] || (goal_match[goal] == goals) ||
+                (analysis.getDistance(goal, index) == MapAnalysis.UNREACHABLE)) {
+                continue;
+            }
+
+            goal_visited[goal] = true;
+
+            if ((goal_match[goal] == -1) || augment(goal_match[goal])) {
+                goal_match[goal] = gem;
+
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,775 @@
+package org.easysok;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * This class is a database of deadlock patterns, which is shared by the solvers of all
+ * levels and stored on disk.
+ *
+ * A pattern is a window of 4x4 fields, each one floor, goal, wall, gem or gem on goal,
+ * encoded with 3 bits into a long. The windows are taken around a pushed gem, so that
+ * the gem is in the inner 2x2 fields. When the solver finds a deadlock after a push, the
+ * windows around the gem are checked with a small search, which assumes the most
+ * favourable surroundings: free floor with goals outside the window and the keeper
+ * anywhere. Only windows, which are unsolvable even then, are stored, so a pattern is a
+ * deadlock in every level and for every keeper position. Each pattern is stored in all
+ * 8 orientations, so a lookup needs a single probe per window.
+ *
+ * The file is an open addressing hash table of the codes, which is memory mapped and
+ * used without parsing. New patterns are kept in a copy on write table until save() is
+ * called. Lookups are lock free and may be done by several threads.
+ */
+public class DeadlockPatterns {
+
+    /**
+     * The magic number at the start of the file.
+     */
+    private static final int MAGIC = 0x45534450;
+
+    /**
+     * The size of the header in bytes.
+     */
+    private static final int HEADER_SIZE = 16;
+
+    /**
+     * The width and height of a window.
+     */
+    public static final int SIZE = 4;
+
+    /**
+     * The codes of the fields in a window.
+     */
+    private static final int FLOOR = 0;
+    private static final int GOAL = 1;
+    private static final int WALL = 2;
+    private static final int GEM = 3;
+    private static final int GEM_ON_GOAL = 4;
+
+    /**
+     * The width of a window with the ring of fields around it used by the check.
+     */
+    private static final int OUTER_SIZE = SIZE + 2;
+
+    /**
+     * The maximum number of positions of the check, windows needing more are not stored.
+     */
+    private static final int MAX_CHECKED_POSITIONS = 20000;
+
+    /**
+     * The maximum number of windows remembered as no deadlock.
+     */
+    private static final int MAX_REJECTED = 100000;
+
+    /**
+     * The offsets of the directions in the window with its ring.
+     */
+    private static final int[] outer_offsets = new int[] {-1, 1, -OUTER_SIZE, OUTER_SIZE};
+
+    /**
+     * For each of the 8 orientations, the window field shown at each field.
+     */
+    private static final int[][] orientations = createOrientations();
+
+    /**
+     * The file of the database or null, if it is only kept in memory.
+     */
+    private File file;
+
+    /**
+     * The memory mapped table of the file or null.
+     */
+    private volatile LongBuffer mapped;
+
+    /**
+     * The table of the patterns learned since the last save, replaced on each change, or
+     * null if there are none.
+     */
+    private volatile long[] learned;
+
+    /**
+     * The number of codes in the learned table.
+     */
+    private int learned_count;
+
+    /**
+     * The codes of windows, which were checked and are no deadlock.
+     */
+    private HashSet<Long> rejected;
+
+    /**
+     * Creates a database, which is only kept in memory.
+     */
+    public DeadlockPatterns() {
+        this.rejected = new HashSet<Long>();
+    }
+
+    /**
+     * Creates a database and maps its file, if it exists.
+     *
+     * @param file The file of the database.
+     * @throws IOException If the file exists, but could not be mapped.
+     */
+    public DeadlockPatterns(File file) throws IOException {
+        this();
+        this.file = file;
+
+        if (file.exists()) {
+            mapped = map(file);
+        }
+    }
+
+    /**
+     * Returns the number of stored windows, each pattern counts once per orientation.
+     */
+    public synchronized int size() {
+        return count(mapped) + learned_count;
+    }
+
+    /**
+     * Returns <code>true</code> if a pattern matches a window around a gem.
+     *
+     * @param board The position.
+     * @param gem_index The index of the gem, usually the one pushed last.
+     */
+    public boolean isDeadlock(BitBoard board, int gem_index) {
+        if ((mapped == null) && (learned == null)) {
+            return false;
+        }
+
+        int width = board.getWidth();
+        int gem_x = gem_index % width;
+        int gem_y = gem_index / width;
+
+        for (int y = gem_y - 2; y < gem_y; ++y) {
+            for (int x = gem_x - 2; x < gem_x; ++x) {
+                if (contains(getCode(board, x, y))) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns <code>true</code> if a pattern matches a window around a gem, e.g. to
+     * warn about a deadlock in a hint.
+     *
+     * @param snapshot The position.
+     * @param gem_index The index of the gem.
+     */
+    public boolean isDeadlock(MapSnapshot snapshot, int gem_index) {
+        if ((mapped == null) && (learned == null)) {
+            return false;
+        }
+
+        int width = snapshot.getWidth();
+        int gem_x = gem_index % width;
+        int gem_y = gem_index / width;
+
+        for (int y = gem_y - 2; y < gem_y; ++y) {
+            for (int x = gem_x - 2; x < gem_x; ++x) {
+                if (contains(getCode(snapshot, x, y))) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Checks the windows around a gem of a deadlocked position and stores the ones,
+     * which are deadlocks on their own.
+     *
+     * @param board The position, which is known to be a deadlock.
+     * @param gem_index The index of the gem pushed last.
+     * @return The number of new patterns.
+     */
+    public int learn(BitBoard board, int gem_index) {
+        int width = board.getWidth();
+        int gem_x = gem_index % width;
+        int gem_y = gem_index / width;
+        int result = 0;
+
+        for (int y = gem_y - 2; y < gem_y; ++y) {
+            for (int x = gem_x - 2; x < gem_x; ++x) {
+                long code = getCode(board, x, y);
+
+                if ((code != 0) && learn(code)) {
+                    ++result;
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Writes all patterns to the file and maps it again. The file is written by
+     * FileUtils.write(), so other processes never see a partial file.
+     *
+     * @throws IOException If the file could not be written, the learned patterns stay
+     *                     in memory then.
+     */
+    public synchronized void save() throws IOException {
+        if ((file == null) || (learned_count == 0)) {
+            return;
+        }
+
+        int count = count(mapped) + learned_count;
+        int capacity = 16;
+
+        while (capacity < count * 2) {
+            capacity *= 2;
+        }
+
+        long[] table = new long[capacity];
+
+        addAll(table, learned);
+
+        if (mapped != null) {
+            for (int i = 0; i < mapped.capacity(); ++i) {
+                add(table, mapped.get(i));
+            }
+        }
+
+        final long[] act_table = table;
+        final int act_capacity = capacity;
+
+        FileUtils.write(file, new FileUtils.Content() {
+            public void write(OutputStream stream) throws IOException {
+                DataOutputStream out = new DataOutputStream(stream);
+
+                out.writeInt(MAGIC);
+                out.writeInt(count(act_table));
+                out.writeInt(act_capacity);
+                out.writeInt(0);
+
+                for (long code: act_table) {
+                    out.writeLong(code);
+                }
+
+                out.flush();
+            }
+        });
+
+        mapped = map(file);
+        learned = null;
+        learned_count = 0;
+    }
+
+    /**
+     * Checks a window and stores it in all orientations, if it is a deadlock.
+     *
+     * @param code The code of the window.
+     * @return <code>true</code> if the window is a new pattern.
+     */
+    private synchronized boolean learn(long code) {
+        if (contains(code) || rejected.contains(code)) {
+            return false;
+        }
+
+        if (!isLocalDeadlock(code)) {
+            if (rejected.size() >= MAX_REJECTED) {
+                rejected.clear();
+            }
+
+            rejected.add(code);
+
+            return false;
+        }
+
+        // Copy the table, so lookups of other threads never see a table being changed.
+        int capacity = 16;
+
+        while (capacity < (learned_count + 8) * 2) {
+            capacity *= 2;
+        }
+
+        long[] new_learned = new long[capacity];
+
+        if (learned != null) {
+            addAll(new_learned, learned);
+        }
+
+        for (int orientation = 0; orientation < orientations.length; ++orientation) {
+            if (add(new_learned, orient(code, orientation))) {
+                ++learned_count;
+            }
+        }
+
+        learned = new_learned;
+
+        return true;
+    }
+
+    /**
+     * Returns the code of a window or 0, if it contains no gem outside of a goal.
+     *
+     * @param board The position.
+     * @param left The x coordinate of the left column.
+     * @param top The y coordinate of the top row.
+     */
+    private static long getCode(BitBoard board, int left, int top) {
+        int width = board.getWidth();
+        int height = board.getSize() / width;
+        long result = 0;
+        boolean has_gem = false;
+
+        for (int i = 0; i < SIZE * SIZE; ++i) {
+            int x = left + i % SIZE;
+            int y = top + i / SIZE;
+            long field = WALL;
+
+            if ((x >= 0) && (x < width) && (y >= 0) && (y < height)) {
+                int index = x + y * width;
+
+                if (board.isWall(index)) {
+                    field = WALL;
+                }
+                else if (board.isGem(index)) {
+                    if (board.isGoal(index)) {
+                        field = GEM_ON_GOAL;
+                    }
+                    else {
+                        field = GEM;
+                        has_gem = true;
+                    }
+                }
+                else {
+                    field = board.isGoal(index) ? GOAL : FLOOR;
+                }
+            }
+
+            result |= field << (3 * i);
+        }
+
+        return has_gem ? result : 0;
+    }
+
+    /**
+     * Returns the code of a window or 0, if it contains no gem outside of a goal.
+     *
+     * @param snapshot The position.
+     * @param left The x coordinate of the left column.
+     * @param top The y coordinate of the top row.
+     */
+    private static long getCode(MapSnapshot snapshot, int left, int top) {
+        int width = snapshot.getWidth();
+        int height = snapshot.getHeight();
+        long result = 0;
+        boolean has_gem = false;
+
+        for (int i = 0; i < SIZE * SIZE; ++i) {
+            int x = left + i % SIZE;
+            int y = top + i / SIZE;
+            long field = WALL;
+
+            if ((x >= 0) && (x < width) && (y >= 0) && (y < height)) {
+                int piece = snapshot.getPiece(x + y * width);
+
+                if (piece >= Map.WALL) {
+                    field = WALL;
+                }
+                else if (piece == Map.GEM) {
+                    field = GEM;
+                    has_gem = true;
+                }
+                else if (piece == Map.GEM_ON_GOAL) {
+                    field = GEM_ON_GOAL;
+                }
+                else {
+                    field = ((piece == Map.GOAL) || (piece == Map.KEEPER_ON_GOAL)) ? GOAL : FLOOR;
+                }
+            }
+
+            result |= field << (3 * i);
+        }
+
+        return has_gem ? result : 0;
+    }
+
+    /**
+     * Returns <code>true</code> if the code of a window is a stored pattern.
+     *
+     * @param code The code or 0, which is never stored.
+     */
+    private boolean contains(long code) {
+        LongBuffer act_mapped = mapped;
+        long[] act_learned = learned;
+
+        return (code != 0) && (((act_learned != null) && contains(act_learned, code)) ||
+                               ((act_mapped != null) && contains(act_mapped, code)));
+    }
+
+    /**
+     * Returns the code of a window turned into another orientation.
+     *
+     * @param code The code.
+     * @param orientation The number of the orientation.
+     */
+    private static long orient(long code, int orientation) {
+        int[] fields = orientations[orientation];
+        long result = 0;
+
+        for (int i = 0; i < SIZE * SIZE; ++i) {
+            result |= ((code >>> (3 * fields[i])) & 7) << (3 * i);
+        }
+
+        return result;
+    }
+
+    /**
+     * Creates the field mappings of the 8 rotations and reflections of a window.
+     */
+    private static int[][] createOrientations() {
+        int[][] result = new int[8][SIZE * SIZE];
+        int last = SIZE - 1;
+
+        for (int i = 0; i < SIZE * SIZE; ++i) {
+            int x = i % SIZE;
+            int y = i / SIZE;
+
+            result[0][i] = x + y * SIZE;
+            result[1][i] = (last - x) + y * SIZE;
+            result[2][i] = x + (last - y) * SIZE;
+            result[3][i] = (last - x) + (last - y) * SIZE;
+            result[4][i] = y + x * SIZE;
+            result[5][i] = (last - y) + x * SIZE;
+            result[6][i] = y + (last - x) * SIZE;
+            result[7][i] = (last - y) + (last - x) * SIZE;
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns <code>true</code> if a window cannot be solved, even if it is surrounded by
+     * free floor with goals.
+     *
+     * The check searches the pushes inside the window and a ring of fields around it. A
+     * gem pushed onto the ring is taken away, since it can be pushed further to a goal
+     * outside. The keeper can walk between all fields of the ring around the window. The
+     * search starts with the keeper in each area of the window, the position is solvable
+     * if all remaining gems can be brought onto goals.
+     *
+     * @param code The code of the window.
+     */
+    private static boolean isLocalDeadlock(long code) {
+        int outer_fields = OUTER_SIZE * OUTER_SIZE;
+        boolean[] walls = new boolean[outer_fields];
+        int goals = 0;
+        int start_gems = 0;
+
+        for (int i = 0; i < SIZE * SIZE; ++i) {
+            int field = (int)((code >>> (3 * i)) & 7);
+
+            walls[toOuter(i)] = (field == WALL);
+
+            if ((field == GOAL) || (field == GEM_ON_GOAL)) {
+                goals |= 1 << i;
+            }
+
+            if ((field == GEM) || (field == GEM_ON_GOAL)) {
+                start_gems |= 1 << i;
+            }
+        }
+
+        HashSet<Long> seen = new HashSet<Long>();
+        long[] queue = new long[MAX_CHECKED_POSITIONS];
+        int queue_end = 0;
+        boolean[] reachable = new boolean[outer_fields];
+        boolean[] child_reachable = new boolean[outer_fields];
+        boolean[] started = new boolean[outer_fields];
+
+        for (int start = 0; start < outer_fields; ++start) {
+            if (walls[start] || isGem(start_gems, start) || started[start]) {
+                continue;
+            }
+
+            int keeper = calcReachable(walls, start_gems, start, reachable);
+
+            for (int i = 0; i < outer_fields; ++i) {
+                started[i] |= reachable[i];
+            }
+
+            long position = start_gems | ((long)keeper << 16);
+
+            if (seen.add(position)) {
+                queue[queue_end++] = position;
+            }
+        }
+
+        for (int queue_start = 0; queue_start < queue_end; ++queue_start) {
+            int gems = (int)(queue[queue_start] & 0xffff);
+            int keeper = (int)(queue[queue_start] >>> 16);
+
+            if ((gems & ~goals) == 0) {
+                return false;
+            }
+
+            calcReachable(walls, gems, keeper, reachable);
+
+            for (int i = 0; i < SIZE * SIZE; ++i) {
+                if ((gems & (1 << i)) == 0) {
+                    continue;
+                }
+
+                int gem = toOuter(i);
+
+                for (int offset: outer_offsets) {
+                    int target = gem + offset;
+
+                    if (!reachable[gem - offset] || walls[target] || isGem(gems, target)) {
+                        continue;
+                    }
+
+                    int new_gems = gems & ~(1 << i);
+                    int inner_target = toInner(target);
+
+                    if (inner_target >= 0) {
+                        new_gems |= 1 << inner_target;
+                    }
+
+                    long position = new_gems | ((long)calcReachable(walls, new_gems, gem, child_reachable) << 16);
+
+                    if (seen.add(position)) {
+                        if (queue_end == queue.length) {
+                            // Too large to decide, it is not stored.
+                            return false;
+                        }
+
+                        queue[queue_end++] = position;
+                    }
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Calculates the fields reachable by the keeper in the window and its ring.
+     *
+     * @param walls The walls.
+     * @param gems The gems as bits of the window fields.
+     * @param keeper The field of the keeper.
+     * @param result Receives the reachable fields.
+     * @return The smallest reachable field, which identifies the area.
+     */
+    private static int calcReachable(boolean[] walls, int gems, int keeper, boolean[] result) {
+        int outer_fields = OUTER_SIZE * OUTER_SIZE;
+        int[] queue = new int[outer_fields];
+        int queue_end = 0;
+        int smallest = keeper;
+        boolean ring_reached = false;
+
+        Arrays.fill(result, false);
+        result[keeper] = true;
+        queue[queue_end++] = keeper;
+
+        for (int queue_start = 0; queue_start < queue_end; ++queue_start) {
+            int index = queue[queue_start];
+
+            smallest = Math.min(smallest, index);
+
+            if (!ring_reached && (toInner(index) < 0)) {
+                // The ring is connected outside of the window.
+                ring_reached = true;
+
+                for (int i = 0; i < outer_fields; ++i) {
+                    if (!result[i] && (toInner(i) < 0)) {
+                        result[i] = true;
+                        queue[queue_end++] = i;
+                    }
+                }
+            }
+
+            for (int offset: outer_offsets) {
+                int neighbour = index + offset;
+
+                if ((neighbour >= 0) && (neighbour < outer_fields) && !result[neighbour] &&
+                    (toInner(neighbour) >= 0) && !walls[neighbour] && !isGem(gems, neighbour)) {
+                    result[neighbour] = true;
+                    queue[queue_end++] = neighbour;
+                }
+            }
+        }
+
+        return smallest;
+    }
+
+    /**
+     * Returns <code>true</code> if a field of the window and its ring contains a gem.
+     */
+    private static boolean isGem(int gems, int outer_index) {
+        int inner_index = toInner(outer_index);
+
+        return (inner_index >= 0) && ((gems & (1 << inner_index)) != 0);
+    }
+
+    /**
+     * Returns the index in the window with its ring of a window field.
+     */
+    private static int toOuter(int inner_index) {
+        return (inner_index % SIZE + 1) + (inner_index / SIZE + 1) * OUTER_SIZE;
+    }
+
+    /**
+     * Returns the index in the window of a field of the window with its ring or -1 for
+     * a field of the ring.
+     */
+    private static int toInner(int outer_index) {
+        int x = outer_index % OUTER_SIZE - 1;
+        int y = outer_index / OUTER_SIZE - 1;
+
+        return ((x >= 0) && (x < SIZE) && (y >= 0) && (y < SIZE)) ? x + y * SIZE : -1;
+    }
+
+    /**
+     * Returns the slot of a code in a table with the given power of two capacity.
+     */
+    private static int slot(long code, int capacity) {
+        return (int)((code * 0x9e3779b97f4a7c15L) >>> 32) & (capacity - 1);
+    }
+
+    /**
+     * Returns <code>true</code> if a table contains a code.
+     */
+    private static boolean contains(long[] table, long code) {
+        for (int i = slot(code, table.length); table[i] != 0; i = (i + 1) & (table.length - 1)) {
+            if (table[i] == code) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns <code>true</code> if a mapped table contains a code.
+     */
+    private static boolean contains(LongBuffer table, long code) {
+        int capacity = table.capacity();
+
+        for (int i = slot(code, capacity); table.get(i) != 0; i = (i + 1) & (capacity - 1)) {
+            if (table.get(i) == code) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Adds a code to a table, which must have a free slot.
+     *
+     * @return <code>false</code> if the table already contains the code.
+     */
+    private static boolean add(long[] table, long code) {
+        if (code == 0) {
+            return false;
+        }
+
+        int i = slot(code, table.length);
+
+        for (; table[i] != 0; i = (i + 1) & (table.length - 1)) {
+            if (table[i] == code) {
+                return false;
+            }
+        }
+
+        table[i] = code;
+
+        return true;
+    }
+
+    /**
+     * Adds all codes of a table to another one.
+     */
+    private static void addAll(long[] table, long[] codes) {
+        for (long code: codes) {
+            add(table, code);
+        }
+    }
+
+    /**
+     * Returns the number of codes in a table.
+     */
+    private static int count(long[] table) {
+        int result = 0;
+
+        for (long code: table) {
+            if (code != 0) {
+                ++result;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the number of codes in a mapped table or 0 for null.
+     */
+    private static int count(LongBuffer table) {
+        int result = 0;
+
+        if (table != null) {
+            for (int i = 0; i < table.capacity(); ++i) {
+                if (table.get(i) != 0) {
+                    ++result;
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Maps the table of a file.
+     *
+     * @param file The file.
+     * @return The table or null, if the file is empty or not a pattern file.
+     */
+    private static LongBuffer map(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+
+        try {
+            FileChannel channel = in.getChannel();
+            long length = channel.size();
+
+            if (length < HEADER_SIZE) {
+                return null;
+            }
+
+            // The mapping stays valid after the channel is closed.
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            int capacity = buffer.getInt(8);
+
+            if ((buffer.getInt(0) != MAGIC) || (capacity <= 0) || ((capacity & (capacity - 1)) != 0) ||
+                (length != HEADER_SIZE + 8L * capacity)) {
+                return null;
+            }
+
+            buffer.position(HEADER_SIZE);
+
+            ByteBuffer table = buffer.slice();
+
+            return table.asLongBuffer();
+        }
+        finally {
+            FileUtils.closeQuietly(in);
+        }
+    }
+}
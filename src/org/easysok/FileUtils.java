@@ -0,0 +1,88 @@
+package org.easysok;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * This class contains helpers for the files of the caches, checkpoints and databases.
+ *
+ * write() writes a file under a unique temporary name in its directory and renames it
+ * when it is complete. The name is created by File.createTempFile(), so several threads
+ * and processes writing the same file never share a temporary file and nobody ever sees
+ * a partial file.
+ */
+final class FileUtils {
+
+    /**
+     * Writes the content of a file.
+     */
+    interface Content {
+
+        /**
+         * Writes the content.
+         *
+         * @param out The buffered stream of the temporary file.
+         */
+        void write(OutputStream out) throws IOException;
+    }
+
+    /**
+     * This class only has static methods.
+     */
+    private FileUtils() {
+    }
+
+    /**
+     * Writes a file under a temporary name and renames it. On errors the temporary file
+     * is deleted and the old file is kept.
+     *
+     * @param file The file.
+     * @param content Writes the content.
+     */
+    static void write(File file, Content content) throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        File temp_file = File.createTempFile(file.getName() + ".", ".tmp", directory);
+        OutputStream out = null;
+        boolean renamed = false;
+
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(temp_file), 65536);
+            content.write(out);
+            out.close();
+            out = null;
+
+            if (!temp_file.renameTo(file)) {
+                throw new IOException("Could not rename " + temp_file + " to " + file);
+            }
+
+            renamed = true;
+        }
+        finally {
+            closeQuietly(out);
+
+            if (!renamed) {
+                temp_file.delete();
+            }
+        }
+    }
+
+    /**
+     * Closes a stream and ignores all errors.
+     *
+     * @param stream The stream or null.
+     */
+    static void closeQuietly(Closeable stream) {
+        if (stream != null) {
+            try {
+                stream.close();
+            }
+            catch (IOException e) {
+                // Nothing we can do.
+            }
+        }
+    }
+}
@@ -0,0 +1,681 @@
+package org.easysok;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class keeps the level being played and its move history on disk, so the game can
+ * be resumed after the app was stopped or killed.
+ *
+ * Every move and undo is appended as one byte to a journal file. The journal is synced
+ * to disk every SYNC_INTERVAL records and on flush(). After snapshot_interval records a
+ * snapshot with the pieces of the map and the history is written and a new journal is
+ * started. Resuming reads the snapshot and replays only the journals written after it,
+ * so it does not depend on the pack or on the number of moves played.
+ *
+ * Each snapshot has a generation and the journal of generation g contains the records
+ * after snapshot g. The snapshot is written under a temporary name and renamed, old
+ * journals are deleted only after that, so a crash at any point loses at most the
+ * records not synced yet. A new session continues after the highest generation found
+ * in the directory, so journals of an earlier session are never taken as newer ones.
+ *
+ * The methods must be called by one thread, syncs and snapshots are written by a
+ * background thread.
+ */
+public class GameSession {
+
+    /**
+     * The default number of journal records between two snapshots.
+     */
+    public static final int DEFAULT_SNAPSHOT_INTERVAL = 1000;
+
+    /**
+     * The number of journal records between two syncs.
+     */
+    public static final int SYNC_INTERVAL = 32;
+
+    /**
+     * The magic number at the start of the snapshot file.
+     */
+    private static final int SNAPSHOT_MAGIC = 0x45535331;
+
+    /**
+     * The magic number at the start of the journal files.
+     */
+    private static final int JOURNAL_MAGIC = 0x45534a31;
+
+    /**
+     * The flag of a move record, which marks a push.
+     */
+    private static final int PUSH = 4;
+
+    /**
+     * The journal record of an undo.
+     */
+    private static final int UNDO = 8;
+
+    /**
+     * The name of the snapshot file.
+     */
+    private static final String SNAPSHOT_NAME = "session.snapshot";
+
+    /**
+     * The directory of the files.
+     */
+    private File directory;
+
+    /**
+     * The name of the pack.
+     */
+    private String pack;
+
+    /**
+     * The number of the level in the pack.
+     */
+    private int level_number;
+
+    /**
+     * The map in its current position.
+     */
+    private Map map;
+
+    /**
+     * The moves done, one byte each with the direction and the PUSH flag.
+     */
+    private byte[] history;
+
+    /**
+     * The number of moves in the history.
+     */
+    private int history_length;
+
+    /**
+     * The generation of the current journal.
+     */
+    private long generation;
+
+    /**
+     * The current journal or null, if writing it failed.
+     */
+    private FileOutputStream journal;
+
+    /**
+     * The number of records written since the last snapshot.
+     */
+    private int records_since_snapshot;
+
+    /**
+     * The number of records written since the last sync.
+     */
+    private int records_since_sync;
+
+    /**
+     * The number of records between two snapshots.
+     */
+    private int snapshot_interval;
+
+    /**
+     * Writes the snapshots and syncs the journals.
+     */
+    private ExecutorService writer;
+
+    /**
+     * Creates a session without a level.
+     *
+     * @param directory The directory for the session files.
+     */
+    public GameSession(File directory) {
+        this.directory = directory;
+        this.history = new byte[256];
+        this.snapshot_interval = DEFAULT_SNAPSHOT_INTERVAL;
+        this.writer = Executors.newSingleThreadExecutor();
+
+        directory.mkdirs();
+        this.generation = findHighestGeneration();
+    }
+
+    /**
+     * Resumes the session stored in the directory.
+     *
+     * @param directory The directory of the session files.
+     * @return The session or null, if there is no stored session.
+     */
+    public static GameSession resume(File directory) throws IOException {
+        File file = new File(directory, SNAPSHOT_NAME);
+
+        if (!file.exists()) {
+            return null;
+        }
+
+        GameSession result = new GameSession(directory);
+        long snapshot_generation;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+        try {
+            snapshot_generation = result.readSnapshot(in);
+        }
+        finally {
+            in.close();
+        }
+
+        // Journals newer than the snapshot exist, if the app was killed before the
+        // snapshot of the next generation was written.
+        for (long act_generation = snapshot_generation; ; ++act_generation) {
+            File journal_file = result.getJournalFile(act_generation);
+
+            if (!journal_file.exists() ||
+                !result.replayJournal(journal_file, act_generation, act_generation == snapshot_generation)) {
+                result.generation = act_generation - 1;
+
+                break;
+            }
+        }
+
+        result.snapshot(true);
+
+        return result;
+    }
+
+    /**
+     * Starts a new level and replaces the stored session.
+     *
+     * @param pack The name of the pack.
+     * @param level_number The number of the level in the pack.
+     * @param map The map in its start position, it is changed by the session.
+     */
+    public void start(String pack, int level_number, Map map) {
+        this.pack = pack;
+        this.level_number = level_number;
+        this.map = map;
+        this.history_length = 0;
+
+        snapshot(false);
+    }
+
+    /**
+     * Sets the number of journal records between two snapshots.
+     *
+     * @param snapshot_interval The number of records.
+     */
+    public void setSnapshotInterval(int snapshot_interval) {
+        this.snapshot_interval = Math.max(1, snapshot_interval);
+    }
+
+    /**
+     * Returns the name of the pack.
+     */
+    public String getPack() {
+        return pack;
+    }
+
+    /**
+     * Returns the number of the level in the pack.
+     */
+    public int getLevelNumber() {
+        return level_number;
+    }
+
+    /**
+     * Returns the map in its current position.
+     */
+    public Map getMap() {
+        return map;
+    }
+
+    /**
+     * Returns the number of moves in the history.
+     */
+    public int getMoves() {
+        return history_length;
+    }
+
+    /**
+     * Returns the moves in the history in lurd format.
+     */
+    public String getLurd() {
+        StringBuilder result = new StringBuilder(history_length);
+
+        for (int i = 0; i < history_length; ++i) {
+            char c = "lrud".charAt(history[i] & 3);
+
+            result.append(((history[i] & PUSH) != 0) ? Character.toUpperCase(c) : c);
+        }
+
+        return result.toString();
+    }
+
+    /**
+     * Moves the keeper and records the move.
+     *
+     * @param direction The direction (0 = left, 1 = right, 2 = up, 3 = down).
+     * @return <code>false</code> if the move is not possible.
+     */
+    public boolean move(int direction) {
+        boolean push = map.containsGem(map.getKeeperIndex() + map.getOffset(direction));
+
+        if (!map.move(direction)) {
+            return false;
+        }
+
+        int record = direction | (push ? PUSH : 0);
+
+        addToHistory(record);
+        writeRecord(record);
+
+        return true;
+    }
+
+    /**
+     * Undoes the last move and records the undo.
+     *
+     * @return <code>false</code> if there is no move to undo.
+     */
+    public boolean undo() {
+        if (history_length == 0) {
+            return false;
+        }
+
+        int record = history[--history_length];
+
+        map.undoMove(record & 3, (record & PUSH) != 0);
+        writeRecord(UNDO);
+
+        return true;
+    }
+
+    /**
+     * Syncs the journal to disk, e.g. when the app is paused.
+     */
+    public void flush() {
+        if (records_since_sync > 0) {
+            sync();
+        }
+    }
+
+    /**
+     * Writes a snapshot, waits for all writes and closes the journal.
+     */
+    public void close() {
+        if (map != null) {
+            snapshot(true);
+        }
+
+        writer.shutdown();
+
+        try {
+            while (!writer.awaitTermination(1, TimeUnit.SECONDS)) {
+                // Keep waiting, the snapshot must be complete.
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        closeJournal();
+    }
+
+    /**
+     * Adds a move record to the history.
+     */
+    private void addToHistory(int record) {
+        if (history_length == history.length) {
+            history = Arrays.copyOf(history, history.length * 2);
+        }
+
+        history[history_length++] = (byte)record;
+    }
+
+    /**
+     * Appends a record to the journal and starts a sync or snapshot, if it is due.
+     */
+    private void writeRecord(int record) {
+        if (journal != null) {
+            try {
+                journal.write(record);
+            }
+            catch (IOException e) {
+                // The next snapshot contains the record.
+                closeJournal();
+            }
+        }
+
+        if (++records_since_snapshot >= snapshot_interval) {
+            snapshot(true);
+        }
+        else if (++records_since_sync >= SYNC_INTERVAL) {
+            sync();
+        }
+    }
+
+    /**
+     * Syncs the current journal in the background.
+     */
+    private void sync() {
+        final FileOutputStream act_journal = journal;
+
+        records_since_sync = 0;
+
+        if (act_journal == null) {
+            return;
+        }
+
+        writer.execute(new Runnable() {
+            public void run() {
+                try {
+                    act_journal.getFD().sync();
+                }
+                catch (IOException e) {
+                    // The journal may have been closed by a snapshot, which is synced itself.
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts the journal of the next generation and writes the snapshot of it in the
+     * background.
+     *
+     * @param continues <code>true</code> if the journal continues the old one, false if
+     *                  it starts a new level.
+     */
+    private void snapshot(boolean continues) {
+        final long new_generation = generation + 1;
+        final FileOutputStream old_journal = journal;
+        final byte[] pieces = new byte[map.getSize()];
+        final byte[] act_history = Arrays.copyOf(history, history_length);
+        final String act_pack = pack;
+        final int act_level_number = level_number;
+        final int width = map.getWith();
+        final int height = map.getHeight();
+
+        for (int i = 0; i < pieces.length; ++i) {
+            pieces[i] = (byte)map.getPiece(i);
+        }
+
+        journal = null;
+        generation = new_generation;
+        records_since_snapshot = 0;
+        records_since_sync = 0;
+
+        try {
+            journal = openJournal(new_generation, continues);
+        }
+        catch (IOException e) {
+            journal = null;
+        }
+
+        writer.execute(new Runnable() {
+            public void run() {
+                FileUtils.closeQuietly(old_journal);
+
+                try {
+                    writeSnapshot(new_generation, act_pack, act_level_number, width, height, pieces,
+                            act_history);
+                    deleteJournalsBefore(new_generation);
+                }
+                catch (IOException e) {
+                    // The old snapshot and journals are still valid.
+                }
+            }
+        });
+    }
+
+    /**
+     * Creates a journal file and writes its header.
+     *
+     * @param act_generation The generation of the journal.
+     * @param continues <code>true</code> if the journal continues the old one.
+     */
+    private FileOutputStream openJournal(long act_generation, boolean continues) throws IOException {
+        FileOutputStream result = new FileOutputStream(getJournalFile(act_generation));
+        DataOutputStream header = new DataOutputStream(result);
+
+        header.writeInt(JOURNAL_MAGIC);
+        header.writeLong(act_generation);
+        header.writeBoolean(continues);
+        header.flush();
+
+        return result;
+    }
+
+    /**
+     * Writes the snapshot under a temporary name, syncs and renames it.
+     */
+    private void writeSnapshot(long act_generation, String act_pack, int act_level_number, int width,
+            int height, byte[] pieces, byte[] act_history) throws IOException {
+        File file = new File(directory, SNAPSHOT_NAME);
+        File temp_file = new File(directory, SNAPSHOT_NAME + ".tmp");
+        FileOutputStream stream = new FileOutputStream(temp_file);
+
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(act_generation);
+            out.writeUTF((act_pack == null) ? "" : act_pack);
+            out.writeInt(act_level_number);
+            out.writeShort(width);
+            out.writeShort(height);
+            out.write(pieces);
+            out.writeInt(act_history.length);
+            out.write(act_history);
+            out.flush();
+            stream.getFD().sync();
+        }
+        finally {
+            stream.close();
+        }
+
+        if (!temp_file.renameTo(file)) {
+            temp_file.delete();
+
+            throw new IOException("Could not rename " + temp_file);
+        }
+    }
+
+    /**
+     * Reads the snapshot.
+     *
+     * @return The generation of the snapshot.
+     */
+    private long readSnapshot(DataInputStream in) throws IOException {
+        if (in.readInt() != SNAPSHOT_MAGIC) {
+            throw new IOException("Invalid session snapshot");
+        }
+
+        long result = in.readLong();
+
+        pack = in.readUTF();
+        level_number = in.readInt();
+
+        int width = in.readShort();
+        int height = in.readShort();
+        int[] pieces = new int[width * height];
+
+        for (int i = 0; i < pieces.length; ++i) {
+            pieces[i] = in.readByte();
+        }
+
+        map = new Map(width, height, pieces);
+        history_length = in.readInt();
+        history = new byte[Math.max(256, history_length)];
+        in.readFully(history, 0, history_length);
+
+        return result;
+    }
+
+    /**
+     * Replays the records of a journal.
+     *
+     * A journal newer than the snapshot is only replayed, if it continues the older
+     * journals. Otherwise it belongs to a new level, whose snapshot was not written.
+     *
+     * @param file The journal file.
+     * @param act_generation The expected generation.
+     * @param first <code>true</code> for the journal of the snapshot.
+     * @return <code>false</code> if the file does not continue the current position.
+     */
+    private boolean replayJournal(File file, long act_generation, boolean first) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+        try {
+            if ((in.readInt() != JOURNAL_MAGIC) || (in.readLong() != act_generation) ||
+                (!in.readBoolean() && !first)) {
+                return false;
+            }
+
+            for (int record = in.read(); record >= 0; record = in.read()) {
+                if (!replayRecord(record)) {
+                    // A broken record, ignore the rest.
+                    break;
+                }
+            }
+
+            return true;
+        }
+        catch (EOFException e) {
+            // The header was not written completely.
+            return false;
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Replays a journal record.
+     *
+     * @return <code>false</code> if the record does not fit the current position.
+     */
+    private boolean replayRecord(int record) {
+        if (record == UNDO) {
+            if (history_length == 0) {
+                return false;
+            }
+
+            int move = history[--history_length];
+
+            map.undoMove(move & 3, (move & PUSH) != 0);
+
+            return true;
+        }
+
+        if (record > (3 | PUSH)) {
+            return false;
+        }
+
+        int direction = record & 3;
+        boolean push = map.containsGem(map.getKeeperIndex() + map.getOffset(direction));
+
+        if ((push != ((record & PUSH) != 0)) || !map.move(direction)) {
+            return false;
+        }
+
+        addToHistory(record);
+
+        return true;
+    }
+
+    /**
+     * Returns the highest generation of the snapshot and the journals in the directory
+     * or 0, if there are none.
+     */
+    private long findHighestGeneration() {
+        long result = 0;
+        String[] names = directory.list();
+
+        if (names != null) {
+            for (String name: names) {
+                result = Math.max(result, getJournalGeneration(name));
+            }
+        }
+
+        File file = new File(directory, SNAPSHOT_NAME);
+
+        if (file.exists()) {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+                try {
+                    if (in.readInt() == SNAPSHOT_MAGIC) {
+                        result = Math.max(result, in.readLong());
+                    }
+                }
+                finally {
+                    in.close();
+                }
+            }
+            catch (IOException e) {
+                // A broken snapshot is replaced by the next one.
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Deletes the journals of generations before the given one.
+     */
+    private void deleteJournalsBefore(long act_generation) {
+        File[] files = directory.listFiles();
+
+        if (files == null) {
+            return;
+        }
+
+        for (File file: files) {
+            long file_generation = getJournalGeneration(file.getName());
+
+            if ((file_generation >= 0) && (file_generation < act_generation)) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Returns the generation of a journal file.
+     *
+     * @param name The file name.
+     * @return The generation or -1, if the file is no journal.
+     */
+    private static long getJournalGeneration(String name) {
+        if (!name.startsWith("session.") || !name.endsWith(".journal")) {
+            return -1;
+        }
+
+        try {
+            return Long.parseLong(name.substring(8, name.length() - 8));
+        }
+        catch (NumberFormatException e) {
+            // Not one of our files.
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the journal file of a generation.
+     */
+    private File getJournalFile(long act_generation) {
+        return new File(directory, "session." + act_generation + ".journal");
+    }
+
+    /**
+     * Closes the current journal.
+     */
+    private void closeJournal() {
+        FileUtils.closeQuietly(journal);
+        journal = null;
+    }
+
+}
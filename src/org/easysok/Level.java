@@ -1,10 +1,17 @@
 package org.easysok;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.regex.Pattern;
 
 /**
  * This class represents a sokoban level (which is a map plus some other properties).
+ *
+ * If the level belongs to a collection, the authors, emails, homepage, copyright and
+ * info are only stored in the level, if they differ from the ones of the collection.
+ * Otherwise the fields are <code>null</code> and the getters return the values of the
+ * collection.
  */
 public class Level {
 
@@ -29,22 +36,27 @@ public class Level {
     private Map map;
 
     /**
-     * The authors.
+     * The collection, which supplies the values of all fields which are null.
+     */
+    private Collection collection;
+
+    /**
+     * The authors or null, if the ones of the collection are used.
      */
     private List<String> authors;
 
     /**
-     * The email addresses of the authors.
+     * The email addresses of the authors or null, if the ones of the collection are used.
      */
     private List<String> emails;
 
     /**
-     * The homepage.
+     * The homepage or null, if the one of the collection is used.
      */
     private String homepage;
 
     /**
-     * The copyright.
+     * The copyright or null, if the one of the collection is used.
      */
     private String copyright;
 
@@ -54,7 +66,7 @@ public class Level {
     private String name;
 
     /**
-     * The additional level info.
+     * The additional level info or null, if the one of the collection is used.
      */
     private String info;
 
@@ -117,11 +129,24 @@ public class Level {
         // compressed_map = CompressedMap(m_map);
         
         getInfo(lines);
+    }
 
-        if (difficulty == -1) {
-            setDifficulty(difficulty);
-        }
+    /**
+     * Constructs the map from a list of lines in xsb format using the defaults of a collection.
+     *
+     * Works like the other constructor for lines, but the author etc. are shared with the
+     * collection and only stored in the level, if the lines contain other information.
+     *
+     * @param lines The list with the lines.
+     * @param collection The collection of the level.
+     */
+    public Level(List<String> lines, Collection collection) {
+        this.map = new Map(lines);
+        this.collection = collection;
+        this.name = "";
+        this.difficulty = collection.getDifficulty();
 
+        getInfo(lines);
     }
 
     /**
@@ -149,7 +174,7 @@ public class Level {
      * Returns the authors of the level.
      */
     public List<String> getAuthors() {
-        return authors;
+        return (authors != null) ? authors : collection.getAuthors();
     }
 
     /**
@@ -157,6 +182,7 @@ public class Level {
      */
     public String getAuthorLine() {
         StringBuilder result = new StringBuilder();
+        List<String> authors = getAuthors();
 
         int number_of_authors = authors.size();
 
@@ -175,7 +201,7 @@ public class Level {
      * Returns the authors and emails in one line, separated by ", ".
      */
     public String getAuthorEmailLine() {
-        return createAuthorEmailLine(authors, emails);
+        return createAuthorEmailLine(getAuthors(), getEmails());
     }
 
     /**
@@ -193,6 +219,8 @@ public class Level {
      * @param author_email_line The line containing (separated by ',') the authors and emails.
      */
     public void setAuthorEmailLine(String author_email_line) {
+        authors = new ArrayList<String>();
+        emails = new ArrayList<String>();
         parseAuthorEmailLine(author_email_line, authors, emails);
     }
 
@@ -200,7 +228,7 @@ public class Level {
      * Returns the email addresses of the authors.
      */
     public List<String> getEmails() {
-        return emails;
+        return (emails != null) ? emails : collection.getEmails();
     }
 
     /**
@@ -216,7 +244,7 @@ public class Level {
      * Returns the homepage of the level.
      */
     public String getHomepage() {
-        return homepage;
+        return (homepage != null) ? homepage : collection.getHomepage();
     }
 
     /**
@@ -232,7 +260,7 @@ public class Level {
      * Returns the copyright the the level.
      */
     public String getCopyright() {
-        return copyright;
+        return (copyright != null) ? copyright : collection.getCopyright();
     }
 
     /**
@@ -264,7 +292,7 @@ public class Level {
      * Returns the additional info for this level.
      */
     public String getInfo() {
-        return info;
+        return (info != null) ? info : collection.getInfo();
     }
 
     /**
@@ -276,6 +304,13 @@ public class Level {
         this.info = info;
     }
 
+    /**
+     * Returns the collection of the level or null, if it does not belong to one.
+     */
+    public Collection getCollection() {
+        return collection;
+    }
+
     /**
      * Returns the difficulty of the level.
      */
@@ -321,40 +356,111 @@ public class Level {
 
     public String toText(List<String> authors, List<String> emails, String homepage,
             String copyright, String info, int difficulty) {
+        StringBuilder result = new StringBuilder();
+
+        try {
+            appendText(result, authors, emails, homepage, copyright, info, difficulty);
+        }
+        catch (IOException e) {
+            // A StringBuilder never throws.
+            throw new RuntimeException(e);
+        }
+
+        return result.toString();
+    }
+
+    /**
+     * Appends the map of the level plus additional info in xsb format.
+     *
+     * Note that only these informations are added, which differ from the ones in
+     * the collection.
+     *
+     * @param out Where to append the level.
+     * @param authors The authors of the collection.
+     * @param emails The email addresses of the authors of the collection.
+     * @param homepage The homepage of the collection.
+     * @param copyright The copyright of the collection.
+     * @param info The info of the collection.
+     * @param difficulty The difficulty of the collection.
+     */
+    public void appendText(Appendable out, List<String> authors, List<String> emails, String homepage,
+            String copyright, String info, int difficulty) throws IOException {
+        appendText(out, authors, emails, homepage, copyright, info, difficulty, false);
+    }
+
+    /**
+     * Appends the map of the level plus additional info in xsb format, with the map
+     * optionally in run length encoding.
+     *
+     * @param out Where to append the level.
+     * @param authors The authors of the collection.
+     * @param emails The email addresses of the authors of the collection.
+     * @param homepage The homepage of the collection.
+     * @param copyright The copyright of the collection.
+     * @param info The info of the collection.
+     * @param difficulty The difficulty of the collection.
+     * @param rle If true, the map is written as one run length encoded line.
+     */
+    public void appendText(Appendable out, List<String> authors, List<String> emails, String homepage,
+            String copyright, String info, int difficulty, boolean rle) throws IOException {
         assert authors.size() == emails.size();
 
-        String result = map.toString();
+        List<String> own_authors = getAuthors();
+        List<String> own_emails = getEmails();
+        String own_homepage = getHomepage();
+        String own_copyright = getCopyright();
+        String own_info = getInfo();
+
+        if (rle) {
+            map.appendRle(out);
+        }
+        else {
+            map.appendText(out);
+        }
 
-        if (((!this.authors.equals(authors)) && !this.authors.isEmpty()) || 
-            ((!this.emails.equals(emails)) && !this.emails.isEmpty())) {
-            result += "Author: " + getAuthorEmailLine() + '\n';
+        if (((!own_authors.equals(authors)) && !own_authors.isEmpty()) || 
+            ((!own_emails.equals(emails)) && !own_emails.isEmpty())) {
+            out.append("Author: ");
+            appendAuthorEmailLine(out, own_authors, own_emails);
+            out.append('\n');
         }
 
-        if ((!this.homepage.equals(homepage)) && !this.homepage.isEmpty()) {
-            result += "Homepage: " + this.homepage + '\n';
+        if ((!own_homepage.equals(homepage)) && !own_homepage.isEmpty()) {
+            out.append("Homepage: ").append(own_homepage).append('\n');
         }
 
-        if ((!this.copyright.equals(copyright)) && !this.copyright.isEmpty()) {
-            result += "Copyright: " + this.copyright + '\n';
+        if ((!own_copyright.equals(copyright)) && !own_copyright.isEmpty()) {
+            out.append("Copyright: ").append(own_copyright).append('\n');
         }
 
         if (!this.name.isEmpty()) {
-            result += "Name: " + this.name + '\n';
+            out.append("Name: ").append(this.name).append('\n');
         }
 
-        if ((!this.info.equals(info)) && !this.info.isEmpty()) {
-            String[] parts = this.info.split("\n");
-            
-            for (String part: parts) {
-                result += "Info: " + part + "\n";
+        if ((!own_info.equals(info)) && !own_info.isEmpty()) {
+            int length = own_info.length();
+            int start = 0;
+
+            // Same as emitting each part of info.split("\n"), without creating the parts.
+            while (length > 0 && own_info.charAt(length - 1) == '\n') {
+                --length;
+            }
+
+            while (start < length) {
+                int end = own_info.indexOf('\n', start);
+
+                if ((end < 0) || (end > length)) {
+                    end = length;
+                }
+
+                out.append("Info: ").append(own_info, start, end).append('\n');
+                start = end + 1;
             }
         }
 
         if (this.difficulty != difficulty) {
-            result += "Difficulty: " + this.difficulty + '\n';
+            out.append("Difficulty: ").append(Integer.toString(this.difficulty)).append('\n');
         }
-
-        return result;
     }
 
     /**
@@ -376,16 +482,15 @@ public class Level {
      */
 
     private void getInfo(List<String> lines) {
-        difficulty = -1;
-
-        boolean had_info = !info.isEmpty();
+        boolean had_info = (info == null) || !info.isEmpty();
 
         while (!lines.isEmpty() && !Map.isMapLine(lines.get(0)) && !lines.get(0).equals("+-+-")) {
             String act_line = lines.get(0);
             lines.remove(0);
 
             if (act_line.startsWith("Author:")) {
-                parseAuthorEmailLine(act_line.substring(7), authors, emails);
+                // Never change the lists given to us, they might be shared.
+                setAuthorEmailLine(act_line.substring(7));
             }
             else if (act_line.startsWith("Homepage:")) {
                 homepage = act_line.substring(9).trim();
@@ -408,10 +513,11 @@ public class Level {
                 info += act_line.substring(5).trim() + '\n';
             }
             else if (act_line.startsWith("Difficulty:")) {
-                difficulty = Integer.parseInt(act_line.substring(11).trim());
-
-                if ((difficulty < 0) || (difficulty > 10)) {
-                    difficulty = -1;
+                try {
+                    setDifficulty(Integer.parseInt(act_line.substring(11).trim()));
+                }
+                catch (NumberFormatException e) {
+                    setDifficulty(-1);
                 }
             }
         }
@@ -455,31 +561,49 @@ public class Level {
      * @param emails The emails.
      */
     public static String createAuthorEmailLine(List<String> authors, List<String> emails) {
-        assert authors.size() == emails.size();
-
         StringBuilder result = new StringBuilder();
 
+        try {
+            appendAuthorEmailLine(result, authors, emails);
+        }
+        catch (IOException e) {
+            // A StringBuilder never throws.
+            throw new RuntimeException(e);
+        }
+
+        return result.toString();
+    }
+
+    /**
+     * Appends the author-email-line.
+     *
+     * @param out Where to append the line.
+     * @param authors The authors.
+     * @param emails The emails.
+     */
+    public static void appendAuthorEmailLine(Appendable out, List<String> authors, List<String> emails)
+            throws IOException {
+        assert authors.size() == emails.size();
+
         for (int i = 0; i < authors.size(); ++i) {
             if (i != 0) {
-                result.append(", ");
+                out.append(", ");
             }
-            
-            result.append(authors.get(i));
+
+            out.append(authors.get(i));
 
             if (!emails.get(i).isEmpty()) {
-                result.append(" <");
-                result.append(emails.get(i));
-                result.append('>');
+                out.append(" <");
+                out.append(emails.get(i));
+                out.append('>');
             }
         }
-
-        return result.toString();
     }
     
     /**
      * Returns the level as a string.
      */
     public String toString() {
-        return toText(authors, emails, homepage, copyright, info, difficulty);
+        return toText(getAuthors(), getEmails(), getHomepage(), getCopyright(), getInfo(), difficulty);
     }
 }
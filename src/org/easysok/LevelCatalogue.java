@@ -0,0 +1,556 @@
+package org.easysok;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * This class is a catalogue of the level packs in a directory, which stays current while
+ * packs are added, changed and removed.
+ *
+ * Each pack is fingerprinted with a 64 bit FNV-1a hash of its content. A file with the
+ * same size and modification time is not read again and a file with the same hash is not
+ * parsed again, so only new and changed packs are parsed and their levels validated.
+ * Each pack has its own LevelIndex, which is built when the pack is parsed, and the
+ * index of the catalogue combines them, so a change only indexes the changed packs
+ * again. The indexes share one string pool, so authors are interned across all packs.
+ * AnalysisCache and the disk cache of ThumbnailCache are keyed by map hashes, so their
+ * entries stay valid and only the levels of the changed packs have to be passed to
+ * them again.
+ *
+ * The directory is watched with a FileObserver. The events are collected for DELAY
+ * milliseconds, so a file being copied is read once it is complete, and handled on a
+ * background thread. The listener is called on the UI thread.
+ */
+public class LevelCatalogue {
+
+    /**
+     * Is informed about changes of the catalogue.
+     */
+    public interface Listener {
+
+        /**
+         * Is called after packs were added, changed or removed.
+         *
+         * @param index The new index of all levels.
+         * @param changed The file names of the new and changed packs.
+         * @param removed The file names of the removed packs.
+         */
+        void onCatalogueChanged(LevelIndex index, List<String> changed, List<String> removed);
+    }
+
+    /**
+     * The time in milliseconds, for which file events are collected.
+     */
+    public static final long DELAY = 500;
+
+    /**
+     * The file events, which may change a pack.
+     */
+    private static final int EVENTS = FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO |
+            FileObserver.MOVED_FROM | FileObserver.DELETE;
+
+    /**
+     * A pack read from a file.
+     */
+    private static class Pack {
+
+        /**
+         * The size of the file.
+         */
+        final long length;
+
+        /**
+         * The modification time of the file.
+         */
+        final long last_modified;
+
+        /**
+         * The hash of the content.
+         */
+        final long fingerprint;
+
+        /**
+         * The collection with the levels.
+         */
+        final Collection collection;
+
+        /**
+         * The validity of each level (see Map.validity()).
+         */
+        final byte[] validities;
+
+        /**
+         * The index of the levels.
+         */
+        final LevelIndex index;
+
+        /**
+         * Creates a pack.
+         */
+        Pack(long length, long last_modified, long fingerprint, Collection collection, byte[] validities,
+                LevelIndex index) {
+            this.length = length;
+            this.last_modified = last_modified;
+            this.fingerprint = fingerprint;
+            this.collection = collection;
+            this.validities = validities;
+            this.index = index;
+        }
+    }
+
+    /**
+     * The watched directory.
+     */
+    private File directory;
+
+    /**
+     * The encoding of the text packs.
+     */
+    private String encoding;
+
+    /**
+     * The listener or null.
+     */
+    private Listener listener;
+
+    /**
+     * Posts the listener calls to the UI thread.
+     */
+    private Handler handler;
+
+    /**
+     * The thread updating the catalogue.
+     */
+    private ScheduledExecutorService executor;
+
+    /**
+     * The observer of the directory or null, if it is not watched.
+     */
+    private FileObserver observer;
+
+    /**
+     * The packs by file name, sorted by name.
+     */
+    private TreeMap<String, Pack> packs;
+
+    /**
+     * The file names with events, which are not handled yet.
+     */
+    private HashSet<String> pending;
+
+    /**
+     * True, if an update of the pending files is scheduled.
+     */
+    private boolean update_scheduled;
+
+    /**
+     * Makes sure only one update runs at a time.
+     */
+    private final Object update_lock;
+
+    /**
+     * The index of all levels.
+     */
+    private volatile LevelIndex index;
+
+    /**
+     * The pool of the strings interned by the indexes of all packs, only used while
+     * update_lock is held.
+     */
+    private HashMap<String, String> strings;
+
+    /**
+     * Creates an empty catalogue, call rescan() or startWatching() to read the packs.
+     *
+     * @param directory The directory of the packs, it is created if it does not exist.
+     * @param encoding The encoding of the text packs, e.g. "ISO-8859-1".
+     */
+    public LevelCatalogue(File directory, String encoding) {
+        this.directory = directory;
+        this.encoding = encoding;
+        this.handler = new Handler(Looper.getMainLooper());
+        this.packs = new TreeMap<String, Pack>();
+        this.pending = new HashSet<String>();
+        this.update_lock = new Object();
+        this.strings = new HashMap<String, String>();
+        this.index = LevelIndex.combine(new ArrayList<LevelIndex>());
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread result = new Thread(runnable, "LevelCatalogue");
+
+                result.setDaemon(true);
+
+                return result;
+            }
+        });
+
+        directory.mkdirs();
+    }
+
+    /**
+     * Sets the listener.
+     *
+     * @param listener The listener or null.
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Starts watching the directory and reads all packs in the background.
+     */
+    public synchronized void startWatching() {
+        if (observer != null) {
+            return;
+        }
+
+        observer = new FileObserver(directory.getPath(), EVENTS) {
+            public void onEvent(int event, String path) {
+                if ((path != null) && isPackFile(path)) {
+                    schedule(path);
+                }
+            }
+        };
+        observer.startWatching();
+
+        executor.execute(new Runnable() {
+            public void run() {
+                rescan();
+            }
+        });
+    }
+
+    /**
+     * Stops watching the directory.
+     */
+    public synchronized void stopWatching() {
+        if (observer != null) {
+            observer.stopWatching();
+            observer = null;
+        }
+    }
+
+    /**
+     * Stops watching and the background thread.
+     */
+    public void shutdown() {
+        stopWatching();
+        executor.shutdownNow();
+    }
+
+    /**
+     * Returns the index of all levels. It is replaced after each change, so it can be
+     * used without locks.
+     */
+    public LevelIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Returns the file names of the packs, sorted by name.
+     */
+    public synchronized List<String> getPackNames() {
+        return new ArrayList<String>(packs.keySet());
+    }
+
+    /**
+     * Returns a pack.
+     *
+     * @param file_name The file name of the pack.
+     * @return The pack or null, if there is no such pack.
+     */
+    public synchronized Collection getPack(String file_name) {
+        Pack pack = packs.get(file_name);
+
+        return (pack == null) ? null : pack.collection;
+    }
+
+    /**
+     * Returns the validity of a level, which was calculated when the pack was read.
+     *
+     * @param file_name The file name of the pack.
+     * @param level The index of the level in the pack.
+     */
+    public synchronized int getValidity(String file_name, int level) {
+        return packs.get(file_name).validities[level];
+    }
+
+    /**
+     * Returns the hash of the content of a pack.
+     *
+     * @param file_name The file name of the pack.
+     */
+    public synchronized long getFingerprint(String file_name) {
+        return packs.get(file_name).fingerprint;
+    }
+
+    /**
+     * Checks all files of the directory and reads the new and changed ones.
+     *
+     * @return The number of packs, which were parsed.
+     */
+    public int rescan() {
+        HashSet<String> names = new HashSet<String>();
+        String[] files = directory.list();
+
+        if (files != null) {
+            for (String name: files) {
+                if (isPackFile(name)) {
+                    names.add(name);
+                }
+            }
+        }
+
+        synchronized (this) {
+            names.addAll(packs.keySet());
+        }
+
+        return update(names);
+    }
+
+    /**
+     * Returns <code>true</code> if the file name has the extension of a pack (.xsb, .txt,
+     * .sok or .slc).
+     *
+     * @param name The file name.
+     */
+    public static boolean isPackFile(String name) {
+        String lower = name.toLowerCase(Locale.US);
+
+        return lower.endsWith(".xsb") || lower.endsWith(".txt") || lower.endsWith(".sok") ||
+               lower.endsWith(".slc");
+    }
+
+    /**
+     * Schedules the update of a file after DELAY, events of other files until then are
+     * handled together.
+     *
+     * @param name The file name.
+     */
+    private synchronized void schedule(String name) {
+        pending.add(name);
+
+        if (update_scheduled) {
+            return;
+        }
+
+        update_scheduled = true;
+        executor.schedule(new Runnable() {
+            public void run() {
+                HashSet<String> names;
+
+                synchronized (LevelCatalogue.this) {
+                    names = pending;
+                    pending = new HashSet<String>();
+                    update_scheduled = false;
+                }
+
+                update(names);
+            }
+        }, DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Reads the changed packs of the given files, removes the packs of missing files and
+     * updates the index, if anything changed.
+     *
+     * @param names The file names.
+     * @return The number of packs, which were parsed.
+     */
+    private int update(Set<String> names) {
+        synchronized (update_lock) {
+            ArrayList<String> changed = new ArrayList<String>();
+            ArrayList<String> removed = new ArrayList<String>();
+
+            for (String name: names) {
+                File file = new File(directory, name);
+                Pack old_pack;
+
+                synchronized (this) {
+                    old_pack = packs.get(name);
+                }
+
+                if (!file.isFile()) {
+                    if (old_pack != null) {
+                        synchronized (this) {
+                            packs.remove(name);
+                        }
+
+                        removed.add(name);
+                    }
+
+                    continue;
+                }
+
+                long length = file.length();
+                long last_modified = file.lastModified();
+
+                if ((old_pack != null) && (old_pack.length == length) && (old_pack.last_modified == last_modified)) {
+                    continue;
+                }
+
+                Pack new_pack;
+
+                try {
+                    byte[] content = readFile(file);
+                    long fingerprint = fingerprint(content);
+
+                    if ((old_pack != null) && (old_pack.fingerprint == fingerprint)) {
+                        // Only touched, the levels stay the same.
+                        new_pack = new Pack(length, last_modified, fingerprint, old_pack.collection,
+                                old_pack.validities, old_pack.index);
+                    }
+                    else {
+                        new_pack = parse(name, content, length, last_modified, fingerprint);
+                        changed.add(name);
+                    }
+                }
+                catch (IOException e) {
+                    // The file may still be written, the next event reads it again.
+                    continue;
+                }
+
+                synchronized (this) {
+                    packs.put(name, new_pack);
+                }
+            }
+
+            if (!changed.isEmpty() || !removed.isEmpty()) {
+                updateIndex();
+                notifyListener(changed, removed);
+            }
+
+            return changed.size();
+        }
+    }
+
+    /**
+     * Parses a pack, validates its levels and builds their index.
+     */
+    private Pack parse(String name, byte[] content, long length, long last_modified, long fingerprint)
+            throws IOException {
+        int dot = name.lastIndexOf('.');
+        String pack_name = (dot > 0) ? name.substring(0, dot) : name;
+        InputStream in = new ByteArrayInputStream(content);
+        Collection collection;
+
+        if (name.toLowerCase(Locale.US).endsWith(".slc")) {
+            SlcReader reader = new SlcReader(in, null, pack_name);
+
+            collection = reader.getCollection();
+
+            for (Level level = reader.next(); level != null; level = reader.next()) {
+                collection.getLevels().add(level);
+            }
+        }
+        else {
+            collection = Collection.read(in, encoding, pack_name);
+        }
+
+        List<Level> levels = collection.getLevels();
+        byte[] validities = new byte[levels.size()];
+        LevelIndex pack_index = new LevelIndex(strings);
+
+        for (int i = 0; i < validities.length; ++i) {
+            validities[i] = (byte)levels.get(i).getMap().validity();
+            pack_index.addLevel(levels.get(i), collection.getName());
+        }
+
+        pack_index.build();
+
+        return new Pack(length, last_modified, fingerprint, collection, validities, pack_index);
+    }
+
+    /**
+     * Combines the indexes of all packs into a new index, the levels are not indexed
+     * again.
+     */
+    private void updateIndex() {
+        ArrayList<LevelIndex> pack_indexes = new ArrayList<LevelIndex>();
+
+        synchronized (this) {
+            for (Pack pack: packs.values()) {
+                pack_indexes.add(pack.index);
+            }
+        }
+
+        index = LevelIndex.combine(pack_indexes);
+    }
+
+    /**
+     * Calls the listener on the UI thread.
+     */
+    private void notifyListener(final List<String> changed, final List<String> removed) {
+        final LevelIndex act_index = index;
+
+        handler.post(new Runnable() {
+            public void run() {
+                Listener act_listener = listener;
+
+                if (act_listener != null) {
+                    act_listener.onCatalogueChanged(act_index, Collections.unmodifiableList(changed),
+                            Collections.unmodifiableList(removed));
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads a whole file.
+     */
+    private static byte[] readFile(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+
+        try {
+            byte[] result = new byte[(int)file.length()];
+            int length = 0;
+
+            while (length < result.length) {
+                int read = in.read(result, length, result.length - length);
+
+                if (read < 0) {
+                    throw new IOException("File " + file + " was truncated while reading");
+                }
+
+                length += read;
+            }
+
+            return result;
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns the 64 bit FNV-1a hash of the content.
+     */
+    private static long fingerprint(byte[] content) {
+        long result = 0xcbf29ce484222325L;
+
+        for (byte b: content) {
+            result = (result ^ (b & 0xff)) * 0x100000001b3L;
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,541 @@
+package org.easysok;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class generates random sokoban levels.
+ *
+ * A level is created by carving a random room out of a block of walls, putting the gems
+ * on randomly chosen goals and then playing the level backwards: the keeper walks around
+ * and pulls gems away from the goals. Because every pull can be undone by a push, the
+ * resulting map is always solvable.
+ *
+ * The candidates are generated in parallel, but each candidate only depends on the seed
+ * and its own number, so the same seed always gives the same levels.
+ */
+public class LevelGenerator {
+
+    /**
+     * The number of tries to create a single candidate before giving up.
+     */
+    private static final int MAX_TRIES = 20;
+
+    /**
+     * The offsets for going left, right, up and down on a map with the given width
+     * are {-1, 1, -width, width}, so we only store the direction here.
+     */
+    private static final int DIRECTIONS = 4;
+
+    /**
+     * The width of the generated maps.
+     */
+    private int width;
+
+    /**
+     * The height of the generated maps.
+     */
+    private int height;
+
+    /**
+     * The number of gems of the generated maps.
+     */
+    private int gems;
+
+    /**
+     * The number of random keeper steps when playing backwards.
+     */
+    private int steps;
+
+    /**
+     * The seed of the generator.
+     */
+    private long seed;
+
+    /**
+     * The number of threads to use.
+     */
+    private int threads;
+
+    /**
+     * A generated level together with its score.
+     */
+    public static class Candidate {
+
+        /**
+         * The number of the candidate.
+         */
+        private final int number;
+
+        /**
+         * The generated map.
+         */
+        private final Map map;
+
+        /**
+         * The number of pushes of the (not necessarily optimal) generated solution.
+         */
+        private final int pushes;
+
+        /**
+         * The sum of the distances the gems were moved from their goals.
+         */
+        private final int push_distance;
+
+        /**
+         * The number of dead fields next to the paths of the gems.
+         */
+        private final int deadlock_complexity;
+
+        /**
+         * Creates the candidate.
+         *
+         * @param number The number of the candidate.
+         * @param map The generated map.
+         * @param pushes The number of pushes of the generated solution.
+         * @param push_distance The sum of the distances the gems were moved.
+         * @param deadlock_complexity The number of dead fields next to the gem paths.
+         */
+        Candidate(int number, Map map, int pushes, int push_distance, int deadlock_complexity) {
+            this.number = number;
+            this.map = map;
+            this.pushes = pushes;
+            this.push_distance = push_distance;
+            this.deadlock_complexity = deadlock_complexity;
+        }
+
+        /**
+         * Returns the number of the candidate.
+         */
+        public int getNumber() {
+            return number;
+        }
+
+        /**
+         * Returns the generated map.
+         */
+        public Map getMap() {
+            return map;
+        }
+
+        /**
+         * Returns the number of pushes of the generated solution.
+         */
+        public int getPushes() {
+            return pushes;
+        }
+
+        /**
+         * Returns the sum of the distances the gems were moved away from their goals.
+         */
+        public int getPushDistance() {
+            return push_distance;
+        }
+
+        /**
+         * Returns the number of dead fields the gems had to pass.
+         */
+        public int getDeadlockComplexity() {
+            return deadlock_complexity;
+        }
+
+        /**
+         * Returns the score of the candidate, higher is better.
+         */
+        public int getScore() {
+            return pushes + 2 * push_distance + 3 * deadlock_complexity;
+        }
+    }
+
+    /**
+     * Creates a new level generator.
+     *
+     * @param width The width of the generated maps (at least 5).
+     * @param height The height of the generated maps (at least 5).
+     * @param gems The number of gems.
+     * @param seed The seed for the random number generator.
+     */
+    public LevelGenerator(int width, int height, int gems, long seed) {
+        assert width >= 5;
+        assert height >= 5;
+        assert width < 128;
+        assert height < 128;
+        assert gems > 0;
+
+        this.width = width;
+        this.height = height;
+        this.gems = gems;
+        this.seed = seed;
+        this.steps = 50 * width * height;
+        this.threads = Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Sets the number of random keeper steps when playing backwards.
+     *
+     * @param steps The number of steps.
+     */
+    public void setSteps(int steps) {
+        this.steps = steps;
+    }
+
+    /**
+     * Sets the number of threads used by generate().
+     *
+     * @param threads The number of threads.
+     */
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Generates the given number of candidates and returns the best ones.
+     *
+     * @param candidates The number of candidates to generate.
+     * @param keep The number of candidates to return.
+     * @return The best candidates, sorted by descending score.
+     */
+    public List<Candidate> generate(int candidates, int keep) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Candidate>> futures = new ArrayList<Future<Candidate>>(candidates);
+
+        try {
+            for (int i = 0; i < candidates; ++i) {
+                final int number = i;
+
+                futures.add(executor.submit(new Callable<Candidate>() {
+                    public Candidate call() {
+                        return generateCandidate(number);
+                    }
+                }));
+            }
+
+            List<Candidate> result = new ArrayList<Candidate>();
+
+            for (Future<Candidate> future: futures) {
+                Candidate candidate = future.get();
+
+                if (candidate != null) {
+                    result.add(candidate);
+                }
+            }
+
+            Collections.sort(result, new Comparator<Candidate>() {
+                public int compare(Candidate lhs, Candidate rhs) {
+                    if (lhs.getScore() != rhs.getScore()) {
+                        return rhs.getScore() - lhs.getScore();
+                    }
+
+                    return lhs.getNumber() - rhs.getNumber();
+                }
+            });
+
+            if (result.size() > keep) {
+                return new ArrayList<Candidate>(result.subList(0, keep));
+            }
+
+            return result;
+        }
+        catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Generates the given number of candidates and returns the best ones as levels.
+     *
+     * @param candidates The number of candidates to generate.
+     * @param keep The number of levels to return.
+     * @param name_prefix The prefix for the level names (the number of the candidate is appended).
+     */
+    public List<Level> generateLevels(int candidates, int keep, String name_prefix)
+            throws InterruptedException {
+        List<Level> result = new ArrayList<Level>();
+
+        for (Candidate candidate: generate(candidates, keep)) {
+            result.add(new Level(candidate.getMap(), new ArrayList<String>(), new ArrayList<String>(),
+                    "", "", name_prefix + (candidate.getNumber() + 1), "", -1));
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the levels in xsb format.
+     *
+     * @param levels The levels.
+     */
+    public static String toText(List<Level> levels) {
+        List<String> no_authors = new ArrayList<String>();
+        List<String> no_emails = new ArrayList<String>();
+        StringWriter result = new StringWriter();
+        LevelWriter writer = new LevelWriter(result);
+
+        try {
+            writer.writeAll(levels, no_authors, no_emails, "", "", "", -1);
+            writer.flush();
+        }
+        catch (IOException e) {
+            // A StringWriter never throws.
+            throw new RuntimeException(e);
+        }
+
+        return result.toString();
+    }
+
+    /**
+     * Generates a single candidate.
+     *
+     * This only depends on the seed of the generator and the given number.
+     *
+     * @param number The number of the candidate.
+     * @return The candidate or null, if no valid map could be created.
+     */
+    Candidate generateCandidate(int number) {
+        Random random = new Random(mixSeed(seed, number));
+
+        for (int i = 0; i < MAX_TRIES; ++i) {
+            Candidate candidate = tryCandidate(number, random);
+
+            if (candidate != null) {
+                return candidate;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Tries to create a single candidate.
+     *
+     * @param number The number of the candidate.
+     * @param random The random number generator to use.
+     * @return The candidate or null, if this try failed.
+     */
+    private Candidate tryCandidate(int number, Random random) {
+        int size = width * height;
+        int[] offsets = new int[] {-1, 1, -width, width};
+        boolean[] floor = createRoom(random);
+        int floor_count = 0;
+
+        for (int i = 0; i < size; ++i) {
+            if (floor[i]) {
+                ++floor_count;
+            }
+        }
+
+        if (floor_count < 2 * gems + 4) {
+            return null;
+        }
+
+        boolean[] goal = new boolean[size];
+        boolean[] gem = new boolean[size];
+        int[] gem_start = new int[size];
+        Arrays.fill(gem_start, -1);
+
+        for (int placed = 0; placed < gems; ) {
+            int index = randomFloor(floor, floor_count, random);
+
+            if (!goal[index]) {
+                goal[index] = true;
+                gem[index] = true;
+                gem_start[index] = index;
+                ++placed;
+            }
+        }
+
+        int keeper = randomFloor(floor, floor_count, random);
+
+        while (gem[keeper]) {
+            keeper = randomFloor(floor, floor_count, random);
+        }
+
+        // Play backwards. A gem at keeper - offset is pulled to keeper, when the keeper moves
+        // to keeper + offset.
+        int pushes = 0;
+        boolean[] visited = new boolean[size];
+
+        for (int i = 0; i < steps; ++i) {
+            int direction = random.nextInt(DIRECTIONS);
+            int target = keeper + offsets[direction];
+
+            if (!floor[target] || gem[target]) {
+                continue;
+            }
+
+            int behind = keeper - offsets[direction];
+
+            if (gem[behind] && random.nextBoolean()) {
+                gem[behind] = false;
+                gem[keeper] = true;
+                gem_start[keeper] = gem_start[behind];
+                gem_start[behind] = -1;
+                visited[keeper] = true;
+                ++pushes;
+            }
+
+            keeper = target;
+        }
+
+        int[] pieces = new int[size];
+        int push_distance = 0;
+        boolean all_on_goals = true;
+
+        for (int i = 0; i < size; ++i) {
+            if (!floor[i]) {
+                pieces[i] = Map.WALL;
+            }
+            else if (gem[i]) {
+                pieces[i] = goal[i] ? Map.GEM_ON_GOAL : Map.GEM;
+                all_on_goals &= goal[i];
+                int start = gem_start[i];
+                push_distance += Math.abs(start % width - i % width) + Math.abs(start / width - i / width);
+            }
+            else if (i == keeper) {
+                pieces[i] = goal[i] ? Map.KEEPER_ON_GOAL : Map.KEEPER;
+            }
+            else {
+                pieces[i] = goal[i] ? Map.GOAL : Map.EMPTY;
+            }
+        }
+
+        if (all_on_goals) {
+            return null;
+        }
+
+        Map map = new Map(width, height, pieces);
+
+        if (!map.isValid()) {
+            return null;
+        }
+
+        int deadlock_complexity = 0;
+
+        for (int i = 0; i < size; ++i) {
+            if (visited[i]) {
+                for (int j = 0; j < DIRECTIONS; ++j) {
+                    int neighbour = i + offsets[j];
+
+                    if (floor[neighbour] && !goal[neighbour] && isCorner(floor, neighbour, offsets)) {
+                        ++deadlock_complexity;
+                    }
+                }
+            }
+        }
+
+        return new Candidate(number, map, pushes, push_distance, deadlock_complexity);
+    }
+
+    /**
+     * Creates a random connected room surrounded by walls.
+     *
+     * @param random The random number generator to use.
+     * @return For each field, if it is a floor field.
+     */
+    private boolean[] createRoom(Random random) {
+        boolean[] floor = new boolean[width * height];
+        int inner_width = width - 2;
+        int inner_height = height - 2;
+        int target = inner_width * inner_height * (55 + random.nextInt(20)) / 100;
+        int x = 1 + random.nextInt(inner_width);
+        int y = 1 + random.nextInt(inner_height);
+        int carved = 0;
+
+        // A random walk, which carves small blocks, keeps the room connected.
+        for (int i = 0; (carved < target) && (i < 100 * target); ++i) {
+            int block_width = 1 + random.nextInt(2);
+            int block_height = 1 + random.nextInt(2);
+
+            for (int by = y; by < Math.min(y + block_height, height - 1); ++by) {
+                for (int bx = x; bx < Math.min(x + block_width, width - 1); ++bx) {
+                    if (!floor[bx + by * width]) {
+                        floor[bx + by * width] = true;
+                        ++carved;
+                    }
+                }
+            }
+
+            switch (random.nextInt(DIRECTIONS)) {
+            case 0:
+                x = Math.max(1, x - 1);
+                break;
+            case 1:
+                x = Math.min(width - 2, x + 1);
+                break;
+            case 2:
+                y = Math.max(1, y - 1);
+                break;
+            default:
+                y = Math.min(height - 2, y + 1);
+                break;
+            }
+        }
+
+        return floor;
+    }
+
+    /**
+     * Returns the index of a random floor field.
+     *
+     * @param floor For each field, if it is a floor field.
+     * @param floor_count The number of floor fields.
+     * @param random The random number generator to use.
+     */
+    private static int randomFloor(boolean[] floor, int floor_count, Random random) {
+        int skip = random.nextInt(floor_count);
+
+        for (int i = 0; i < floor.length; ++i) {
+            if (floor[i]) {
+                if (skip == 0) {
+                    return i;
+                }
+
+                --skip;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Returns <code>true</code> if the field is a corner, so a gem can not be moved away from it.
+     *
+     * @param floor For each field, if it is a floor field.
+     * @param index The index of the field.
+     * @param offsets The offsets to go left, right, up and down.
+     */
+    private static boolean isCorner(boolean[] floor, int index, int[] offsets) {
+        boolean horizontal = !floor[index + offsets[0]] || !floor[index + offsets[1]];
+        boolean vertical = !floor[index + offsets[2]] || !floor[index + offsets[3]];
+
+        return horizontal && vertical;
+    }
+
+    /**
+     * Mixes the seed and the candidate number into a seed for the candidate.
+     *
+     * @param seed The seed of the generator.
+     * @param number The number of the candidate.
+     */
+    private static long mixSeed(long seed, int number) {
+        long result = seed + 0x9e3779b97f4a7c15L * (number + 1);
+        result = (result ^ (result >>> 30)) * 0xbf58476d1ce4e5b9L;
+        result = (result ^ (result >>> 27)) * 0x94d049bb133111ebL;
+
+        return result ^ (result >>> 31);
+    }
+}
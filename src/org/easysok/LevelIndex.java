@@ -0,0 +1,585 @@
+package org.easysok;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * This class is a searchable catalogue of the levels of several collections.
+ *
+ * The author and email strings of all added levels are interned, so levels of the same
+ * author share the same strings. Indexes created with the same string pool share their
+ * strings too. For each field an inverted index maps the lower case tokens to the
+ * sorted ids of the levels containing them. After build() the index only consists of a
+ * sorted token array and primitive int arrays.
+ *
+ * Typical usage is adding all levels, calling build() and then searching with find(),
+ * e.g. <code>find(FIELD_AUTHOR, "david holland", false)</code>.
+ *
+ * Built indexes can be combined with combine() without copying them, so the index of
+ * several collections can be updated by indexing only a changed collection again.
+ */
+public class LevelIndex {
+
+    /**
+     * The authors of the level.
+     */
+    public static final int FIELD_AUTHOR = 0;
+
+    /**
+     * The email addresses of the authors.
+     */
+    public static final int FIELD_EMAIL = 1;
+
+    /**
+     * The name of the level.
+     */
+    public static final int FIELD_NAME = 2;
+
+    /**
+     * The additional info of the level.
+     */
+    public static final int FIELD_INFO = 3;
+
+    /**
+     * The name of the collection of the level.
+     */
+    public static final int FIELD_COLLECTION = 4;
+
+    /**
+     * Search in all fields.
+     */
+    public static final int FIELD_ALL = 5;
+
+    /**
+     * The number of fields (without FIELD_ALL).
+     */
+    private static final int FIELDS = 5;
+
+    /**
+     * An empty result.
+     */
+    private static final int[] NO_LEVELS = new int[0];
+
+    /**
+     * The indexed levels, the id of a level is its position.
+     */
+    private List<Level> levels;
+
+    /**
+     * The collection names of the indexed levels.
+     */
+    private List<String> collections;
+
+    /**
+     * The pool of the interned strings, which may be shared with other indexes, or null
+     * after build().
+     */
+    private HashMap<String, String> strings;
+
+    /**
+     * For each field the postings, while the index is being built.
+     */
+    private List<HashMap<String, IntList>> raw_postings;
+
+    /**
+     * For each field the sorted tokens.
+     */
+    private String[][] tokens;
+
+    /**
+     * For each field and token the sorted ids of the levels.
+     */
+    private int[][][] postings;
+
+    /**
+     * The combined indexes or null, if this index contains the levels itself.
+     */
+    private LevelIndex[] parts;
+
+    /**
+     * The id of the first level of each combined index, followed by the number of
+     * levels.
+     */
+    private int[] part_offsets;
+
+    /**
+     * A growable array of ints.
+     */
+    private static class IntList {
+
+        /**
+         * The values.
+         */
+        private int[] values = new int[4];
+
+        /**
+         * The number of values.
+         */
+        private int size;
+
+        /**
+         * Appends the value, if it is not the same as the last one.
+         *
+         * @param value The value.
+         */
+        void addUnique(int value) {
+            if ((size > 0) && (values[size - 1] == value)) {
+                return;
+            }
+
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+
+            values[size++] = value;
+        }
+
+        /**
+         * Returns the values as an array of exactly the right size.
+         */
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+    /**
+     * Creates an empty index.
+     */
+    public LevelIndex() {
+        this(new HashMap<String, String>());
+    }
+
+    /**
+     * Creates an empty index, which interns its strings in the given pool. The pool
+     * must only be used by one thread at a time.
+     *
+     * @param strings The pool of the interned strings.
+     */
+    public LevelIndex(HashMap<String, String> strings) {
+        levels = new ArrayList<Level>();
+        collections = new ArrayList<String>();
+        this.strings = strings;
+        raw_postings = new ArrayList<HashMap<String, IntList>>(FIELDS);
+
+        for (int i = 0; i < FIELDS; ++i) {
+            raw_postings.add(new HashMap<String, IntList>());
+        }
+    }
+
+    /**
+     * Returns an index of the levels of several built indexes. The ids of the levels of
+     * each index follow the ones of the previous indexes. The indexes are not copied,
+     * so this costs O(number of indexes).
+     *
+     * @param indexes The built indexes.
+     */
+    public static LevelIndex combine(List<LevelIndex> indexes) {
+        LevelIndex result = new LevelIndex();
+
+        result.parts = indexes.toArray(new LevelIndex[indexes.size()]);
+        result.part_offsets = new int[result.parts.length + 1];
+
+        for (int i = 0; i < result.parts.length; ++i) {
+            assert result.parts[i].isBuilt() : "the index is not built";
+
+            result.part_offsets[i + 1] = result.part_offsets[i] + result.parts[i].size();
+        }
+
+        result.raw_postings = null;
+        result.strings = null;
+
+        return result;
+    }
+
+    /**
+     * Adds a level to the index.
+     *
+     * The author and email lists returned by the level are changed in place, their
+     * strings are replaced by interned ones. If the level uses the defaults of its
+     * collection, these are the lists of the collection.
+     *
+     * @param level The level to add.
+     * @param collection The name of the collection of the level.
+     * @return The id of the level.
+     */
+    public int addLevel(Level level, String collection) {
+        assert !isBuilt() : "the index is already built";
+
+        int id = levels.size();
+        collection = intern(collection);
+
+        levels.add(level);
+        collections.add(collection);
+
+        internAll(level.getAuthors());
+        internAll(level.getEmails());
+
+        for (String author: level.getAuthors()) {
+            addTokens(FIELD_AUTHOR, author, id);
+        }
+
+        for (String email: level.getEmails()) {
+            addTokens(FIELD_EMAIL, email, id);
+        }
+
+        addTokens(FIELD_NAME, level.getName(), id);
+        addTokens(FIELD_INFO, level.getInfo(), id);
+        addTokens(FIELD_COLLECTION, collection, id);
+
+        return id;
+    }
+
+    /**
+     * Builds the compact index.
+     *
+     * After this no more levels can be added.
+     */
+    public void build() {
+        tokens = new String[FIELDS][];
+        postings = new int[FIELDS][][];
+
+        for (int field = 0; field < FIELDS; ++field) {
+            HashMap<String, IntList> field_postings = raw_postings.get(field);
+            String[] field_tokens = field_postings.keySet().toArray(new String[field_postings.size()]);
+            Arrays.sort(field_tokens);
+
+            int[][] field_ids = new int[field_tokens.length][];
+
+            for (int i = 0; i < field_tokens.length; ++i) {
+                field_ids[i] = field_postings.get(field_tokens[i]).toArray();
+            }
+
+            tokens[field] = field_tokens;
+            postings[field] = field_ids;
+        }
+
+        raw_postings = null;
+        strings = null;
+    }
+
+    /**
+     * Returns <code>true</code> if build() was called or the index was combined.
+     */
+    public boolean isBuilt() {
+        return (tokens != null) || (parts != null);
+    }
+
+    /**
+     * Returns the number of indexed levels.
+     */
+    public int size() {
+        return (parts == null) ? levels.size() : part_offsets[parts.length];
+    }
+
+    /**
+     * Returns the level with the given id.
+     *
+     * @param id The id of the level.
+     */
+    public Level getLevel(int id) {
+        if (parts != null) {
+            int part = findPart(id);
+
+            return parts[part].getLevel(id - part_offsets[part]);
+        }
+
+        return levels.get(id);
+    }
+
+    /**
+     * Returns the collection name of the level with the given id.
+     *
+     * @param id The id of the level.
+     */
+    public String getCollection(int id) {
+        if (parts != null) {
+            int part = findPart(id);
+
+            return parts[part].getCollection(id - part_offsets[part]);
+        }
+
+        return collections.get(id);
+    }
+
+    /**
+     * Returns the interned version of the string, only before build().
+     *
+     * @param string The string.
+     */
+    public String intern(String string) {
+        assert !isBuilt() : "the index is already built";
+
+        String result = strings.get(string);
+
+        if (result == null) {
+            strings.put(string, string);
+            result = string;
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the sorted ids of all levels, which contain all words of the query.
+     *
+     * @param field The field to search in (FIELD_AUTHOR ... FIELD_ALL).
+     * @param query The words to search for.
+     * @param prefix If <code>true</code> the last word of the query may be a prefix of a
+     *               token, which is useful for searching while typing.
+     */
+    public int[] find(int field, String query, boolean prefix) {
+        assert isBuilt() : "the index is not built";
+        assert (field >= FIELD_AUTHOR) && (field <= FIELD_ALL);
+
+        if (parts != null) {
+            return findInParts(field, query, prefix);
+        }
+
+        String[] words = tokenize(query);
+
+        if (words.length == 0) {
+            return NO_LEVELS;
+        }
+
+        int[] result = null;
+
+        for (int i = 0; i < words.length; ++i) {
+            boolean is_prefix = prefix && (i == words.length - 1);
+            int[] ids;
+
+            if (field == FIELD_ALL) {
+                ids = NO_LEVELS;
+
+                for (int j = 0; j < FIELDS; ++j) {
+                    ids = union(ids, findWord(j, words[i], is_prefix));
+                }
+            }
+            else {
+                ids = findWord(field, words[i], is_prefix);
+            }
+
+            result = (result == null) ? ids : intersect(result, ids);
+
+            if (result.length == 0) {
+                break;
+            }
+        }
+
+        // A single word may return the postings of the index, which must not be changed
+        // by the caller. Intersections are always new arrays.
+        return (words.length == 1) ? result.clone() : result;
+    }
+
+    /**
+     * Returns the sorted ids of all levels of the given author.
+     *
+     * @param author The author, e.g. "David Holland".
+     */
+    public int[] findByAuthor(String author) {
+        return find(FIELD_AUTHOR, author, false);
+    }
+
+    /**
+     * Searches all combined indexes and appends their results, which keeps them sorted.
+     */
+    private int[] findInParts(int field, String query, boolean prefix) {
+        int[][] results = new int[parts.length][];
+        int length = 0;
+
+        for (int i = 0; i < parts.length; ++i) {
+            results[i] = parts[i].find(field, query, prefix);
+            length += results[i].length;
+        }
+
+        int[] result = new int[length];
+        int size = 0;
+
+        for (int i = 0; i < parts.length; ++i) {
+            for (int id: results[i]) {
+                result[size++] = id + part_offsets[i];
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the number of the combined index containing the level with the given id.
+     */
+    private int findPart(int id) {
+        if ((id < 0) || (id >= size())) {
+            throw new IndexOutOfBoundsException("Invalid level id: " + id);
+        }
+
+        int part = Arrays.binarySearch(part_offsets, id);
+
+        if (part < 0) {
+            return -part - 2;
+        }
+
+        // Skip empty indexes starting at the same id.
+        while (part_offsets[part + 1] == id) {
+            ++part;
+        }
+
+        return part;
+    }
+
+    /**
+     * Returns the ids of the levels, which contain the word in the given field.
+     *
+     * @param field The field.
+     * @param word The lower case word.
+     * @param prefix If <code>true</code> all tokens starting with word are matched.
+     */
+    private int[] findWord(int field, String word, boolean prefix) {
+        String[] field_tokens = tokens[field];
+        int index = Arrays.binarySearch(field_tokens, word);
+
+        if (!prefix) {
+            return (index >= 0) ? postings[field][index] : NO_LEVELS;
+        }
+
+        if (index < 0) {
+            index = -index - 1;
+        }
+
+        int[] result = NO_LEVELS;
+
+        while ((index < field_tokens.length) && field_tokens[index].startsWith(word)) {
+            result = union(result, postings[field][index]);
+            ++index;
+        }
+
+        return result;
+    }
+
+    /**
+     * Adds the tokens of the text to the postings of the field.
+     *
+     * @param field The field.
+     * @param text The text.
+     * @param id The id of the level.
+     */
+    private void addTokens(int field, String text, int id) {
+        if ((text == null) || text.isEmpty()) {
+            return;
+        }
+
+        HashMap<String, IntList> field_postings = raw_postings.get(field);
+
+        for (String token: tokenize(text)) {
+            IntList ids = field_postings.get(token);
+
+            if (ids == null) {
+                ids = new IntList();
+                field_postings.put(intern(token), ids);
+            }
+
+            ids.addUnique(id);
+        }
+    }
+
+    /**
+     * Replaces all strings of the list with their interned version.
+     *
+     * @param list The list.
+     */
+    private void internAll(List<String> list) {
+        for (int i = 0; i < list.size(); ++i) {
+            list.set(i, intern(list.get(i)));
+        }
+    }
+
+    /**
+     * Splits the text into lower case tokens of letters and digits.
+     *
+     * @param text The text.
+     */
+    static String[] tokenize(String text) {
+        List<String> result = new ArrayList<String>();
+        String lower = text.toLowerCase(Locale.US);
+        int length = lower.length();
+        int start = -1;
+
+        for (int i = 0; i <= length; ++i) {
+            boolean is_word_char = (i < length) && Character.isLetterOrDigit(lower.charAt(i));
+
+            if (is_word_char && (start < 0)) {
+                start = i;
+            }
+            else if (!is_word_char && (start >= 0)) {
+                result.add(lower.substring(start, i));
+                start = -1;
+            }
+        }
+
+        return result.toArray(new String[result.size()]);
+    }
+
+    /**
+     * Returns the union of two sorted id arrays.
+     */
+    private static int[] union(int[] lhs, int[] rhs) {
+        if (lhs.length == 0) {
+            return rhs;
+        }
+
+        if (rhs.length == 0) {
+            return lhs;
+        }
+
+        int[] result = new int[lhs.length + rhs.length];
+        int i = 0;
+        int j = 0;
+        int size = 0;
+
+        while ((i < lhs.length) || (j < rhs.length)) {
+            int value;
+
+            if ((j == rhs.length) || ((i < lhs.length) && (lhs[i] < rhs[j]))) {
+                value = lhs[i++];
+            }
+            else if ((i == lhs.length) || (rhs[j] < lhs[i])) {
+                value = rhs[j++];
+            }
+            else {
+                value = lhs[i++];
+                ++j;
+            }
+
+            result[size++] = value;
+        }
+
+        return Arrays.copyOf(result, size);
+    }
+
+    /**
+     * Returns the intersection of two sorted id arrays.
+     */
+    private static int[] intersect(int[] lhs, int[] rhs) {
+        int[] result = new int[Math.min(lhs.length, rhs.length)];
+        int i = 0;
+        int j = 0;
+        int size = 0;
+
+        while ((i < lhs.length) && (j < rhs.length)) {
+            if (lhs[i] < rhs[j]) {
+                ++i;
+            }
+            else if (rhs[j] < lhs[i]) {
+                ++j;
+            }
+            else {
+                result[size++] = lhs[i];
+                ++i;
+                ++j;
+            }
+        }
+
+        return Arrays.copyOf(result, size);
+    }
+}
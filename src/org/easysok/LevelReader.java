@@ -0,0 +1,177 @@
+package org.easysok;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * This class reads the levels of a xsb file one by one.
+ *
+ * Unlike Collection.read() only the lines of the current level are kept in memory and
+ * the levels are not added to the collection, so packs of any size can be processed
+ * with constant memory. The collection only holds the defaults of the header.
+ *
+ * Maps in run length encoding are decoded line by line while reading.
+ */
+public class LevelReader {
+
+    /**
+     * The reader.
+     */
+    private BufferedReader reader;
+
+    /**
+     * The collection with the defaults of the header.
+     */
+    private Collection collection;
+
+    /**
+     * The lines of the next level.
+     */
+    private LinkedList<String> lines;
+
+    /**
+     * The first line of the level after the next one or null.
+     */
+    private String next_line;
+
+    /**
+     * The number of levels read.
+     */
+    private int levels_read;
+
+    /**
+     * Creates the reader and reads the header.
+     *
+     * @param stream The stream to read from.
+     * @param encoding The encoding of the stream, e.g. "ISO-8859-1".
+     * @param name The name of the collection, if the header does not contain one.
+     */
+    public LevelReader(InputStream stream, String encoding, String name) throws IOException {
+        this(new InputStreamReader(stream, encoding), name);
+    }
+
+    /**
+     * Creates the reader and reads the header.
+     *
+     * @param reader The reader to read from.
+     * @param name The name of the collection, if the header does not contain one.
+     */
+    public LevelReader(Reader reader, String name) throws IOException {
+        this.reader = new BufferedReader(reader);
+        this.lines = new LinkedList<String>();
+
+        List<String> header = new ArrayList<String>();
+
+        while (true) {
+            String line = this.reader.readLine();
+
+            if ((line == null) || Map.isMapLine(line) || Map.isRleLine(line)) {
+                next_line = line;
+
+                break;
+            }
+
+            header.add(line);
+        }
+
+        this.collection = new Collection(header, name);
+    }
+
+    /**
+     * Returns the collection with the defaults of the header.
+     */
+    public Collection getCollection() {
+        return collection;
+    }
+
+    /**
+     * Returns the number of levels read so far.
+     */
+    public int getLevelsRead() {
+        return levels_read;
+    }
+
+    /**
+     * Reads the next level.
+     *
+     * @return The level or null at the end of the file.
+     */
+    public Level next() throws IOException {
+        lines.clear();
+
+        if (next_line == null) {
+            return null;
+        }
+
+        addLine(next_line);
+        next_line = null;
+        readLevelLines();
+
+        long start = Metrics.start();
+        Level level = new Level(lines, collection);
+
+        Metrics.stop(Metrics.PARSE_LEVEL, start);
+
+        if (level.getMap().getHeight() == 0) {
+            return null;
+        }
+
+        ++levels_read;
+
+        return level;
+    }
+
+    /**
+     * Closes the reader.
+     */
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    /**
+     * Reads the lines up to the start of the next level: the map and the info lines after
+     * it, up to the next map line or a "+-+-" separator, which is kept in next_line.
+     */
+    private void readLevelLines() throws IOException {
+        boolean had_map = !lines.isEmpty() && Map.isMapLine(lines.getFirst());
+        boolean in_map = had_map;
+
+        while (true) {
+            String line = reader.readLine();
+
+            if (line == null) {
+                return;
+            }
+
+            boolean map_line = Map.isMapLine(line) || Map.isRleLine(line);
+
+            if (had_map && !in_map && (map_line || line.equals("+-+-"))) {
+                next_line = line;
+
+                return;
+            }
+
+            addLine(line);
+            had_map |= map_line;
+            in_map = map_line;
+        }
+    }
+
+    /**
+     * Adds a line to the lines of the level, run length encoded maps are decoded.
+     */
+    private void addLine(String line) {
+        if (!Map.isMapLine(line) && Map.isRleLine(line)) {
+            Map.expandRle(line, lines);
+        }
+        else {
+            lines.add(line);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package org.easysok;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * This class writes levels in xsb format to a stream.
+ *
+ * All output goes through one reusable character buffer, so writing a whole collection
+ * does not create a string per level or map.
+ *
+ * Like Level.toText() only these informations are written, which differ from the
+ * defaults of the collection.
+ */
+public class LevelWriter implements Appendable {
+
+    /**
+     * The default size of the buffer.
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * The writer we write to.
+     */
+    private Writer writer;
+
+    /**
+     * The buffer.
+     */
+    private char[] buffer;
+
+    /**
+     * The number of used characters in the buffer.
+     */
+    private int used;
+
+    /**
+     * The number of levels written so far.
+     */
+    private int levels_written;
+
+    /**
+     * If true, the maps are written in run length encoding.
+     */
+    private boolean rle;
+
+    /**
+     * Creates a level writer.
+     *
+     * @param writer The writer to write to.
+     */
+    public LevelWriter(Writer writer) {
+        this.writer = writer;
+        this.buffer = new char[BUFFER_SIZE];
+    }
+
+    /**
+     * Creates a level writer.
+     *
+     * @param stream The stream to write to.
+     * @param encoding The encoding to use, e.g. "ISO-8859-1".
+     */
+    public LevelWriter(OutputStream stream, String encoding) throws UnsupportedEncodingException {
+        this(new OutputStreamWriter(stream, encoding));
+    }
+
+    /**
+     * Sets if the maps are written as single lines in run length encoding, which makes
+     * packs smaller, e.g. the bundled packs by about 27% and microban by about 32%. Such
+     * packs can be read by Collection and LevelReader.
+     *
+     * @param rle If true, run length encoding is used.
+     */
+    public void setRunLengthEncoding(boolean rle) {
+        this.rle = rle;
+    }
+
+    /**
+     * Writes a level.
+     *
+     * Levels are separated by an empty line.
+     *
+     * @param level The level to write.
+     * @param authors The authors of the collection.
+     * @param emails The email addresses of the authors of the collection.
+     * @param homepage The homepage of the collection.
+     * @param copyright The copyright of the collection.
+     * @param info The info of the collection.
+     * @param difficulty The difficulty of the collection.
+     */
+    public void write(Level level, List<String> authors, List<String> emails, String homepage,
+            String copyright, String info, int difficulty) throws IOException {
+        if (levels_written > 0) {
+            append('\n');
+        }
+
+        level.appendText(this, authors, emails, homepage, copyright, info, difficulty, rle);
+        ++levels_written;
+    }
+
+    /**
+     * Writes all levels.
+     *
+     * @param levels The levels to write.
+     * @param authors The authors of the collection.
+     * @param emails The email addresses of the authors of the collection.
+     * @param homepage The homepage of the collection.
+     * @param copyright The copyright of the collection.
+     * @param info The info of the collection.
+     * @param difficulty The difficulty of the collection.
+     */
+    public void writeAll(Iterable<Level> levels, List<String> authors, List<String> emails,
+            String homepage, String copyright, String info, int difficulty) throws IOException {
+        for (Level level: levels) {
+            write(level, authors, emails, homepage, copyright, info, difficulty);
+        }
+    }
+
+    /**
+     * Returns the number of levels written so far.
+     */
+    public int getLevelsWritten() {
+        return levels_written;
+    }
+
+    /**
+     * Appends a character.
+     *
+     * @param c The character.
+     */
+    public LevelWriter append(char c) throws IOException {
+        if (used == buffer.length) {
+            flushBuffer();
+        }
+
+        buffer[used++] = c;
+
+        return this;
+    }
+
+    /**
+     * Appends a character sequence.
+     *
+     * @param sequence The sequence.
+     */
+    public LevelWriter append(CharSequence sequence) throws IOException {
+        return append(sequence, 0, sequence.length());
+    }
+
+    /**
+     * Appends a part of a character sequence.
+     *
+     * @param sequence The sequence.
+     * @param start The index of the first character.
+     * @param end The index after the last character.
+     */
+    public LevelWriter append(CharSequence sequence, int start, int end) throws IOException {
+        while (start < end) {
+            if (used == buffer.length) {
+                flushBuffer();
+            }
+
+            int count = Math.min(end - start, buffer.length - used);
+
+            if (sequence instanceof String) {
+                ((String)sequence).getChars(start, start + count, buffer, used);
+                used += count;
+                start += count;
+            }
+            else {
+                for (int i = 0; i < count; ++i) {
+                    buffer[used++] = sequence.charAt(start++);
+                }
+            }
+        }
+
+        return this;
+    }
+
+    /**
+     * Writes the buffer and flushes the underlying writer.
+     */
+    public void flush() throws IOException {
+        flushBuffer();
+        writer.flush();
+    }
+
+    /**
+     * Writes the buffer and closes the underlying writer.
+     */
+    public void close() throws IOException {
+        flushBuffer();
+        writer.close();
+    }
+
+    /**
+     * Writes the content of the buffer to the writer.
+     */
+    private void flushBuffer() throws IOException {
+        if (used > 0) {
+            writer.write(buffer, 0, used);
+            used = 0;
+        }
+    }
+}
@@ -1,11 +1,7 @@
 package org.easysok;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.util.ArrayList;
-import java.util.LinkedList;
 
 import android.app.Activity;
 import android.os.Bundle;
@@ -17,32 +13,19 @@ public class MainActivity extends Activity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
-        LinkedList<String> lines = new LinkedList<String>();
-        
+        Collection collection;
+
         try {
             InputStream is = getAssets().open("dh1.xsb");
-            BufferedReader reader = new BufferedReader(new InputStreamReader(is));
-            
-            while (true) {
-                String line = reader.readLine();
-                
-                if (line != null) {
-                    lines.addLast(line);
-                }
-                else {
-                    break;
-                }
-            }
+            collection = Collection.read(is, "ISO-8859-1", "dh1");
         }
         catch (IOException e) {
             e.printStackTrace();
+
+            return;
         }
 
-        Level level;
-        
-        while (true) {
-            level = new Level(lines, new ArrayList<String>(), new ArrayList<String>(), "", "", "", "", -1);
-            
+        for (Level level: collection.getLevels()) {
             if (level.getMap().isValid()) {
                 System.out.println(level);
             }
@@ -1,13 +1,9 @@
 package org.easysok;
 
-import java.io.InputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import android.graphics.Point;
 
 /**
  * 
@@ -161,14 +157,14 @@ public class Map {
     private static boolean[] piece_contains_goal = new boolean[] {false, true, false, true, false, true, false, false};
 
     /**
-     * Mapping from piece->text
+     * The maximum count of a run in run length encoding.
      */
-    private static char[] piece_to_text = new char[] {'@', '+', '$', '*', ' ', '.', '#', ' '};
+    private static final int MAX_RLE_COUNT = 127;
 
     /**
-     * The matcher for checking if a line is a valid map line.
+     * Mapping from piece->text
      */
-    private static Matcher map_regexp = Pattern.compile("^ *#[# .$*@+]* *$").matcher("");
+    private static char[] piece_to_text = new char[] {'@', '+', '$', '*', ' ', '.', '#', ' '};
 
     /**
      * The width of the map.
@@ -186,9 +182,9 @@ public class Map {
     private int size;
 
     /**
-     * Here we store the position of the keeper.
+     * Here we store the index of the keeper.
      */
-    private Point keeper;
+    private int keeper;
 
     /**
      * The validity of the map.
@@ -230,6 +226,16 @@ public class Map {
      */
     private int[] xy_offsets;
 
+    /**
+     * The sorted indices of the gems.
+     */
+    private int[] gem_indices;
+
+    /**
+     * The static layers shared by all snapshots or null, if no snapshot was taken yet.
+     */
+    private MapSnapshot.Layout layout;
+
     /**
      * Creates a new map.
      *
@@ -243,16 +249,19 @@ public class Map {
         assert width < 128;
         assert height < 128;
 
+        long start = Metrics.start();
+
         this.width = width;
         this.height = height;
         this.size = width * height;
-        this.keeper = new Point(0, 0);
         this.empty_goals_valid = true;
         this.pieces = pieces.clone();
         this.xy_offsets = new int[] {-1, 1, -width, width};
 
         createOutsidePieces();
         setupKeeperAndEmptyGoals();
+
+        Metrics.stop(Metrics.MAP_CREATE, start);
     }
 
     /**
@@ -265,6 +274,8 @@ public class Map {
      * @param lines The list with the lines.
      */
     public Map(List<String> lines) {
+        long start = Metrics.start();
+
         this.empty_goals_valid = true;
 
         while (!lines.isEmpty() && !isMapLine(lines.get(0))) {
@@ -314,6 +325,8 @@ public class Map {
 
         createOutsidePieces();
         setupKeeperAndEmptyGoals();  
+
+        Metrics.stop(Metrics.MAP_CREATE, start);
     }
 
     /**
@@ -352,6 +365,20 @@ public class Map {
             return validity;
         }
 
+        long start = Metrics.start();
+
+        validity = calcValidity();
+        validity_valid = true;
+
+        Metrics.stop(Metrics.VALIDITY, start);
+
+        return validity;
+    }
+
+    /**
+     * Calculates the validity of the map.
+     */
+    private int calcValidity() {
         validity = IS_VALID;
         int keepers = 0;
         int goals = 0;
@@ -480,10 +507,169 @@ public class Map {
         return pieces[index] & PIECE;
     }
 
+    /**
+     * Returns the number of fields of the map (width * height).
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the index for the given position.
+     *
+     * @param x The x-coordinate.
+     * @param y The y-coordinate.
+     */
+    public int getIndex(int x, int y) {
+        return x + y * width;
+    }
+
+    /**
+     * Returns the offset of the index for going one step in the given direction.
+     *
+     * @param direction The direction (0 = left, 1 = right, 2 = up, 3 = down).
+     */
+    public int getOffset(int direction) {
+        return xy_offsets[direction];
+    }
+
+    /**
+     * Returns the index of the keeper.
+     */
+    public int getKeeperIndex() {
+        return keeper;
+    }
+
+    /**
+     * Returns <code>true</code> if the field at the given index contains a gem.
+     *
+     * @param index The index.
+     */
+    public boolean containsGem(int index) {
+        return pieceContainsGem(getPiece(index));
+    }
+
+    /**
+     * Returns <code>true</code> if the field at the given index contains a goal.
+     *
+     * @param index The index.
+     */
+    public boolean containsGoal(int index) {
+        return pieceContainsGoal(getPiece(index));
+    }
+
+    /**
+     * Returns <code>true</code> if the field at the given index is a wall or outside.
+     *
+     * @param index The index.
+     */
+    public boolean isWallOrOutside(int index) {
+        return getPiece(index) >= WALL;
+    }
+
+    /**
+     * Returns <code>true</code> if the keeper can reach the field without pushing a gem.
+     *
+     * @param index The index.
+     */
+    public boolean isReachable(int index) {
+        if (!reachable_valid) {
+            calcReachable();
+        }
+
+        return (pieces[index] & REACHABLE) != 0;
+    }
+
+    /**
+     * Returns <code>true</code> if the field is a simple deadlock, which means that a gem
+     * on this field can never be pushed to a goal (even if there were no other gems).
+     *
+     * @param index The index.
+     */
+    public boolean isDeadlock(int index) {
+        if (!deadlocks_valid) {
+            calcDeadlocks();
+        }
+
+        return (pieces[index] & DEADLOCK) != 0;
+    }
+
+    /**
+     * Calculates the fields the keeper can reach without pushing a gem.
+     */
+    private void calcReachable() {
+        int[] queue = new int[size];
+        int queue_end = 0;
+
+        for (int i = 0; i < size; ++i) {
+            pieces[i] &= CLEAR_REACHABLE;
+        }
+
+        int start = getKeeperIndex();
+        pieces[start] |= REACHABLE;
+        queue[queue_end++] = start;
+
+        for (int queue_start = 0; queue_start < queue_end; ++queue_start) {
+            int index = queue[queue_start];
+
+            for (int i = 0; i < 4; ++i) {
+                int nb_index = index + xy_offsets[i];
+
+                if (!isValidIndex(nb_index)) {
+                    continue;
+                }
+
+                int piece = pieces[nb_index];
+
+                if (((piece & REACHABLE) == 0) && ((piece & PIECE) < WALL) &&
+                    !pieceContainsGem(piece & PIECE)) {
+                    pieces[nb_index] |= REACHABLE;
+                    queue[queue_end++] = nb_index;
+                }
+            }
+        }
+
+        reachable_valid = true;
+    }
+
+    /**
+     * Calculates the simple deadlocks.
+     *
+     * Starting at the goals we pull a gem in every possible direction (see
+     * MapAnalysis.pullDistances()). All fields which are never reached are deadlocks.
+     */
+    private void calcDeadlocks() {
+        int[] goals = new int[size];
+        int number_of_goals = 0;
+
+        for (int i = 0; i < size; ++i) {
+            pieces[i] &= CLEAR_DEADLOCK;
+
+            if (pieceContainsGoal(getPiece(i))) {
+                goals[number_of_goals++] = i;
+            }
+        }
+
+        short[] distances = new short[size];
+
+        Arrays.fill(distances, MapAnalysis.UNREACHABLE);
+        MapAnalysis.pullDistances(this, Arrays.copyOf(goals, number_of_goals), distances, 0, new int[size]);
+
+        for (int i = 0; i < size; ++i) {
+            if ((getPiece(i) < WALL) && (distances[i] == MapAnalysis.UNREACHABLE)) {
+                pieces[i] |= DEADLOCK;
+            }
+        }
+
+        deadlocks_valid = true;
+    }
+
     /**
      * Creates the outside pieces.
      */
     private void createOutsidePieces() {
+        long start = Metrics.start();
+
         for (int x = 0; x < width; ++x) {
             createOutsidePiecesHelper(x, 0);
             createOutsidePiecesHelper(x, height - 1);
@@ -493,6 +679,8 @@ public class Map {
             createOutsidePiecesHelper(0, y);
             createOutsidePiecesHelper(width - 1, y);
         }
+
+        Metrics.stop(Metrics.OUTSIDE_PIECES, start);
     }
 
     /**
@@ -525,10 +713,11 @@ public class Map {
     }
 
     /**
-     * Finds and set the keeper and the number of empty goals.
+     * Finds and set the keeper, the gems and the number of empty goals.
      */
     private void setupKeeperAndEmptyGoals() {
         empty_goals = 0;
+        int gems = 0;
 
         for (int i = 0; i < size; ++i) {
             int piece = getPiece(i);
@@ -537,12 +726,171 @@ public class Map {
                 ++empty_goals;
             }
 
+            if (pieceContainsGem(piece)) {
+                ++gems;
+            }
+
             if (pieceContainsKeeper(piece)) {
-                keeper = getPoint(i);
+                keeper = i;
+            }
+        }
+
+        gem_indices = new int[gems];
+        gems = 0;
+
+        for (int i = 0; i < size; ++i) {
+            if (pieceContainsGem(getPiece(i))) {
+                gem_indices[gems++] = i;
             }
         }
     }
 
+    /**
+     * Returns an immutable snapshot of the map, which may be passed to other threads.
+     *
+     * The walls, goals and deadlocks are calculated on the first call and shared by all
+     * snapshots, each call only copies the gems and the keeper.
+     */
+    public MapSnapshot getSnapshot() {
+        if (layout == null) {
+            layout = new MapSnapshot.Layout(this);
+        }
+
+        return new MapSnapshot(layout, gem_indices.clone(), getKeeperIndex());
+    }
+
+    /**
+     * Moves the keeper one step in the given direction, pushing a gem if there is one.
+     *
+     * @param direction The direction (0 = left, 1 = right, 2 = up, 3 = down).
+     * @return <code>false</code> if the move is not possible, the map is unchanged then.
+     */
+    public boolean move(int direction) {
+        long start = Metrics.start();
+        int offset = xy_offsets[direction];
+        int target = keeper + offset;
+
+        if (!isValidIndex(target) || isWallOrOutside(target)) {
+            return false;
+        }
+
+        if (containsGem(target)) {
+            int gem_target = target + offset;
+
+            if (!isValidIndex(gem_target) || isWallOrOutside(gem_target) || containsGem(gem_target)) {
+                return false;
+            }
+
+            moveGem(target, gem_target);
+        }
+
+        moveKeeper(target);
+        Metrics.stop(Metrics.MOVE, start);
+
+        return true;
+    }
+
+    /**
+     * Undoes a move done with move().
+     *
+     * @param direction The direction of the move.
+     * @param pushed <code>true</code> if the move pushed a gem.
+     */
+    public void undoMove(int direction, boolean pushed) {
+        long start = Metrics.start();
+        int offset = xy_offsets[direction];
+        int old_keeper = keeper;
+
+        moveKeeper(keeper - offset);
+
+        if (pushed) {
+            moveGem(old_keeper + offset, old_keeper);
+        }
+
+        Metrics.stop(Metrics.UNDO, start);
+    }
+
+    /**
+     * Sets the gems and the keeper to the ones of a snapshot of this map.
+     *
+     * @param snapshot The snapshot, which must have been taken from this map.
+     */
+    public void restore(MapSnapshot snapshot) {
+        if ((layout == null) || (snapshot.getLayout() != layout)) {
+            throw new IllegalArgumentException("The snapshot was not taken from this map");
+        }
+
+        for (int gem: gem_indices) {
+            setPiece(gem, containsGoal(gem) ? GOAL : EMPTY);
+        }
+
+        setPiece(keeper, containsGoal(keeper) ? GOAL : EMPTY);
+
+        for (int i = 0; i < gem_indices.length; ++i) {
+            int gem = snapshot.getGem(i);
+
+            gem_indices[i] = gem;
+            setPiece(gem, containsGoal(gem) ? GEM_ON_GOAL : GEM);
+        }
+
+        keeper = snapshot.getKeeperIndex();
+        setPiece(keeper, containsGoal(keeper) ? KEEPER_ON_GOAL : KEEPER);
+        empty_goals_valid = false;
+        reachable_valid = false;
+        validity_valid = false;
+    }
+
+    /**
+     * Moves the keeper to an empty field.
+     *
+     * @param target The index of the field.
+     */
+    private void moveKeeper(int target) {
+        setPiece(keeper, containsGoal(keeper) ? GOAL : EMPTY);
+        setPiece(target, containsGoal(target) ? KEEPER_ON_GOAL : KEEPER);
+        keeper = target;
+        reachable_valid = false;
+        validity_valid = false;
+    }
+
+    /**
+     * Moves a gem to a field without gem and keeps gem_indices sorted.
+     *
+     * @param from The index of the gem.
+     * @param to The index of the target field.
+     */
+    private void moveGem(int from, int to) {
+        setPiece(from, containsGoal(from) ? GOAL : EMPTY);
+        setPiece(to, containsGoal(to) ? GEM_ON_GOAL : GEM);
+
+        int i = Arrays.binarySearch(gem_indices, from);
+
+        while ((i > 0) && (gem_indices[i - 1] > to)) {
+            gem_indices[i] = gem_indices[i - 1];
+            --i;
+        }
+
+        while ((i + 1 < gem_indices.length) && (gem_indices[i + 1] < to)) {
+            gem_indices[i] = gem_indices[i + 1];
+            ++i;
+        }
+
+        gem_indices[i] = to;
+        empty_goals_valid = false;
+        reachable_valid = false;
+        validity_valid = false;
+    }
+
+    /**
+     * Sets the piece of a field and keeps the other attributes.
+     *
+     * @param index The index.
+     * @param piece The piece.
+     */
+    private void setPiece(int index, int piece) {
+        pieces[index] = (pieces[index] & CLEAR_PIECE) | piece;
+    }
+
     /**
      * Returns true, if the piece contains a keeper.
      *
@@ -580,25 +928,123 @@ public class Map {
     }
 
     /**
-     * Returns the point for the given index.
-     *
-     * @param index In index.
+     * Returns <code>true</code> if the line is a valid line of a map.
+     * 
+     * @param line The line.
+     * @return <code>true</code> if it as map line.
      */
-    private Point getPoint(int index) {    	
-        int y = index / width;
-        int x = index - y * width;
+    public static boolean isMapLine(String line) {
+        // Same as matching "^ *#[# .$*@+]* *$", but thread safe and without allocations.
+        int length = line.length();
+        int i = 0;
 
-        return new Point(x, y);
+        while ((i < length) && (line.charAt(i) == ' ')) {
+            ++i;
+        }
+
+        if ((i == length) || (line.charAt(i) != '#')) {
+            return false;
+        }
+
+        for (++i; i < length; ++i) {
+            if ("# .$*@+".indexOf(line.charAt(i)) < 0) {
+                return false;
+            }
+        }
+
+        return true;
     }
 
     /**
-     * Returns <code>true</code> if the line is a valid line of a map.
-     * 
+     * Returns <code>true</code> if the line is a map or a part of it in run length
+     * encoding.
+     *
+     * In run length encoding a number before a piece repeats it, '-' and '_' stand for
+     * floor and '|' separates the rows, e.g. "4#|#.@-#|#$2-#|4#". Lines without a count,
+     * '-', '_' or '|' are plain map lines.
+     *
      * @param line The line.
-     * @return <code>true</code> if it as map line.
+     * @return <code>true</code> if it as run length encoded map line.
      */
-    public static boolean isMapLine(String line) {
-        return map_regexp.reset(line).find();
+    public static boolean isRleLine(String line) {
+        int length = line.length();
+        boolean has_wall = false;
+        boolean has_rle = false;
+
+        for (int i = 0; i < length; ++i) {
+            char c = line.charAt(i);
+
+            if (c == '#') {
+                has_wall = true;
+            }
+            else if (((c >= '0') && (c <= '9')) || (c == '-') || (c == '_') || (c == '|')) {
+                has_rle = true;
+            }
+            else if (" .$*@+".indexOf(c) < 0) {
+                return false;
+            }
+        }
+
+        return has_wall && has_rle;
+    }
+
+    /**
+     * Decodes a run length encoded line into plain map lines in a single pass.
+     *
+     * Counts are limited to the maximum width of a map, empty rows are skipped.
+     *
+     * @param line The run length encoded line.
+     * @param rows Where the decoded lines are added.
+     */
+    public static void expandRle(String line, List<String> rows) {
+        int length = line.length();
+        StringBuilder row = new StringBuilder(length);
+        int count = 0;
+
+        for (int i = 0; i < length; ++i) {
+            char c = line.charAt(i);
+
+            if ((c >= '0') && (c <= '9')) {
+                count = Math.min(count * 10 + c - '0', MAX_RLE_COUNT);
+
+                continue;
+            }
+
+            int repeat = Math.max(count, 1);
+
+            count = 0;
+
+            if (c == '|') {
+                addRleRow(row, rows);
+
+                continue;
+            }
+
+            if ((c == '-') || (c == '_')) {
+                c = ' ';
+            }
+
+            for (int j = 0; j < repeat; ++j) {
+                row.append(c);
+            }
+        }
+
+        addRleRow(row, rows);
+    }
+
+    /**
+     * Adds a decoded row, if it contains more than floor, and clears it.
+     */
+    private static void addRleRow(StringBuilder row, List<String> rows) {
+        for (int i = 0; i < row.length(); ++i) {
+            if (row.charAt(i) != ' ') {
+                rows.add(row.toString());
+
+                break;
+            }
+        }
+
+        row.setLength(0);
     }
 
     /**
@@ -650,12 +1096,70 @@ public class Map {
         empty_goals_valid = true;
     }
     
+    /**
+     * Appends the map in xsb format.
+     *
+     * @param out Where to append the map.
+     */
+    public void appendText(Appendable out) throws IOException {
+        for (int y = 0; y < height; ++y) {
+            int row = y * width;
+
+            for (int x = 0; x < width; ++x) {
+                out.append(piece_to_text[pieces[row + x] & PIECE]);
+            }
+
+            out.append('\n');
+        }
+    }
+
+    /**
+     * Appends the map as a single line in run length encoding followed by a newline.
+     *
+     * Runs of two or more equal pieces get a count, floor is written as '-' and the
+     * outside at the end of the rows is left out.
+     *
+     * @param out Where to append the map.
+     */
+    public void appendRle(Appendable out) throws IOException {
+        for (int y = 0; y < height; ++y) {
+            int row = y * width;
+            int end = width;
+
+            while ((end > 0) && (piece_to_text[pieces[row + end - 1] & PIECE] == ' ')) {
+                --end;
+            }
+
+            if (y > 0) {
+                out.append('|');
+            }
+
+            for (int x = 0; x < end;) {
+                char c = piece_to_text[pieces[row + x] & PIECE];
+                int run = 1;
+
+                while ((x + run < end) && (piece_to_text[pieces[row + x + run] & PIECE] == c)) {
+                    ++run;
+                }
+
+                if (run > 1) {
+                    out.append(Integer.toString(run));
+                }
+
+                out.append((c == ' ') ? '-' : c);
+                x += run;
+            }
+        }
+
+        out.append('\n');
+    }
+
     /**
      * Returns the map in xsb format.
      */
     public String toString() {
-        StringBuilder result = new StringBuilder();
-        
+        StringBuilder result = new StringBuilder(size + height);
+
         for (int y = 0; y < height; ++y) {
             for (int x = 0; x < width; ++x) {
                 result.append(piece_to_text[getPiece(x, y)]);
@@ -0,0 +1,439 @@
+package org.easysok;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * This class contains the static analysis of a map, which only depends on the walls and
+ * the goals: the push distances of a single gem to each goal, the simple deadlocks and
+ * the tunnels.
+ *
+ * The push distance is a lower bound of the pushes needed to move a gem from a field to
+ * a goal. It is calculated by pulling a gem away from each goal in a breadth first
+ * search (see pullDistances()), which ignores all other gems and only checks that the
+ * field behind the gem is free, not that the keeper can walk there.
+ *
+ * Since the analysis does not depend on the position of the gems and the keeper, it can
+ * be shared by all positions of a level and cached on disk (see AnalysisCache).
+ */
+public class MapAnalysis {
+
+    /**
+     * The distance of fields, from which a gem can not be pushed to a goal.
+     */
+    public static final short UNREACHABLE = Short.MAX_VALUE;
+
+    /**
+     * The field is a simple deadlock.
+     */
+    public static final byte DEAD = 1;
+
+    /**
+     * The field is part of a horizontal tunnel (walls above and below).
+     */
+    public static final byte HORIZONTAL_TUNNEL = 2;
+
+    /**
+     * The field is part of a vertical tunnel (walls left and right).
+     */
+    public static final byte VERTICAL_TUNNEL = 4;
+
+    /**
+     * The width of the map.
+     */
+    private int width;
+
+    /**
+     * The height of the map.
+     */
+    private int height;
+
+    /**
+     * The hash of the layout.
+     */
+    private long layout_hash;
+
+    /**
+     * The walls and outside fields, bit (index & 63) of walls[index >> 6] is set for
+     * each of them.
+     */
+    private long[] walls;
+
+    /**
+     * The indices of the goals.
+     */
+    private int[] goals;
+
+    /**
+     * The push distances, distances[goal * size + index] is the distance from index to
+     * the goal with the given number.
+     */
+    private short[] distances;
+
+    /**
+     * The minimal push distance of each field to any goal.
+     */
+    private short[] min_distances;
+
+    /**
+     * The flags (DEAD, HORIZONTAL_TUNNEL, VERTICAL_TUNNEL) of each field.
+     */
+    private byte[] flags;
+
+    /**
+     * Analyzes the map.
+     *
+     * @param map The map to analyze.
+     */
+    public MapAnalysis(Map map) {
+        this.width = map.getWith();
+        this.height = map.getHeight();
+        this.layout_hash = layoutHash(map);
+
+        int size = width * height;
+        int number_of_goals = 0;
+
+        walls = new long[(size + 63) >> 6];
+
+        for (int i = 0; i < size; ++i) {
+            if (map.isWallOrOutside(i)) {
+                walls[i >> 6] |= 1L << (i & 63);
+            }
+
+            if (map.containsGoal(i)) {
+                ++number_of_goals;
+            }
+        }
+
+        goals = new int[number_of_goals];
+        number_of_goals = 0;
+
+        for (int i = 0; i < size; ++i) {
+            if (map.containsGoal(i)) {
+                goals[number_of_goals++] = i;
+            }
+        }
+
+        distances = new short[goals.length * size];
+        Arrays.fill(distances, UNREACHABLE);
+
+        int[] queue = new int[size];
+
+        for (int goal = 0; goal < goals.length; ++goal) {
+            pullDistances(map, Arrays.copyOfRange(goals, goal, goal + 1), distances, goal * size, queue);
+        }
+
+        flags = new byte[size];
+        setupMinDistances();
+
+        for (int i = 0; i < size; ++i) {
+            if (map.isWallOrOutside(i)) {
+                continue;
+            }
+
+            if (min_distances[i] == UNREACHABLE) {
+                flags[i] |= DEAD;
+            }
+
+            boolean wall_left = (i % width == 0) || map.isWallOrOutside(i - 1);
+            boolean wall_right = (i % width == width - 1) || map.isWallOrOutside(i + 1);
+            boolean wall_up = (i < width) || map.isWallOrOutside(i - width);
+            boolean wall_down = (i + width >= size) || map.isWallOrOutside(i + width);
+
+            if (wall_up && wall_down && !wall_left && !wall_right) {
+                flags[i] |= HORIZONTAL_TUNNEL;
+            }
+
+            if (wall_left && wall_right && !wall_up && !wall_down) {
+                flags[i] |= VERTICAL_TUNNEL;
+            }
+        }
+    }
+
+    /**
+     * Creates an analysis from stored data.
+     */
+    private MapAnalysis(int width, int height, long layout_hash, long[] walls, int[] goals,
+            short[] distances, byte[] flags) {
+        this.width = width;
+        this.height = height;
+        this.layout_hash = layout_hash;
+        this.walls = walls;
+        this.goals = goals;
+        this.distances = distances;
+        this.flags = flags;
+
+        setupMinDistances();
+    }
+
+    /**
+     * Returns the hash of the layout (walls, outside and goals) of the map.
+     *
+     * Gems and keeper are ignored, so all positions of a level have the same hash.
+     *
+     * @param map The map.
+     */
+    public static long layoutHash(Map map) {
+        long result = 0xcbf29ce484222325L;
+        int size = map.getSize();
+
+        result = (result ^ map.getWith()) * 0x100000001b3L;
+        result = (result ^ map.getHeight()) * 0x100000001b3L;
+
+        for (int i = 0; i < size; ++i) {
+            result = (result ^ layoutCode(map, i)) * 0x100000001b3L;
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns <code>true</code> if this analysis belongs to the layout of the map.
+     *
+     * The walls and goals are compared field by field, so maps with the same layout
+     * hash but another layout are detected.
+     *
+     * @param map The map.
+     */
+    public boolean matches(Map map) {
+        if ((map.getWith() != width) || (map.getHeight() != height)) {
+            return false;
+        }
+
+        int size = width * height;
+        int goal = 0;
+
+        for (int i = 0; i < size; ++i) {
+            if (map.isWallOrOutside(i) != ((walls[i >> 6] & (1L << (i & 63))) != 0)) {
+                return false;
+            }
+
+            if (map.containsGoal(i)) {
+                if ((goal == goals.length) || (goals[goal] != i)) {
+                    return false;
+                }
+
+                ++goal;
+            }
+        }
+
+        return goal == goals.length;
+    }
+
+    /**
+     * Returns the hash of the layout this analysis belongs to.
+     */
+    public long getLayoutHash() {
+        return layout_hash;
+    }
+
+    /**
+     * Returns the number of goals.
+     */
+    public int numberOfGoals() {
+        return goals.length;
+    }
+
+    /**
+     * Returns the index of the goal with the given number.
+     *
+     * @param goal The number of the goal.
+     */
+    public int getGoal(int goal) {
+        return goals[goal];
+    }
+
+    /**
+     * Returns a lower bound of the pushes to move a gem from the field to the goal,
+     * ignoring all other gems.
+     *
+     * @param goal The number of the goal.
+     * @param index The index of the field.
+     * @return The distance or UNREACHABLE.
+     */
+    public int getDistance(int goal, int index) {
+        return distances[goal * width * height + index];
+    }
+
+    /**
+     * Returns a lower bound of the pushes to move a gem from the field to any goal.
+     *
+     * @param index The index of the field.
+     * @return The distance or UNREACHABLE.
+     */
+    public int getMinDistance(int index) {
+        return min_distances[index];
+    }
+
+    /**
+     * Returns <code>true</code> if a gem on this field can never reach a goal.
+     *
+     * @param index The index of the field.
+     */
+    public boolean isDead(int index) {
+        return (flags[index] & DEAD) != 0;
+    }
+
+    /**
+     * Returns <code>true</code> if the field is part of a tunnel.
+     *
+     * @param index The index of the field.
+     */
+    public boolean isTunnel(int index) {
+        return (flags[index] & (HORIZONTAL_TUNNEL | VERTICAL_TUNNEL)) != 0;
+    }
+
+    /**
+     * Returns the flags of a field.
+     *
+     * @param index The index of the field.
+     */
+    public int getFlags(int index) {
+        return flags[index];
+    }
+
+    /**
+     * Writes the analysis.
+     *
+     * @param out The stream to write to.
+     */
+    public void write(DataOutputStream out) throws IOException {
+        out.writeByte(width);
+        out.writeByte(height);
+        out.writeLong(layout_hash);
+
+        for (long bits: walls) {
+            out.writeLong(bits);
+        }
+
+        out.writeInt(goals.length);
+
+        for (int goal: goals) {
+            out.writeShort(goal);
+        }
+
+        for (short distance: distances) {
+            out.writeShort(distance);
+        }
+
+        out.write(flags);
+    }
+
+    /**
+     * Reads an analysis written by write().
+     *
+     * @param in The stream to read from.
+     */
+    public static MapAnalysis read(DataInputStream in) throws IOException {
+        int width = in.readUnsignedByte();
+        int height = in.readUnsignedByte();
+        long layout_hash = in.readLong();
+        int size = width * height;
+        long[] walls = new long[(size + 63) >> 6];
+
+        for (int i = 0; i < walls.length; ++i) {
+            walls[i] = in.readLong();
+        }
+
+        int number_of_goals = in.readInt();
+
+        if ((number_of_goals < 0) || (number_of_goals > size)) {
+            throw new IOException("Invalid number of goals: " + number_of_goals);
+        }
+
+        int[] goals = new int[number_of_goals];
+
+        for (int i = 0; i < number_of_goals; ++i) {
+            goals[i] = in.readUnsignedShort();
+        }
+
+        short[] distances = new short[number_of_goals * size];
+
+        for (int i = 0; i < distances.length; ++i) {
+            distances[i] = in.readShort();
+        }
+
+        byte[] flags = new byte[size];
+        in.readFully(flags);
+
+        return new MapAnalysis(width, height, layout_hash, walls, goals, distances, flags);
+    }
+
+    /**
+     * Calculates the push distances to the nearest of the given goals by pulling a gem
+     * away from them. A gem can be pulled, if the field behind it is free, whether the
+     * keeper can walk there is not checked, so the distances are lower bounds. Fields
+     * which are never reached are simple deadlocks (see Map.isDeadlock()).
+     *
+     * @param map The map.
+     * @param sources The indices of the goals.
+     * @param distances The distances, distances[offset + index] is set for each reached
+     *                  field, all others must be UNREACHABLE.
+     * @param offset The offset of the map in distances.
+     * @param queue A queue with an entry for each field of the map.
+     */
+    static void pullDistances(Map map, int[] sources, short[] distances, int offset, int[] queue) {
+        int queue_end = 0;
+
+        for (int source: sources) {
+            distances[offset + source] = 0;
+            queue[queue_end++] = source;
+        }
+
+        for (int queue_start = 0; queue_start < queue_end; ++queue_start) {
+            int index = queue[queue_start];
+            int distance = distances[offset + index];
+
+            for (int direction = 0; direction < 4; ++direction) {
+                // The keeper stands on gem_index and pulls the gem while going to keeper_index.
+                int gem_index = index + map.getOffset(direction);
+                int keeper_index = gem_index + map.getOffset(direction);
+
+                if (!map.isValidIndex(keeper_index) || (distances[offset + gem_index] != UNREACHABLE)) {
+                    continue;
+                }
+
+                if (!map.isWallOrOutside(gem_index) && !map.isWallOrOutside(keeper_index)) {
+                    distances[offset + gem_index] = (short)(distance + 1);
+                    queue[queue_end++] = gem_index;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets up the minimal distances from the distances to all goals.
+     */
+    private void setupMinDistances() {
+        int size = width * height;
+
+        min_distances = new short[size];
+        Arrays.fill(min_distances, UNREACHABLE);
+
+        for (int goal = 0; goal < goals.length; ++goal) {
+            int offset = goal * size;
+
+            for (int i = 0; i < size; ++i) {
+                if (distances[offset + i] < min_distances[i]) {
+                    min_distances[i] = distances[offset + i];
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the code of a field for the layout hash (0 = floor, 1 = goal, 2 = wall/outside).
+     *
+     * @param map The map.
+     * @param index The index of the field.
+     */
+    private static int layoutCode(Map map, int index) {
+        if (map.isWallOrOutside(index)) {
+            return 2;
+        }
+
+        return map.containsGoal(index) ? 1 : 0;
+    }
+}
@@ -0,0 +1,388 @@
+package org.easysok;
+
+import java.util.Arrays;
+
+/**
+ * This class is an immutable snapshot of a map.
+ *
+ * The static layers (walls, outside, goals and simple deadlocks) are calculated once per
+ * map and shared by reference by all its snapshots. A snapshot only copies the gems and
+ * the keeper, so taking one costs O(gems). Snapshots can be passed to other threads
+ * (hints, solvers, renderers) without locks, while the map itself must only be used by
+ * the thread owning it.
+ */
+public final class MapSnapshot {
+
+    /**
+     * The static layers of a map, shared by all snapshots of it.
+     */
+    static final class Layout {
+
+        /**
+         * The width of the map.
+         */
+        final int width;
+
+        /**
+         * The height of the map.
+         */
+        final int height;
+
+        /**
+         * The offsets for the directions left, right, up and down.
+         */
+        final int[] offsets;
+
+        /**
+         * The piece of each field without gem and keeper (EMPTY, GOAL, WALL or OUTSIDE).
+         */
+        final byte[] pieces;
+
+        /**
+         * For each field, if it is a simple deadlock.
+         */
+        final boolean[] deadlocks;
+
+        /**
+         * Creates the layout of a map.
+         *
+         * @param map The map.
+         */
+        Layout(Map map) {
+            int size = map.getSize();
+
+            this.width = map.getWith();
+            this.height = map.getHeight();
+            this.offsets = new int[4];
+            this.pieces = new byte[size];
+            this.deadlocks = new boolean[size];
+
+            for (int i = 0; i < 4; ++i) {
+                offsets[i] = map.getOffset(i);
+            }
+
+            for (int i = 0; i < size; ++i) {
+                int piece = map.getPiece(i);
+
+                if (piece >= Map.WALL) {
+                    pieces[i] = (byte)piece;
+                }
+                else {
+                    pieces[i] = (byte)(map.containsGoal(i) ? Map.GOAL : Map.EMPTY);
+                    deadlocks[i] = map.isDeadlock(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * The shared layout.
+     */
+    private final Layout layout;
+
+    /**
+     * The sorted indices of the gems.
+     */
+    private final int[] gems;
+
+    /**
+     * The index of the keeper.
+     */
+    private final int keeper;
+
+    /**
+     * The fields reachable by the keeper, calculated on first use. Several threads may
+     * calculate it at the same time, they all get the same result.
+     */
+    private volatile boolean[] reachable;
+
+    /**
+     * Creates a snapshot.
+     *
+     * @param layout The shared layout.
+     * @param gems The sorted indices of the gems, the array is kept and must not change.
+     * @param keeper The index of the keeper.
+     */
+    MapSnapshot(Layout layout, int[] gems, int keeper) {
+        this.layout = layout;
+        this.gems = gems;
+        this.keeper = keeper;
+    }
+
+    /**
+     * Returns the shared layout.
+     */
+    Layout getLayout() {
+        return layout;
+    }
+
+    /**
+     * Returns the width of the map.
+     */
+    public int getWidth() {
+        return layout.width;
+    }
+
+    /**
+     * Returns the height of the map.
+     */
+    public int getHeight() {
+        return layout.height;
+    }
+
+    /**
+     * Returns the number of fields of the map.
+     */
+    public int getSize() {
+        return layout.pieces.length;
+    }
+
+    /**
+     * Returns the offset of the index for going one step in the given direction.
+     *
+     * @param direction The direction (0 = left, 1 = right, 2 = up, 3 = down).
+     */
+    public int getOffset(int direction) {
+        return layout.offsets[direction];
+    }
+
+    /**
+     * Returns the piece at the given index (see the constants of Map).
+     *
+     * @param index The index.
+     */
+    public int getPiece(int index) {
+        int piece = layout.pieces[index];
+
+        if (piece >= Map.WALL) {
+            return piece;
+        }
+
+        int goal = (piece == Map.GOAL) ? 1 : 0;
+
+        if (index == keeper) {
+            return Map.KEEPER + goal;
+        }
+
+        if (containsGem(index)) {
+            return Map.GEM + goal;
+        }
+
+        return piece;
+    }
+
+    /**
+     * Returns the index of the keeper.
+     */
+    public int getKeeperIndex() {
+        return keeper;
+    }
+
+    /**
+     * Returns the number of gems.
+     */
+    public int numberOfGems() {
+        return gems.length;
+    }
+
+    /**
+     * Returns the index of a gem, the gems are sorted by index.
+     *
+     * @param gem The number of the gem.
+     */
+    public int getGem(int gem) {
+        return gems[gem];
+    }
+
+    /**
+     * Returns <code>true</code> if the field contains a gem.
+     *
+     * @param index The index.
+     */
+    public boolean containsGem(int index) {
+        return Arrays.binarySearch(gems, index) >= 0;
+    }
+
+    /**
+     * Returns <code>true</code> if the field contains a goal.
+     *
+     * @param index The index.
+     */
+    public boolean containsGoal(int index) {
+        return layout.pieces[index] == Map.GOAL;
+    }
+
+    /**
+     * Returns <code>true</code> if the field is a wall or outside.
+     *
+     * @param index The index.
+     */
+    public boolean isWallOrOutside(int index) {
+        return layout.pieces[index] >= Map.WALL;
+    }
+
+    /**
+     * Returns <code>true</code> if the field is a simple deadlock.
+     *
+     * @param index The index.
+     */
+    public boolean isDeadlock(int index) {
+        return layout.deadlocks[index];
+    }
+
+    /**
+     * Returns <code>true</code> if all gems are on goals.
+     */
+    public boolean isSolved() {
+        for (int gem: gems) {
+            if (!containsGoal(gem)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns <code>true</code> if the keeper can reach the field without pushing a gem.
+     *
+     * @param index The index.
+     */
+    public boolean isReachable(int index) {
+        boolean[] act_reachable = reachable;
+
+        if (act_reachable == null) {
+            act_reachable = calcReachable();
+            reachable = act_reachable;
+        }
+
+        return act_reachable[index];
+    }
+
+    /**
+     * Returns <code>true</code> if both snapshots share the static layers, which means
+     * they were taken from the same map.
+     *
+     * @param other The other snapshot.
+     */
+    public boolean sharesLayout(MapSnapshot other) {
+        return layout == other.layout;
+    }
+
+    /**
+     * Returns a 64 bit FNV-1a hash of the size and all pieces including gems and keeper.
+     *
+     * Unlike MapAnalysis.layoutHash() two snapshots of the same map with different gem
+     * positions get different hashes.
+     */
+    public long hash() {
+        long result = 0xcbf29ce484222325L;
+        int size = getSize();
+
+        result = (result ^ layout.width) * 0x100000001b3L;
+        result = (result ^ layout.height) * 0x100000001b3L;
+
+        for (int i = 0; i < size; ++i) {
+            result = (result ^ getPiece(i)) * 0x100000001b3L;
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the snapshot after a keeper step, which may push a gem.
+     *
+     * The new snapshot shares the layout with this one.
+     *
+     * @param direction The direction of the step.
+     * @return The new snapshot or null, if the step is not possible.
+     */
+    public MapSnapshot step(int direction) {
+        int offset = layout.offsets[direction];
+        int target = keeper + offset;
+
+        if (isWallOrOutside(target)) {
+            return null;
+        }
+
+        int gem = Arrays.binarySearch(gems, target);
+
+        if (gem < 0) {
+            return new MapSnapshot(layout, gems, target);
+        }
+
+        int gem_target = target + offset;
+
+        if (isWallOrOutside(gem_target) || containsGem(gem_target)) {
+            return null;
+        }
+
+        int[] new_gems = gems.clone();
+        new_gems[gem] = gem_target;
+        Arrays.sort(new_gems);
+
+        return new MapSnapshot(layout, new_gems, target);
+    }
+
+    /**
+     * Returns the snapshot as map.
+     */
+    public Map toMap() {
+        int size = getSize();
+        int[] pieces = new int[size];
+
+        for (int i = 0; i < size; ++i) {
+            pieces[i] = getPiece(i);
+        }
+
+        return new Map(layout.width, layout.height, pieces);
+    }
+
+    /**
+     * Returns the snapshot in xsb format.
+     */
+    public String toString() {
+        StringBuilder result = new StringBuilder(getSize() + layout.height);
+
+        for (int y = 0; y < layout.height; ++y) {
+            for (int x = 0; x < layout.width; ++x) {
+                int piece = getPiece(x + y * layout.width);
+
+                result.append("@+$* .# ".charAt(piece));
+            }
+
+            result.append('\n');
+        }
+
+        return result.toString();
+    }
+
+    /**
+     * Calculates the fields reachable by the keeper.
+     */
+    private boolean[] calcReachable() {
+        int size = getSize();
+        boolean[] result = new boolean[size];
+        int[] queue = new int[size];
+        int queue_end = 0;
+
+        result[keeper] = true;
+        queue[queue_end++] = keeper;
+
+        for (int queue_start = 0; queue_start < queue_end; ++queue_start) {
+            int index = queue[queue_start];
+
+            for (int direction = 0; direction < 4; ++direction) {
+                int neighbour = index + layout.offsets[direction];
+
+                if ((neighbour >= 0) && (neighbour < size) && !result[neighbour] &&
+                    !isWallOrOutside(neighbour) && !containsGem(neighbour)) {
+                    result[neighbour] = true;
+                    queue[queue_end++] = neighbour;
+                }
+            }
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,315 @@
+package org.easysok;
+
+import java.util.Arrays;
+
+/**
+ * This class calculates a lower bound of the pushes needed to solve a position: the
+ * minimal cost assignment of gems to goals, with the push distances of MapAnalysis as
+ * costs.
+ *
+ * The assignment is calculated with the Hungarian method (shortest augmenting paths
+ * with potentials) in O(n^3). When a single gem moves, only its row of the cost matrix
+ * changes, so its assignment is removed and one augmenting path restores the optimal
+ * assignment in O(n^2).
+ *
+ * Everything is stored in primitive arrays, so copyFrom() can be used to keep a matching
+ * per search node without creating objects. getState() returns the assignment and the
+ * potentials in a compact form, so a search node can store them and setState() restores
+ * them in O(n^2) when the node is expanded.
+ */
+public class MatchingLowerBound {
+
+    /**
+     * The lower bound of positions, which can not be solved.
+     */
+    public static final int DEADLOCK = Integer.MAX_VALUE;
+
+    /**
+     * The cost of an impossible assignment.
+     */
+    private static final int INFINITE_COST = 1 << 20;
+
+    /**
+     * The analysis with the push distances.
+     */
+    private MapAnalysis analysis;
+
+    /**
+     * The number of gems (and goals).
+     */
+    private int n;
+
+    /**
+     * The positions of the gems.
+     */
+    private int[] gems;
+
+    /**
+     * The costs, costs[gem * n + goal].
+     */
+    private int[] costs;
+
+    /**
+     * The potentials of the gems (rows), index 1..n.
+     */
+    private int[] row_potentials;
+
+    /**
+     * The potentials of the goals (columns), index 0..n.
+     */
+    private int[] column_potentials;
+
+    /**
+     * The gem assigned to each goal (1 based, 0 = none), index 0..n.
+     */
+    private int[] column_to_row;
+
+    /**
+     * Temporary storage for the augmenting path search.
+     */
+    private int[] min_values;
+
+    /**
+     * Temporary storage for the augmenting path search.
+     */
+    private int[] way;
+
+    /**
+     * Temporary storage for the augmenting path search.
+     */
+    private boolean[] used;
+
+    /**
+     * Creates the lower bound for the given gems and calculates the optimal assignment.
+     *
+     * @param analysis The analysis of the map.
+     * @param gems The positions of the gems, there must be as many gems as goals.
+     */
+    public MatchingLowerBound(MapAnalysis analysis, int[] gems) {
+        assert gems.length == analysis.numberOfGoals();
+
+        this.analysis = analysis;
+        this.n = gems.length;
+        this.gems = gems.clone();
+        this.costs = new int[n * n];
+        this.row_potentials = new int[n + 1];
+        this.column_potentials = new int[n + 1];
+        this.column_to_row = new int[n + 1];
+        this.min_values = new int[n + 1];
+        this.way = new int[n + 1];
+        this.used = new boolean[n + 1];
+
+        setGems(gems);
+    }
+
+    /**
+     * Sets all gems and calculates the optimal assignment from scratch.
+     *
+     * @param new_gems The positions of the gems.
+     */
+    public void setGems(int[] new_gems) {
+        assert new_gems.length == n;
+
+        System.arraycopy(new_gems, 0, gems, 0, n);
+
+        for (int gem = 0; gem < n; ++gem) {
+            setupCosts(gem);
+        }
+
+        Arrays.fill(row_potentials, 0);
+        Arrays.fill(column_potentials, 0);
+        Arrays.fill(column_to_row, 0);
+
+        for (int row = 1; row <= n; ++row) {
+            augment(row);
+        }
+    }
+
+    /**
+     * Copies the state of another lower bound for the same map.
+     *
+     * @param other The other lower bound.
+     */
+    public void copyFrom(MatchingLowerBound other) {
+        assert other.n == n;
+
+        System.arraycopy(other.gems, 0, gems, 0, n);
+        System.arraycopy(other.costs, 0, costs, 0, n * n);
+        System.arraycopy(other.row_potentials, 0, row_potentials, 0, n + 1);
+        System.arraycopy(other.column_potentials, 0, column_potentials, 0, n + 1);
+        System.arraycopy(other.column_to_row, 0, column_to_row, 0, n + 1);
+    }
+
+    /**
+     * Returns the assignment and the potentials, which are restored by setState().
+     */
+    public int[] getState() {
+        int[] result = new int[3 * n];
+
+        System.arraycopy(column_to_row, 1, result, 0, n);
+        System.arraycopy(row_potentials, 1, result, n, n);
+        System.arraycopy(column_potentials, 1, result, 2 * n, n);
+
+        return result;
+    }
+
+    /**
+     * Sets all gems together with their optimal assignment returned by getState(), only
+     * the costs are calculated again.
+     *
+     * @param new_gems The positions of the gems.
+     * @param state The state of the assignment of these gems.
+     */
+    public void setState(int[] new_gems, int[] state) {
+        assert (new_gems.length == n) && (state.length == 3 * n);
+
+        System.arraycopy(new_gems, 0, gems, 0, n);
+
+        for (int gem = 0; gem < n; ++gem) {
+            setupCosts(gem);
+        }
+
+        System.arraycopy(state, 0, column_to_row, 1, n);
+        System.arraycopy(state, n, row_potentials, 1, n);
+        System.arraycopy(state, 2 * n, column_potentials, 1, n);
+    }
+
+    /**
+     * Moves one gem and repairs the assignment in O(n^2).
+     *
+     * @param gem The number of the gem.
+     * @param index The new position of the gem.
+     */
+    public void moveGem(int gem, int index) {
+        gems[gem] = index;
+        setupCosts(gem);
+
+        int row = gem + 1;
+
+        for (int column = 1; column <= n; ++column) {
+            if (column_to_row[column] == row) {
+                column_to_row[column] = 0;
+
+                break;
+            }
+        }
+
+        // The potential of the row is no longer valid for the new costs, but augment()
+        // only needs feasible potentials for the other rows.
+        row_potentials[row] = 0;
+        augment(row);
+    }
+
+    /**
+     * Returns the lower bound (the cost of the optimal assignment) or DEADLOCK.
+     */
+    public int getLowerBound() {
+        int result = 0;
+
+        for (int column = 1; column <= n; ++column) {
+            int cost = costs[(column_to_row[column] - 1) * n + column - 1];
+
+            if (cost >= INFINITE_COST) {
+                return DEADLOCK;
+            }
+
+            result += cost;
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the number of the goal assigned to the gem.
+     *
+     * @param gem The number of the gem.
+     */
+    public int getGoalOf(int gem) {
+        for (int column = 1; column <= n; ++column) {
+            if (column_to_row[column] == gem + 1) {
+                return column - 1;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Returns the position of a gem.
+     *
+     * @param gem The number of the gem.
+     */
+    public int getGem(int gem) {
+        return gems[gem];
+    }
+
+    /**
+     * Sets up the costs of one gem.
+     *
+     * @param gem The number of the gem.
+     */
+    private void setupCosts(int gem) {
+        int offset = gem * n;
+
+        for (int goal = 0; goal < n; ++goal) {
+            int distance = analysis.getDistance(goal, gems[gem]);
+
+            costs[offset + goal] = (distance == MapAnalysis.UNREACHABLE) ? INFINITE_COST : distance;
+        }
+    }
+
+    /**
+     * Assigns a free row by a shortest augmenting path (Dijkstra on the reduced costs).
+     *
+     * @param row The free row (1 based).
+     */
+    private void augment(int row) {
+        column_to_row[0] = row;
+        int column0 = 0;
+
+        Arrays.fill(min_values, Integer.MAX_VALUE);
+        Arrays.fill(used, false);
+
+        do {
+            used[column0] = true;
+            int row0 = column_to_row[column0];
+            int delta = Integer.MAX_VALUE;
+            int column1 = 0;
+            int row_offset = (row0 - 1) * n - 1;
+
+            for (int column = 1; column <= n; ++column) {
+                if (!used[column]) {
+                    int reduced = costs[row_offset + column] - row_potentials[row0] - column_potentials[column];
+
+                    if (reduced < min_values[column]) {
+                        min_values[column] = reduced;
+                        way[column] = column0;
+                    }
+
+                    if (min_values[column] < delta) {
+                        delta = min_values[column];
+                        column1 = column;
+                    }
+                }
+            }
+
+            for (int column = 0; column <= n; ++column) {
+                if (used[column]) {
+                    row_potentials[column_to_row[column]] += delta;
+                    column_potentials[column] -= delta;
+                }
+                else {
+                    min_values[column] -= delta;
+                }
+            }
+
+            column0 = column1;
+        } while (column_to_row[column0] != 0);
+
+        do {
+            int column1 = way[column0];
+            column_to_row[column0] = column_to_row[column1];
+            column0 = column1;
+        } while (column0 != 0);
+    }
+}
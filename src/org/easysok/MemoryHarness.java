@@ -0,0 +1,579 @@
+package org.easysok;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * This class is a command line tool, which measures the memory used by parsed level
+ * packs and the memory allocated while parsing them, and checks both against budgets.
+ *
+ * Usage: MemoryHarness [options] file.xsb...
+ *
+ *   -model m         The object layout: art (default) or hotspot.
+ *   -level-budget n  The maximum average bytes per level.
+ *   -pack-budget n   The maximum bytes per pack.
+ *   -parse-budget n  The maximum bytes allocated per parsed level.
+ *   -histogram n     Also print the n classes using the most bytes.
+ *   -encoding e      The encoding of the files (default: ISO-8859-1).
+ *
+ * The retained sizes are estimated by walking the object graph with reflection, like
+ * JOL does: each object counts its header and fields rounded up to 8 bytes. Objects of
+ * the Java library, whose fields cannot be read, are modelled: strings as char arrays
+ * and collections and maps as arrays of their elements. A pack counts every object once,
+ * a level counts everything reachable from it except its collection. The allocated bytes
+ * are taken from the thread allocation counter of the JVM, if there is one, as the
+ * minimum of several parses.
+ *
+ * For each pack one JSON object is written as a line to stdout, followed by one for the
+ * total. The exit code is 1 if a budget is exceeded, so the tool can guard memory
+ * optimizations of Level and Map in a build.
+ */
+public class MemoryHarness {
+
+    /**
+     * The number of parses per pack for the allocation measurement.
+     */
+    private static final int PARSES = 3;
+
+    /**
+     * The layout of objects in a virtual machine.
+     */
+    private static class Model {
+
+        /**
+         * The size of an object header.
+         */
+        final int header;
+
+        /**
+         * The size of an array header including the length.
+         */
+        final int array_header;
+
+        /**
+         * The size of a reference.
+         */
+        final int reference;
+
+        /**
+         * Creates a model.
+         */
+        Model(int header, int array_header, int reference) {
+            this.header = header;
+            this.array_header = array_header;
+            this.reference = reference;
+        }
+    }
+
+    /**
+     * Android runtime with 32 bit references.
+     */
+    private static final Model ART = new Model(8, 12, 4);
+
+    /**
+     * HotSpot with 64 bit and compressed references.
+     */
+    private static final Model HOTSPOT = new Model(12, 16, 4);
+
+    /**
+     * The size and the reference fields of a class.
+     */
+    private static class ClassInfo {
+
+        /**
+         * The size of an instance.
+         */
+        final long size;
+
+        /**
+         * The accessible reference fields or null, if the fields cannot be read.
+         */
+        final Field[] references;
+
+        /**
+         * Creates the info.
+         */
+        ClassInfo(long size, Field[] references) {
+            this.size = size;
+            this.references = references;
+        }
+    }
+
+    /**
+     * The object layout.
+     */
+    private Model model;
+
+    /**
+     * The infos of the classes.
+     */
+    private HashMap<Class<?>, ClassInfo> class_infos;
+
+    /**
+     * For each class the number of instances and bytes found by the walks with a
+     * histogram.
+     */
+    private HashMap<Class<?>, long[]> histogram;
+
+    /**
+     * The thread MXBean or null, if the JVM does not count allocations.
+     */
+    private Object thread_bean;
+
+    /**
+     * The method returning the allocated bytes of a thread or null.
+     */
+    private Method allocated_bytes;
+
+    /**
+     * Creates a harness.
+     *
+     * @param model The object layout.
+     */
+    private MemoryHarness(Model model) {
+        this.model = model;
+        this.class_infos = new HashMap<Class<?>, ClassInfo>();
+        this.histogram = new HashMap<Class<?>, long[]>();
+
+        try {
+            // Looked up by reflection, since neither exists on Android.
+            Class<?> factory = Class.forName("java.lang.management.ManagementFactory");
+
+            thread_bean = factory.getMethod("getThreadMXBean").invoke(null);
+            allocated_bytes = Class.forName("com.sun.management.ThreadMXBean")
+                    .getMethod("getThreadAllocatedBytes", long.class);
+            allocatedBytes();
+        }
+        catch (Exception e) {
+            thread_bean = null;
+            allocated_bytes = null;
+        }
+    }
+
+    /**
+     * Runs the tool.
+     *
+     * @param args The command line arguments.
+     */
+    public static void main(String[] args) throws IOException {
+        Model model = ART;
+        long level_budget = Long.MAX_VALUE;
+        long pack_budget = Long.MAX_VALUE;
+        long parse_budget = Long.MAX_VALUE;
+        int histogram_classes = 0;
+        String encoding = "ISO-8859-1";
+        int i = 0;
+
+        for (; (i < args.length - 1) && args[i].startsWith("-"); i += 2) {
+            String option = args[i];
+            String value = args[i + 1];
+
+            if (option.equals("-model") && value.equals("art")) {
+                model = ART;
+            }
+            else if (option.equals("-model") && value.equals("hotspot")) {
+                model = HOTSPOT;
+            }
+            else if (option.equals("-level-budget")) {
+                level_budget = Long.parseLong(value);
+            }
+            else if (option.equals("-pack-budget")) {
+                pack_budget = Long.parseLong(value);
+            }
+            else if (option.equals("-parse-budget")) {
+                parse_budget = Long.parseLong(value);
+            }
+            else if (option.equals("-histogram")) {
+                histogram_classes = Integer.parseInt(value);
+            }
+            else if (option.equals("-encoding")) {
+                encoding = value;
+            }
+            else {
+                usage();
+            }
+        }
+
+        if (i == args.length) {
+            usage();
+        }
+
+        MemoryHarness harness = new MemoryHarness(model);
+        long total_levels = 0;
+        long total_bytes = 0;
+        long total_allocated = 0;
+        boolean exceeded = false;
+
+        for (; i < args.length; ++i) {
+            byte[] content = readFile(args[i]);
+            long allocated = Long.MAX_VALUE;
+            Collection collection = null;
+
+            for (int parse = 0; parse < PARSES; ++parse) {
+                long start = harness.allocatedBytes();
+
+                collection = Collection.read(new ByteArrayInputStream(content), encoding, args[i]);
+                allocated = Math.min(allocated, harness.allocatedBytes() - start);
+            }
+
+            List<Level> levels = collection.getLevels();
+            int count = Math.max(1, levels.size());
+            long pack_bytes = harness.sizeOf(collection, null, true);
+            long max_level_bytes = 0;
+
+            for (Level level: levels) {
+                max_level_bytes = Math.max(max_level_bytes, harness.sizeOf(level, collection, false));
+            }
+
+            long level_bytes = pack_bytes / count;
+            long parse_bytes = (allocated >= 0) ? allocated / count : -1;
+            StringBuilder line = new StringBuilder(256);
+
+            line.append("{\"pack\":");
+            appendString(line, args[i]);
+            line.append(",\"levels\":").append(levels.size());
+            line.append(",\"pack_bytes\":").append(pack_bytes);
+            line.append(",\"level_bytes\":").append(level_bytes);
+            line.append(",\"max_level_bytes\":").append(max_level_bytes);
+            line.append(",\"allocated_bytes\":").append((allocated >= 0) ? allocated : -1);
+            line.append(",\"allocated_per_level\":").append(parse_bytes);
+            line.append('}');
+            System.out.println(line);
+
+            exceeded |= checkBudget(args[i], "level bytes", level_bytes, level_budget);
+            exceeded |= checkBudget(args[i], "pack bytes", pack_bytes, pack_budget);
+            exceeded |= (parse_bytes >= 0) && checkBudget(args[i], "allocated bytes per level", parse_bytes,
+                    parse_budget);
+
+            total_levels += levels.size();
+            total_bytes += pack_bytes;
+            total_allocated += Math.max(0, allocated);
+        }
+
+        System.out.println("{\"pack\":\"total\",\"levels\":" + total_levels + ",\"pack_bytes\":" + total_bytes +
+                ",\"level_bytes\":" + total_bytes / Math.max(1, total_levels) +
+                ",\"allocated_bytes\":" + ((harness.allocated_bytes != null) ? total_allocated : -1) + "}");
+
+        if (histogram_classes > 0) {
+            harness.printHistogram(histogram_classes);
+        }
+
+        if (exceeded) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Prints the usage and exits.
+     */
+    private static void usage() {
+        System.err.println("Usage: MemoryHarness [-model art|hotspot] [-level-budget n] [-pack-budget n] " +
+                "[-parse-budget n] [-histogram n] [-encoding e] file.xsb...");
+        System.exit(1);
+    }
+
+    /**
+     * Prints a message to stderr, if a value exceeds its budget.
+     *
+     * @return <code>true</code> if the budget is exceeded.
+     */
+    private static boolean checkBudget(String pack, String what, long value, long budget) {
+        if (value <= budget) {
+            return false;
+        }
+
+        System.err.println(pack + ": " + what + " " + value + " exceed the budget of " + budget);
+
+        return true;
+    }
+
+    /**
+     * Returns the bytes allocated by the current thread or -1, if the JVM does not count
+     * them.
+     */
+    private long allocatedBytes() {
+        if (allocated_bytes == null) {
+            return -1;
+        }
+
+        try {
+            return (Long)allocated_bytes.invoke(thread_bean, Thread.currentThread().getId());
+        }
+        catch (Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the retained size of an object graph.
+     *
+     * @param root The root of the graph.
+     * @param excluded An object, which is not counted and not followed, or null.
+     * @param count_classes If true, the objects are added to the histogram.
+     */
+    private long sizeOf(Object root, Object excluded, boolean count_classes) {
+        IdentityHashMap<Object, Object> visited = new IdentityHashMap<Object, Object>();
+        ArrayDeque<Object> stack = new ArrayDeque<Object>();
+        long result = 0;
+
+        if (excluded != null) {
+            visited.put(excluded, excluded);
+        }
+
+        visited.put(root, root);
+        stack.push(root);
+
+        while (!stack.isEmpty()) {
+            Object object = stack.pop();
+            ArrayList<Object> children = new ArrayList<Object>();
+            long size = shallowSize(object, children);
+
+            for (Object child: children) {
+                if ((child != null) && !visited.containsKey(child)) {
+                    visited.put(child, child);
+                    stack.push(child);
+                }
+            }
+
+            result += size;
+
+            if (count_classes) {
+                long[] entry = histogram.get(object.getClass());
+
+                if (entry == null) {
+                    entry = new long[2];
+                    histogram.put(object.getClass(), entry);
+                }
+
+                ++entry[0];
+                entry[1] += size;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the size of an object without the objects it references, but including
+     * the modelled internals of library objects.
+     *
+     * @param object The object.
+     * @param children Receives the referenced objects.
+     */
+    private long shallowSize(Object object, List<Object> children) {
+        Class<?> type = object.getClass();
+
+        if (type.isArray()) {
+            int length = Array.getLength(object);
+            Class<?> element_type = type.getComponentType();
+
+            if (!element_type.isPrimitive()) {
+                Collections.addAll(children, (Object[])object);
+            }
+
+            return align(model.array_header + (long)length * fieldSize(element_type));
+        }
+
+        ClassInfo info = getClassInfo(type);
+
+        if (info.references != null) {
+            for (Field field: info.references) {
+                try {
+                    children.add(field.get(object));
+                }
+                catch (IllegalAccessException e) {
+                    // Cannot happen, the field was made accessible.
+                }
+            }
+
+            return info.size;
+        }
+
+        if (object instanceof String) {
+            return info.size + align(model.array_header + 2L * ((String)object).length());
+        }
+
+        if (object instanceof java.util.Collection) {
+            java.util.Collection<?> collection = (java.util.Collection<?>)object;
+
+            children.addAll(collection);
+
+            return info.size + align(model.array_header + (long)collection.size() * model.reference);
+        }
+
+        if (object instanceof java.util.Map) {
+            java.util.Map<?, ?> map = (java.util.Map<?, ?>)object;
+            int buckets = Integer.highestOneBit(Math.max(1, map.size() * 4 / 3)) * 2;
+            long entry_size = align(model.header + 4 + 3L * model.reference);
+
+            for (java.util.Map.Entry<?, ?> entry: map.entrySet()) {
+                children.add(entry.getKey());
+                children.add(entry.getValue());
+            }
+
+            return info.size + align(model.array_header + (long)buckets * model.reference) + map.size() * entry_size;
+        }
+
+        return info.size;
+    }
+
+    /**
+     * Returns the info of a class.
+     *
+     * @param type The class.
+     */
+    private ClassInfo getClassInfo(Class<?> type) {
+        ClassInfo result = class_infos.get(type);
+
+        if (result != null) {
+            return result;
+        }
+
+        long size = model.header;
+        ArrayList<Field> references = new ArrayList<Field>();
+        boolean accessible = true;
+
+        for (Class<?> act_type = type; act_type != null; act_type = act_type.getSuperclass()) {
+            for (Field field: act_type.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers())) {
+                    continue;
+                }
+
+                size += fieldSize(field.getType());
+
+                if (field.getType().isPrimitive() || !accessible) {
+                    continue;
+                }
+
+                try {
+                    field.setAccessible(true);
+                    references.add(field);
+                }
+                catch (RuntimeException e) {
+                    // The modules of newer JVMs hide the fields of the library.
+                    accessible = false;
+                }
+            }
+        }
+
+        result = new ClassInfo(align(size), accessible ? references.toArray(new Field[references.size()]) : null);
+        class_infos.put(type, result);
+
+        return result;
+    }
+
+    /**
+     * Returns the size of a field or array element of the given type.
+     */
+    private int fieldSize(Class<?> type) {
+        if ((type == long.class) || (type == double.class)) {
+            return 8;
+        }
+
+        if ((type == int.class) || (type == float.class)) {
+            return 4;
+        }
+
+        if ((type == short.class) || (type == char.class)) {
+            return 2;
+        }
+
+        if ((type == byte.class) || (type == boolean.class)) {
+            return 1;
+        }
+
+        return model.reference;
+    }
+
+    /**
+     * Rounds a size up to a multiple of 8.
+     */
+    private static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+
+    /**
+     * Prints the classes with the most bytes as JSON objects.
+     *
+     * @param classes The number of classes.
+     */
+    private void printHistogram(int classes) {
+        ArrayList<java.util.Map.Entry<Class<?>, long[]>> entries =
+                new ArrayList<java.util.Map.Entry<Class<?>, long[]>>(histogram.entrySet());
+
+        Collections.sort(entries, new Comparator<java.util.Map.Entry<Class<?>, long[]>>() {
+            public int compare(java.util.Map.Entry<Class<?>, long[]> lhs, java.util.Map.Entry<Class<?>, long[]> rhs) {
+                long lhs_bytes = lhs.getValue()[1];
+                long rhs_bytes = rhs.getValue()[1];
+
+                return (lhs_bytes > rhs_bytes) ? -1 : ((lhs_bytes < rhs_bytes) ? 1 : 0);
+            }
+        });
+
+        for (int i = 0; (i < classes) && (i < entries.size()); ++i) {
+            java.util.Map.Entry<Class<?>, long[]> entry = entries.get(i);
+            StringBuilder line = new StringBuilder(128);
+
+            line.append("{\"class\":");
+            appendString(line, entry.getKey().getName());
+            line.append(",\"count\":").append(entry.getValue()[0]);
+            line.append(",\"bytes\":").append(entry.getValue()[1]);
+            line.append('}');
+            System.out.println(line);
+        }
+    }
+
+    /**
+     * Reads a whole file, so reading is not part of the measured allocations.
+     */
+    private static byte[] readFile(String name) throws IOException {
+        InputStream in = new FileInputStream(name);
+
+        try {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            byte[] buffer = new byte[65536];
+
+            for (int length = in.read(buffer); length >= 0; length = in.read(buffer)) {
+                content.write(buffer, 0, length);
+            }
+
+            return content.toByteArray();
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Appends a string as JSON string.
+     */
+    private static void appendString(StringBuilder result, String value) {
+        result.append('"');
+
+        for (int i = 0; i < value.length(); ++i) {
+            char c = value.charAt(i);
+
+            if ((c == '"') || (c == '\\')) {
+                result.append('\\');
+            }
+
+            result.append(c);
+        }
+
+        result.append('"');
+    }
+}
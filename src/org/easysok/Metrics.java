@@ -0,0 +1,409 @@
+package org.easysok;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class collects counters and timings of the hot paths (loading, validating, moving
+ * and solving).
+ *
+ * Metrics are disabled by default. Then every call only reads one volatile boolean, so the
+ * calls can stay in the code. All values are kept in lock free atomic arrays and can be
+ * updated from any thread.
+ *
+ * A typical timed operation looks like this:
+ *
+ * <pre>
+ * long start = Metrics.start();
+ * ...
+ * Metrics.stop(Metrics.VALIDITY, start);
+ * </pre>
+ *
+ * Additionally a listener can be set, which gets every event, e.g. to forward them to a
+ * platform tracer like JFR on the server.
+ */
+public final class Metrics {
+
+    /**
+     * Parsing a level from xsb lines.
+     */
+    public static final int PARSE_LEVEL = 0;
+
+    /**
+     * Constructing a map.
+     */
+    public static final int MAP_CREATE = 1;
+
+    /**
+     * Creating the outside pieces of a map.
+     */
+    public static final int OUTSIDE_PIECES = 2;
+
+    /**
+     * Calculating the validity of a map.
+     */
+    public static final int VALIDITY = 3;
+
+    /**
+     * A move of the keeper.
+     */
+    public static final int MOVE = 4;
+
+    /**
+     * Undoing a move.
+     */
+    public static final int UNDO = 5;
+
+    /**
+     * Rendering a map.
+     */
+    public static final int RENDER = 6;
+
+    /**
+     * Solving a level.
+     */
+    public static final int SOLVE = 7;
+
+    /**
+     * A node expanded by a solver.
+     */
+    public static final int SOLVER_NODE = 8;
+
+    /**
+     * Decoding an image of a theme at tile size.
+     */
+    public static final int DECODE_IMAGE = 9;
+
+    /**
+     * A lookup of a theme image, which found the decoded image.
+     */
+    public static final int THEME_HIT = 10;
+
+    /**
+     * A lookup of a theme image, which had to decode the image.
+     */
+    public static final int THEME_MISS = 11;
+
+    /**
+     * A thumbnail request, which found the thumbnail in memory.
+     */
+    public static final int THUMBNAIL_HIT = 12;
+
+    /**
+     * A thumbnail request, which had to load or render the thumbnail.
+     */
+    public static final int THUMBNAIL_MISS = 13;
+
+    /**
+     * A lookup of a map analysis, which found it in memory or on disk.
+     */
+    public static final int ANALYSIS_HIT = 14;
+
+    /**
+     * A lookup of a map analysis, which had to calculate it.
+     */
+    public static final int ANALYSIS_MISS = 15;
+
+    /**
+     * The number of different metrics.
+     */
+    public static final int METRICS = 16;
+
+    /**
+     * The number of histogram buckets per metric. Bucket i counts durations in
+     * [2^i, 2^(i+1)) nanoseconds, bucket 0 also counts zero durations.
+     */
+    public static final int BUCKETS = 40;
+
+    /**
+     * The names of the metrics.
+     */
+    private static final String[] names = new String[] {
+        "parse_level", "map_create", "outside_pieces", "validity", "move", "undo", "render",
+        "solve", "solver_node", "decode_image", "theme_hit", "theme_miss", "thumbnail_hit",
+        "thumbnail_miss", "analysis_hit", "analysis_miss"
+    };
+
+    /**
+     * A receiver of all recorded events.
+     */
+    public interface Listener {
+
+        /**
+         * Called for each recorded event.
+         *
+         * @param metric The metric.
+         * @param count The count added.
+         * @param duration The duration in nanoseconds or -1, if the event was not timed.
+         */
+        void onEvent(int metric, long count, long duration);
+    }
+
+    /**
+     * If false, nothing is recorded.
+     */
+    private static volatile boolean enabled;
+
+    /**
+     * The listener or null.
+     */
+    private static volatile Listener listener;
+
+    /**
+     * The counters of the metrics.
+     */
+    private static final AtomicLongArray counts = new AtomicLongArray(METRICS);
+
+    /**
+     * The summed up durations of the metrics in nanoseconds.
+     */
+    private static final AtomicLongArray durations = new AtomicLongArray(METRICS);
+
+    /**
+     * The maximum durations of the metrics in nanoseconds.
+     */
+    private static final AtomicLongArray max_durations = new AtomicLongArray(METRICS);
+
+    /**
+     * The histograms of the durations, BUCKETS entries per metric.
+     */
+    private static final AtomicLongArray histograms = new AtomicLongArray(METRICS * BUCKETS);
+
+    /**
+     * This class is not meant to be instantiated.
+     */
+    private Metrics() {
+    }
+
+    /**
+     * Returns <code>true</code> if metrics are recorded.
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Enables or disables the recording of metrics.
+     *
+     * @param enable If <code>true</code> metrics are recorded.
+     */
+    public static void setEnabled(boolean enable) {
+        enabled = enable;
+    }
+
+    /**
+     * Sets the listener, which gets all recorded events.
+     *
+     * @param new_listener The listener or null to remove it.
+     */
+    public static void setListener(Listener new_listener) {
+        listener = new_listener;
+    }
+
+    /**
+     * Returns the start time for a timed operation or 0, if metrics are disabled.
+     */
+    public static long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records a timed operation.
+     *
+     * @param metric The metric.
+     * @param start The value returned by start().
+     */
+    public static void stop(int metric, long start) {
+        if (!enabled || (start == 0)) {
+            return;
+        }
+
+        long duration = System.nanoTime() - start;
+
+        counts.incrementAndGet(metric);
+        durations.addAndGet(metric, duration);
+        histograms.incrementAndGet(metric * BUCKETS + bucket(duration));
+
+        long max = max_durations.get(metric);
+
+        while ((duration > max) && !max_durations.compareAndSet(metric, max, duration)) {
+            max = max_durations.get(metric);
+        }
+
+        Listener act_listener = listener;
+
+        if (act_listener != null) {
+            act_listener.onEvent(metric, 1, duration);
+        }
+    }
+
+    /**
+     * Increments a counter.
+     *
+     * @param metric The metric.
+     */
+    public static void count(int metric) {
+        if (enabled) {
+            add(metric, 1);
+        }
+    }
+
+    /**
+     * Adds a value to a counter.
+     *
+     * @param metric The metric.
+     * @param value The value to add.
+     */
+    public static void add(int metric, long value) {
+        if (!enabled) {
+            return;
+        }
+
+        counts.addAndGet(metric, value);
+
+        Listener act_listener = listener;
+
+        if (act_listener != null) {
+            act_listener.onEvent(metric, value, -1);
+        }
+    }
+
+    /**
+     * Returns the count of a metric.
+     *
+     * @param metric The metric.
+     */
+    public static long getCount(int metric) {
+        return counts.get(metric);
+    }
+
+    /**
+     * Returns the summed up duration of a metric in nanoseconds.
+     *
+     * @param metric The metric.
+     */
+    public static long getDuration(int metric) {
+        return durations.get(metric);
+    }
+
+    /**
+     * Returns the maximum duration of a metric in nanoseconds.
+     *
+     * @param metric The metric.
+     */
+    public static long getMaxDuration(int metric) {
+        return max_durations.get(metric);
+    }
+
+    /**
+     * Returns the count of a histogram bucket.
+     *
+     * @param metric The metric.
+     * @param bucket The bucket in the range [0:BUCKETS - 1].
+     */
+    public static long getBucket(int metric, int bucket) {
+        return histograms.get(metric * BUCKETS + bucket);
+    }
+
+    /**
+     * Returns the name of a metric.
+     *
+     * @param metric The metric.
+     */
+    public static String getName(int metric) {
+        return names[metric];
+    }
+
+    /**
+     * Sets all values to 0.
+     */
+    public static void reset() {
+        for (int i = 0; i < METRICS; ++i) {
+            counts.set(i, 0);
+            durations.set(i, 0);
+            max_durations.set(i, 0);
+        }
+
+        for (int i = 0; i < METRICS * BUCKETS; ++i) {
+            histograms.set(i, 0);
+        }
+    }
+
+    /**
+     * Appends all metrics with a count != 0, one per line.
+     *
+     * Each line contains the name, the count and for timed metrics the total, mean and
+     * maximum duration in microseconds and the non empty histogram buckets as
+     * &lt;upper bound in nanoseconds=count.
+     *
+     * @param out Where to append the metrics.
+     */
+    public static void dump(Appendable out) throws IOException {
+        for (int metric = 0; metric < METRICS; ++metric) {
+            long count = counts.get(metric);
+
+            if (count == 0) {
+                continue;
+            }
+
+            out.append(names[metric]).append(" count=").append(Long.toString(count));
+
+            long duration = durations.get(metric);
+
+            if (duration > 0) {
+                out.append(" total_us=").append(Long.toString(duration / 1000));
+                out.append(" mean_us=").append(Long.toString(duration / count / 1000));
+                out.append(" max_us=").append(Long.toString(max_durations.get(metric) / 1000));
+                out.append(" histogram_ns=");
+
+                boolean first = true;
+
+                for (int bucket = 0; bucket < BUCKETS; ++bucket) {
+                    long bucket_count = histograms.get(metric * BUCKETS + bucket);
+
+                    if (bucket_count != 0) {
+                        if (!first) {
+                            out.append(',');
+                        }
+
+                        out.append('<').append(Long.toString(2L << bucket));
+                        out.append('=').append(Long.toString(bucket_count));
+                        first = false;
+                    }
+                }
+            }
+
+            out.append('\n');
+        }
+    }
+
+    /**
+     * Returns all metrics as text, see dump().
+     */
+    public static String dump() {
+        StringBuilder result = new StringBuilder();
+
+        try {
+            dump(result);
+        }
+        catch (IOException e) {
+            // A StringBuilder never throws.
+            throw new RuntimeException(e);
+        }
+
+        return result.toString();
+    }
+
+    /**
+     * Returns the histogram bucket for a duration.
+     *
+     * @param duration The duration in nanoseconds.
+     */
+    private static int bucket(long duration) {
+        if (duration <= 1) {
+            return 0;
+        }
+
+        return Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(duration));
+    }
+}
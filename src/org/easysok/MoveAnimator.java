@@ -0,0 +1,359 @@
+package org.easysok;
+
+import android.view.Choreographer;
+
+/**
+ * This class plays queued moves on a map in step with the display frames.
+ *
+ * Each move is done on the map when its animation starts, the view then draws the
+ * moving keeper and gem shifted back by getOffsetX() and getOffsetY() fields. The
+ * position is calculated from the frame time and the speed, so if more moves than frames
+ * fit into a frame interval, the moves in between are done without being drawn.
+ *
+ * The animator is its own frame callback and the queue is a ring buffer, which only
+ * grows when moves are added, so no objects are created during playback. All methods
+ * must be called on the UI thread.
+ */
+public class MoveAnimator implements Choreographer.FrameCallback {
+
+    /**
+     * Is informed about the animation.
+     */
+    public interface Listener {
+
+        /**
+         * Is called once per frame after the positions were updated, the view should be
+         * redrawn.
+         */
+        void onAnimationFrame();
+
+        /**
+         * Is called when the queue is empty or a move was not possible.
+         *
+         * @param complete <code>false</code> if a move was not possible and the rest of
+         *                 the queue was dropped.
+         */
+        void onAnimationFinished(boolean complete);
+    }
+
+    /**
+     * The x steps of the directions.
+     */
+    private static final int[] x_steps = new int[] {-1, 1, 0, 0};
+
+    /**
+     * The y steps of the directions.
+     */
+    private static final int[] y_steps = new int[] {0, 0, -1, 1};
+
+    /**
+     * The map the moves are done on.
+     */
+    private Map map;
+
+    /**
+     * The listener or null.
+     */
+    private Listener listener;
+
+    /**
+     * The choreographer of the UI thread.
+     */
+    private Choreographer choreographer;
+
+    /**
+     * The queued directions as ring buffer.
+     */
+    private int[] queue;
+
+    /**
+     * The index of the first queued direction.
+     */
+    private int queue_start;
+
+    /**
+     * The number of queued directions.
+     */
+    private int queue_size;
+
+    /**
+     * The speed in moves per second.
+     */
+    private double speed;
+
+    /**
+     * The progress of the current move in the range [0:1).
+     */
+    private double progress;
+
+    /**
+     * The time of the last frame in nanoseconds or 0, if no frame was done yet.
+     */
+    private long last_frame_time;
+
+    /**
+     * True, if a frame callback is posted.
+     */
+    private boolean running;
+
+    /**
+     * The direction of the current move or -1, if there is none.
+     */
+    private int direction;
+
+    /**
+     * True, if the current move pushed a gem.
+     */
+    private boolean push;
+
+    /**
+     * The number of moves done in the last frame.
+     */
+    private int moves_in_frame;
+
+    /**
+     * Creates the animator.
+     *
+     * @param map The map the moves are done on.
+     */
+    public MoveAnimator(Map map) {
+        this.map = map;
+        this.choreographer = Choreographer.getInstance();
+        this.queue = new int[64];
+        this.speed = 8;
+        this.direction = -1;
+    }
+
+    /**
+     * Sets the listener.
+     *
+     * @param listener The listener or null.
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Sets the speed, which may change during playback, e.g. for fast forward.
+     *
+     * @param moves_per_second The number of moves per second.
+     */
+    public void setSpeed(double moves_per_second) {
+        this.speed = Math.max(0.1, moves_per_second);
+    }
+
+    /**
+     * Adds a move to the queue and starts the animation.
+     *
+     * @param new_direction The direction (0 = left, 1 = right, 2 = up, 3 = down).
+     */
+    public void add(int new_direction) {
+        if (queue_size == queue.length) {
+            // Unroll the ring buffer into a larger array.
+            int[] new_queue = new int[queue.length * 2];
+            int first_part = queue.length - queue_start;
+
+            System.arraycopy(queue, queue_start, new_queue, 0, first_part);
+            System.arraycopy(queue, 0, new_queue, first_part, queue_start);
+            queue = new_queue;
+            queue_start = 0;
+        }
+
+        queue[(queue_start + queue_size) % queue.length] = new_direction;
+        ++queue_size;
+        start();
+    }
+
+    /**
+     * Adds moves in lurd format to the queue and starts the animation. The case of the
+     * letters is ignored, pushes are detected on the map.
+     *
+     * @param lurd The moves.
+     */
+    public void add(CharSequence lurd) {
+        for (int i = 0; i < lurd.length(); ++i) {
+            int new_direction = "lrud".indexOf(Character.toLowerCase(lurd.charAt(i)));
+
+            if (new_direction >= 0) {
+                add(new_direction);
+            }
+        }
+    }
+
+    /**
+     * Stops the animation and drops the queued moves. The current move stays done.
+     */
+    public void stop() {
+        queue_size = 0;
+        finish();
+    }
+
+    /**
+     * Does all queued moves at once without animation.
+     */
+    public void skip() {
+        boolean complete = true;
+
+        while ((queue_size > 0) && complete) {
+            complete = startMove();
+        }
+
+        queue_size = 0;
+        finish();
+
+        if (listener != null) {
+            listener.onAnimationFinished(complete);
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if a move is animated.
+     */
+    public boolean isAnimating() {
+        return direction >= 0;
+    }
+
+    /**
+     * Returns the number of queued moves, without the current one.
+     */
+    public int numberOfQueuedMoves() {
+        return queue_size;
+    }
+
+    /**
+     * Returns the number of moves done in the last frame, which is greater than 1 when
+     * the speed exceeds the frame rate.
+     */
+    public int getMovesInFrame() {
+        return moves_in_frame;
+    }
+
+    /**
+     * Returns the index of the field of the moving keeper or -1, if it does not move.
+     */
+    public int getMovingKeeper() {
+        return (direction >= 0) ? map.getKeeperIndex() : -1;
+    }
+
+    /**
+     * Returns the index of the field of the moving gem or -1, if no gem moves.
+     */
+    public int getMovingGem() {
+        return ((direction >= 0) && push) ? map.getKeeperIndex() + map.getOffset(direction) : -1;
+    }
+
+    /**
+     * Returns the x offset in fields, at which the moving pieces are drawn relative to
+     * their fields.
+     */
+    public float getOffsetX() {
+        return (direction >= 0) ? (float)((progress - 1) * x_steps[direction]) : 0;
+    }
+
+    /**
+     * Returns the y offset in fields, at which the moving pieces are drawn relative to
+     * their fields.
+     */
+    public float getOffsetY() {
+        return (direction >= 0) ? (float)((progress - 1) * y_steps[direction]) : 0;
+    }
+
+    /**
+     * Advances the animation to the frame time.
+     *
+     * @param frame_time The time of the frame in nanoseconds.
+     */
+    public void doFrame(long frame_time) {
+        running = false;
+
+        if (last_frame_time != 0) {
+            progress += (frame_time - last_frame_time) * speed / 1e9;
+        }
+
+        last_frame_time = frame_time;
+        moves_in_frame = 0;
+
+        boolean complete = true;
+
+        if ((direction < 0) && (queue_size > 0)) {
+            complete = startMove();
+        }
+
+        while (complete && (progress >= 1)) {
+            if (queue_size == 0) {
+                break;
+            }
+
+            progress -= 1;
+            complete = startMove();
+        }
+
+        if (!complete || ((queue_size == 0) && ((direction < 0) || (progress >= 1)))) {
+            queue_size = 0;
+            finish();
+
+            if (listener != null) {
+                listener.onAnimationFrame();
+                listener.onAnimationFinished(complete);
+            }
+
+            return;
+        }
+
+        if (listener != null) {
+            listener.onAnimationFrame();
+        }
+
+        running = true;
+        choreographer.postFrameCallback(this);
+    }
+
+    /**
+     * Posts the first frame callback, if the animation is not running.
+     */
+    private void start() {
+        if (!running) {
+            running = true;
+            last_frame_time = 0;
+            choreographer.postFrameCallback(this);
+        }
+    }
+
+    /**
+     * Takes the next move from the queue and does it on the map.
+     *
+     * @return <code>false</code> if the move is not possible.
+     */
+    private boolean startMove() {
+        int new_direction = queue[queue_start];
+
+        queue_start = (queue_start + 1) % queue.length;
+        --queue_size;
+        push = map.containsGem(map.getKeeperIndex() + map.getOffset(new_direction));
+
+        if (!map.move(new_direction)) {
+            direction = -1;
+
+            return false;
+        }
+
+        direction = new_direction;
+        ++moves_in_frame;
+
+        return true;
+    }
+
+    /**
+     * Ends the animation of the current move.
+     */
+    private void finish() {
+        if (running) {
+            choreographer.removeFrameCallback(this);
+            running = false;
+        }
+
+        direction = -1;
+        progress = 0;
+        last_frame_time = 0;
+    }
+}
@@ -0,0 +1,262 @@
+package org.easysok;
+
+/**
+ * This class replays a solution on a map and seeks to any move of it.
+ *
+ * The moves are stored with 2 bits for the direction and 1 bit for the push flag. Every
+ * interval moves a snapshot of the map is kept as checkpoint, so seeking restores the
+ * nearest checkpoint before the target and replays at most interval - 1 moves. Seeking
+ * near the current position just moves forward or backward, which makes scrubbing over
+ * a slider cheap even for solutions with tens of thousands of moves.
+ */
+public class Replay {
+
+    /**
+     * The default number of moves between two checkpoints.
+     */
+    public static final int DEFAULT_INTERVAL = 64;
+
+    /**
+     * The map the moves are played on.
+     */
+    private Map map;
+
+    /**
+     * The number of moves.
+     */
+    private int length;
+
+    /**
+     * The directions of the moves, 4 moves per byte.
+     */
+    private byte[] directions;
+
+    /**
+     * The push flags of the moves, one bit per move.
+     */
+    private long[] pushes;
+
+    /**
+     * The number of moves between two checkpoints.
+     */
+    private int interval;
+
+    /**
+     * The snapshots of the map before the moves 0, interval, 2 * interval etc.
+     */
+    private MapSnapshot[] checkpoints;
+
+    /**
+     * The number of moves done on the map.
+     */
+    private int position;
+
+    /**
+     * Creates a replay with the default interval.
+     *
+     * @param map The map in its start position, it is changed by the replay.
+     * @param lurd The moves with lowercase letters for moves and uppercase ones for pushes.
+     */
+    public Replay(Map map, String lurd) {
+        this(map, lurd, DEFAULT_INTERVAL);
+    }
+
+    /**
+     * Creates a replay. The moves are checked and the map is in its start position
+     * afterwards.
+     *
+     * @param map The map in its start position, it is changed by the replay.
+     * @param lurd The moves with lowercase letters for moves and uppercase ones for pushes.
+     * @param interval The number of moves between two checkpoints.
+     * @throws IllegalArgumentException If a move is not possible or a push flag is wrong,
+     *                                  the map is in its start position then.
+     */
+    public Replay(Map map, String lurd, int interval) {
+        assert interval > 0;
+
+        this.map = map;
+        this.length = lurd.length();
+        this.interval = interval;
+        this.directions = new byte[(length + 3) / 4];
+        this.pushes = new long[(length + 63) / 64];
+        this.checkpoints = new MapSnapshot[length / interval + 1];
+
+        for (int i = 0; i < length; ++i) {
+            char c = lurd.charAt(i);
+            int direction = "lrud".indexOf(Character.toLowerCase(c));
+
+            if (direction < 0) {
+                throw invalid("Invalid move '" + c + "' at " + i);
+            }
+
+            if (i % interval == 0) {
+                checkpoints[i / interval] = map.getSnapshot();
+            }
+
+            boolean push = map.containsGem(map.getKeeperIndex() + map.getOffset(direction));
+
+            if ((push != Character.isUpperCase(c)) || !map.move(direction)) {
+                throw invalid("Move '" + c + "' at " + i + " is not possible");
+            }
+
+            directions[i >> 2] |= direction << ((i & 3) * 2);
+
+            if (push) {
+                pushes[i >> 6] |= 1L << i;
+            }
+        }
+
+        if (length % interval == 0) {
+            checkpoints[length / interval] = map.getSnapshot();
+        }
+
+        position = length;
+        seek(0);
+    }
+
+    /**
+     * Returns the number of moves.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Returns the number of moves done on the map.
+     */
+    public int getPosition() {
+        return position;
+    }
+
+    /**
+     * Returns the number of moves between two checkpoints.
+     */
+    public int getInterval() {
+        return interval;
+    }
+
+    /**
+     * Returns the direction of a move (0 = left, 1 = right, 2 = up, 3 = down).
+     *
+     * @param move The number of the move.
+     */
+    public int getDirection(int move) {
+        return (directions[move >> 2] >> ((move & 3) * 2)) & 3;
+    }
+
+    /**
+     * Returns <code>true</code> if the move pushes a gem.
+     *
+     * @param move The number of the move.
+     */
+    public boolean isPush(int move) {
+        return (pushes[move >> 6] & (1L << move)) != 0;
+    }
+
+    /**
+     * Returns the number of pushes before the given position.
+     *
+     * @param position The position.
+     */
+    public int getPushes(int position) {
+        int result = 0;
+        int words = position >> 6;
+
+        for (int i = 0; i < words; ++i) {
+            result += Long.bitCount(pushes[i]);
+        }
+
+        if ((position & 63) != 0) {
+            result += Long.bitCount(pushes[words] & ((1L << position) - 1));
+        }
+
+        return result;
+    }
+
+    /**
+     * Does the next move.
+     *
+     * @return <code>false</code> if the replay is at the end.
+     */
+    public boolean stepForward() {
+        if (position == length) {
+            return false;
+        }
+
+        map.move(getDirection(position));
+        ++position;
+
+        return true;
+    }
+
+    /**
+     * Undoes the last move.
+     *
+     * @return <code>false</code> if the replay is at the start.
+     */
+    public boolean stepBack() {
+        if (position == 0) {
+            return false;
+        }
+
+        --position;
+        map.undoMove(getDirection(position), isPush(position));
+
+        return true;
+    }
+
+    /**
+     * Brings the map into the position after the given number of moves.
+     *
+     * @param target The number of moves, between 0 and getLength().
+     */
+    public void seek(int target) {
+        if ((target < 0) || (target > length)) {
+            throw new IndexOutOfBoundsException("Position " + target + " of " + length);
+        }
+
+        int checkpoint = target / interval;
+        int checkpoint_cost = target - checkpoint * interval;
+
+        if (Math.abs(target - position) > checkpoint_cost) {
+            map.restore(checkpoints[checkpoint]);
+            position = checkpoint * interval;
+        }
+
+        while (position < target) {
+            stepForward();
+        }
+
+        while (position > target) {
+            stepBack();
+        }
+    }
+
+    /**
+     * Returns the moves in lurd format.
+     */
+    public String toLurd() {
+        StringBuilder result = new StringBuilder(length);
+
+        for (int i = 0; i < length; ++i) {
+            char c = "lrud".charAt(getDirection(i));
+
+            result.append(isPush(i) ? Character.toUpperCase(c) : c);
+        }
+
+        return result.toString();
+    }
+
+    /**
+     * Brings the map back into its start position and returns the exception to throw.
+     *
+     * @param message The message of the exception.
+     */
+    private IllegalArgumentException invalid(String message) {
+        if (checkpoints[0] != null) {
+            map.restore(checkpoints[0]);
+        }
+
+        return new IllegalArgumentException(message);
+    }
+}
@@ -0,0 +1,209 @@
+package org.easysok;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+/**
+ * This class reads the levels of a slc file (the XML format of many level sites) one by
+ * one.
+ *
+ * Like LevelReader only the current level is kept in memory, the pull parser streams
+ * the file. Title, description, email, url and the copyright of the LevelCollection
+ * element become the defaults of the collection, the Id and Copyright attributes of a
+ * Level element the name and copyright of the level.
+ */
+public class SlcReader {
+
+    /**
+     * The parser, positioned at the start tag of the next level or the end of the document.
+     */
+    private XmlPullParser parser;
+
+    /**
+     * The collection with the defaults of the header.
+     */
+    private Collection collection;
+
+    /**
+     * The lines of the current level.
+     */
+    private LinkedList<String> lines;
+
+    /**
+     * The number of levels read.
+     */
+    private int levels_read;
+
+    /**
+     * Creates the reader and reads the header.
+     *
+     * @param stream The stream to read from.
+     * @param encoding The encoding of the stream or null to use the one of the XML declaration.
+     * @param name The name of the collection, if the file does not contain a title.
+     */
+    public SlcReader(InputStream stream, String encoding, String name) throws IOException {
+        this(createParser(stream, encoding), name);
+    }
+
+    /**
+     * Creates the reader and reads the header.
+     *
+     * @param parser The parser with its input already set.
+     * @param name The name of the collection, if the file does not contain a title.
+     */
+    public SlcReader(XmlPullParser parser, String name) throws IOException {
+        this.parser = parser;
+        this.collection = new Collection(name);
+        this.lines = new LinkedList<String>();
+
+        try {
+            readHeader();
+        }
+        catch (XmlPullParserException e) {
+            throw new IOException("Invalid slc file: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Returns the collection with the defaults of the header.
+     */
+    public Collection getCollection() {
+        return collection;
+    }
+
+    /**
+     * Returns the number of levels read so far.
+     */
+    public int getLevelsRead() {
+        return levels_read;
+    }
+
+    /**
+     * Reads the next level.
+     *
+     * @return The level or null at the end of the file.
+     */
+    public Level next() throws IOException {
+        try {
+            if (parser.getEventType() != XmlPullParser.START_TAG) {
+                return null;
+            }
+
+            long start = Metrics.start();
+            String id = parser.getAttributeValue(null, "Id");
+            String copyright = parser.getAttributeValue(null, "Copyright");
+            int depth = parser.getDepth();
+
+            lines.clear();
+
+            while ((parser.next() != XmlPullParser.END_TAG) || (parser.getDepth() > depth)) {
+                if (parser.getEventType() == XmlPullParser.END_DOCUMENT) {
+                    throw new IOException("Unexpected end of slc file");
+                }
+
+                if ((parser.getEventType() == XmlPullParser.START_TAG) && parser.getName().equals("L")) {
+                    lines.add(parser.nextText().replace('-', ' ').replace('_', ' '));
+                }
+            }
+
+            Level level = new Level(lines, collection);
+
+            Metrics.stop(Metrics.PARSE_LEVEL, start);
+
+            if (id != null) {
+                level.setName(id.trim());
+            }
+
+            if ((copyright != null) && !copyright.trim().equals(collection.getCopyright())) {
+                level.setCopyright(copyright.trim());
+            }
+
+            ++levels_read;
+            skipToLevel();
+
+            return level;
+        }
+        catch (XmlPullParserException e) {
+            throw new IOException("Invalid slc file: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Creates a namespace unaware pull parser for the stream.
+     */
+    private static XmlPullParser createParser(InputStream stream, String encoding) throws IOException {
+        try {
+            XmlPullParser result = XmlPullParserFactory.newInstance().newPullParser();
+
+            result.setInput(stream, encoding);
+
+            return result;
+        }
+        catch (XmlPullParserException e) {
+            throw new IOException("Could not create the XML parser: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Reads the elements before the first level into the collection.
+     */
+    private void readHeader() throws XmlPullParserException, IOException {
+        String email = null;
+
+        for (int event = parser.getEventType(); event != XmlPullParser.END_DOCUMENT; event = parser.next()) {
+            if (event != XmlPullParser.START_TAG) {
+                continue;
+            }
+
+            String element = parser.getName();
+
+            if (element.equals("Level")) {
+                return;
+            }
+            else if (element.equals("Title")) {
+                String title = parser.nextText().trim();
+
+                if (!title.isEmpty()) {
+                    collection.setName(title);
+                }
+            }
+            else if (element.equals("Description")) {
+                collection.setInfo(parser.nextText().trim());
+            }
+            else if (element.equals("Email")) {
+                email = parser.nextText().trim();
+            }
+            else if (element.equals("Url")) {
+                collection.setHomepage(parser.nextText().trim());
+            }
+            else if (element.equals("LevelCollection")) {
+                String copyright = parser.getAttributeValue(null, "Copyright");
+
+                if (copyright != null) {
+                    collection.setCopyright(copyright.trim());
+
+                    if ((email != null) && !email.isEmpty()) {
+                        collection.setAuthorEmailLine(copyright.trim() + " <" + email + ">");
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves the parser to the start tag of the next level or the end of the document.
+     */
+    private void skipToLevel() throws XmlPullParserException, IOException {
+        int event = parser.next();
+
+        while ((event != XmlPullParser.END_DOCUMENT) &&
+               ((event != XmlPullParser.START_TAG) || !parser.getName().equals("Level"))) {
+            event = parser.next();
+        }
+    }
+}
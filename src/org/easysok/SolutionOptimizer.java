@@ -0,0 +1,673 @@
+package org.easysok;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class shortens existing solutions.
+ *
+ * The solution is reduced to its pushes, with the shortest keeper paths in between. It
+ * is then cut into windows of a fixed number of pushes, and for each window a search
+ * looks for a cheaper way from the position at its start to the position at its end.
+ * The search only puts gems on fields near the fields the gems use in the window (the
+ * width), and gives up after a fixed number of positions, so the memory of a window
+ * search is bounded. Each pass still keeps the position and the cost after every push
+ * of the whole solution, which the windows start and end at. The windows are searched
+ * in parallel, the improvements are spliced in and the windows are moved by half their
+ * length for the next pass, until a pass finds nothing.
+ *
+ * The result is replayed on the map before it is returned.
+ */
+public class SolutionOptimizer {
+
+    /**
+     * Optimize moves first, then pushes.
+     */
+    public static final int MOVES_PUSHES = 0;
+
+    /**
+     * Optimize pushes first, then moves.
+     */
+    public static final int PUSHES_MOVES = 1;
+
+    /**
+     * A position of a window search.
+     */
+    private static class Node {
+
+        /**
+         * The position.
+         */
+        final BitBoard board;
+
+        /**
+         * The cost from the start of the window.
+         */
+        final long cost;
+
+        /**
+         * The parent node or null.
+         */
+        final Node parent;
+
+        /**
+         * The push leading to this node (gem_index * 4 + direction).
+         */
+        final int push;
+
+        /**
+         * Creates a node.
+         */
+        Node(BitBoard board, long cost, Node parent, int push) {
+            this.board = board;
+            this.cost = cost;
+            this.parent = parent;
+            this.push = push;
+        }
+    }
+
+    /**
+     * The key of a position with the exact keeper field.
+     */
+    private static class PositionKey {
+
+        /**
+         * The position.
+         */
+        private final BitBoard board;
+
+        /**
+         * The hash of the position.
+         */
+        private final int hash;
+
+        /**
+         * Creates the key.
+         */
+        PositionKey(BitBoard board) {
+            long long_hash = board.hashExact();
+
+            this.board = board;
+            this.hash = (int)(long_hash ^ (long_hash >>> 32));
+        }
+
+        /**
+         * Returns the hash code.
+         */
+        public int hashCode() {
+            return hash;
+        }
+
+        /**
+         * Returns <code>true</code> if the other key is the same position.
+         */
+        public boolean equals(Object other) {
+            if (!(other instanceof PositionKey)) {
+                return false;
+            }
+
+            PositionKey other_key = (PositionKey)other;
+
+            return (hash == other_key.hash) && board.samePositionExact(other_key.board);
+        }
+    }
+
+    /**
+     * The map.
+     */
+    private Map map;
+
+    /**
+     * The offsets for the directions left, right, up and down.
+     */
+    private int[] offsets;
+
+    /**
+     * The metric, MOVES_PUSHES or PUSHES_MOVES.
+     */
+    private int metric;
+
+    /**
+     * The number of pushes per window.
+     */
+    private int window;
+
+    /**
+     * The maximal distance of the gems from the fields used in the window.
+     */
+    private int width;
+
+    /**
+     * The maximal number of positions of a window search.
+     */
+    private int max_positions;
+
+    /**
+     * The number of threads.
+     */
+    private int threads;
+
+    /**
+     * Creates an optimizer.
+     *
+     * @param level The level, its map must be valid.
+     */
+    public SolutionOptimizer(Level level) {
+        this.map = level.getMap();
+        this.offsets = new int[4];
+        this.metric = MOVES_PUSHES;
+        this.window = 20;
+        this.width = 1;
+        this.max_positions = 200000;
+        this.threads = Runtime.getRuntime().availableProcessors();
+
+        for (int i = 0; i < 4; ++i) {
+            offsets[i] = map.getOffset(i);
+        }
+    }
+
+    /**
+     * Sets the metric.
+     *
+     * @param metric MOVES_PUSHES or PUSHES_MOVES.
+     */
+    public void setMetric(int metric) {
+        this.metric = metric;
+    }
+
+    /**
+     * Sets the number of pushes per window.
+     *
+     * @param window The number of pushes.
+     */
+    public void setWindow(int window) {
+        this.window = Math.max(2, window);
+    }
+
+    /**
+     * Sets how far from the fields used in the window the gems may go.
+     *
+     * @param width The distance in fields.
+     */
+    public void setWidth(int width) {
+        this.width = Math.max(0, width);
+    }
+
+    /**
+     * Sets the maximal number of positions of a window search. Together with the number
+     * of threads this limits the memory used.
+     *
+     * @param max_positions The maximal number of positions.
+     */
+    public void setMaxPositions(int max_positions) {
+        this.max_positions = max_positions;
+    }
+
+    /**
+     * Sets the number of threads.
+     *
+     * @param threads The number of threads.
+     */
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Optimizes a solution.
+     *
+     * @param solution The solution in LURD format.
+     * @return The optimized solution, which is never worse in the metric.
+     * @throws IllegalArgumentException if the solution does not solve the map.
+     */
+    public String optimize(String solution) throws InterruptedException {
+        int[] pushes = getPushes(solution);
+        int passes_without_improvement = 0;
+
+        // Stop when neither the windows nor the shifted windows find anything.
+        for (int pass = 0; passes_without_improvement < 2; ++pass) {
+            int[] new_pushes = optimizePass(pushes, (pass % 2 == 0) ? 0 : window / 2);
+
+            passes_without_improvement = (new_pushes == pushes) ? passes_without_improvement + 1 : 0;
+            pushes = new_pushes;
+        }
+
+        String result = createLurd(pushes);
+
+        if (!verify(result)) {
+            throw new IllegalStateException("Optimized solution is invalid");
+        }
+
+        if (cost(result) < cost(solution)) {
+            return result;
+        }
+
+        return solution;
+    }
+
+    /**
+     * Returns the cost of a solution in the metric.
+     *
+     * @param solution The solution in LURD format.
+     */
+    public long cost(String solution) {
+        long pushes = 0;
+
+        for (int i = 0; i < solution.length(); ++i) {
+            if (Character.isUpperCase(solution.charAt(i))) {
+                ++pushes;
+            }
+        }
+
+        return cost(solution.length(), pushes);
+    }
+
+    /**
+     * Returns <code>true</code> if the solution is valid and solves the map.
+     *
+     * @param solution The solution in LURD format.
+     */
+    public boolean verify(String solution) {
+        BitBoard board = new BitBoard(map);
+
+        for (int i = 0; i < solution.length(); ++i) {
+            char c = solution.charAt(i);
+            int direction = getDirection(c);
+
+            if (direction == -1) {
+                return false;
+            }
+
+            int keeper_index = board.getKeeper();
+            int target = keeper_index + offsets[direction];
+
+            if (board.isWall(target)) {
+                return false;
+            }
+
+            if (board.isGem(target)) {
+                int gem_target = target + offsets[direction];
+
+                if (!Character.isUpperCase(c) || !board.isFree(gem_target)) {
+                    return false;
+                }
+
+                board.moveGem(target, gem_target);
+            }
+            else if (Character.isUpperCase(c)) {
+                return false;
+            }
+
+            board.setKeeper(target);
+        }
+
+        return board.isSolved();
+    }
+
+    /**
+     * Runs one pass over all windows.
+     *
+     * @param pushes The pushes of the solution.
+     * @param offset The start of the first window.
+     * @return The improved pushes or the given array, if nothing was improved.
+     */
+    private int[] optimizePass(final int[] pushes, int offset) throws InterruptedException {
+        final BitBoard[] positions = getPositions(pushes);
+        final long[] costs = getCosts(positions, pushes);
+        List<int[]> windows = new ArrayList<int[]>();
+
+        if (offset > 0) {
+            windows.add(new int[] {0, Math.min(offset, pushes.length)});
+        }
+
+        for (int start = offset; start < pushes.length; start += window) {
+            windows.add(new int[] {start, Math.min(start + window, pushes.length)});
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<int[]>> futures = new ArrayList<Future<int[]>>(windows.size());
+
+        try {
+            for (final int[] bounds: windows) {
+                futures.add(executor.submit(new Callable<int[]>() {
+                    public int[] call() {
+                        return searchWindow(positions, pushes, costs, bounds[0], bounds[1]);
+                    }
+                }));
+            }
+
+            int[][] window_pushes = new int[windows.size()][];
+            int length = 0;
+            boolean improved = false;
+
+            for (int i = 0; i < windows.size(); ++i) {
+                int[] bounds = windows.get(i);
+                window_pushes[i] = futures.get(i).get();
+
+                if (window_pushes[i] == null) {
+                    window_pushes[i] = Arrays.copyOfRange(pushes, bounds[0], bounds[1]);
+                }
+                else {
+                    improved = true;
+                }
+
+                length += window_pushes[i].length;
+            }
+
+            if (!improved) {
+                return pushes;
+            }
+
+            // The cheaper ways may have more pushes in the moves metric.
+            int[] result = new int[length];
+            length = 0;
+
+            for (int[] act_pushes: window_pushes) {
+                System.arraycopy(act_pushes, 0, result, length, act_pushes.length);
+                length += act_pushes.length;
+            }
+
+            return result;
+        }
+        catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Searches a cheaper way through a window.
+     *
+     * @param positions The positions after each push, positions[0] is the start.
+     * @param pushes The pushes of the solution.
+     * @param costs The costs up to each position.
+     * @param start The position at the start of the window.
+     * @param end The position at the end of the window.
+     * @return The pushes of the cheaper way or null, if none was found.
+     */
+    private int[] searchWindow(BitBoard[] positions, int[] pushes, long[] costs, int start, int end) {
+        if (end - start < 2) {
+            return null;
+        }
+
+        int size = map.getSize();
+        boolean[] allowed = getAllowedFields(positions, start, end);
+        long bound = costs[end] - costs[start];
+        PositionKey target = new PositionKey(positions[end]);
+        int[] distances = new int[size];
+        int[] queue = new int[size];
+
+        PriorityQueue<Node> open = new PriorityQueue<Node>(1024, new Comparator<Node>() {
+            public int compare(Node lhs, Node rhs) {
+                return (lhs.cost < rhs.cost) ? -1 : ((lhs.cost > rhs.cost) ? 1 : 0);
+            }
+        });
+
+        HashMap<PositionKey, Long> seen = new HashMap<PositionKey, Long>();
+        Node start_node = new Node(positions[start], 0, null, -1);
+        open.add(start_node);
+        seen.put(new PositionKey(start_node.board), 0L);
+
+        while (!open.isEmpty() && (seen.size() < max_positions) && !Thread.currentThread().isInterrupted()) {
+            Node node = open.poll();
+            PositionKey key = new PositionKey(node.board);
+
+            if (seen.get(key) < node.cost) {
+                continue;
+            }
+
+            if (key.equals(target)) {
+                return (node.cost < bound) ? getPushes(node) : null;
+            }
+
+            BitBoard board = node.board;
+            getKeeperDistances(board, distances, queue);
+
+            for (int gem_index = 0; gem_index < size; ++gem_index) {
+                if (!board.isGem(gem_index)) {
+                    continue;
+                }
+
+                for (int direction = 0; direction < 4; ++direction) {
+                    int keeper_index = gem_index - offsets[direction];
+                    int gem_target = gem_index + offsets[direction];
+
+                    if ((distances[keeper_index] < 0) || !board.isFree(gem_target) || !allowed[gem_target] ||
+                        board.isDead(gem_target)) {
+                        continue;
+                    }
+
+                    long cost = node.cost + cost(distances[keeper_index] + 1, 1);
+
+                    if (cost >= bound) {
+                        continue;
+                    }
+
+                    BitBoard child = board.copy();
+                    child.moveGem(gem_index, gem_target);
+                    child.setKeeper(gem_index);
+
+                    if (!child.isGoal(gem_target) && child.hasFreezeDeadlock()) {
+                        continue;
+                    }
+
+                    PositionKey child_key = new PositionKey(child);
+                    Long seen_cost = seen.get(child_key);
+
+                    if ((seen_cost != null) && (seen_cost <= cost)) {
+                        continue;
+                    }
+
+                    seen.put(child_key, cost);
+                    open.add(new Node(child, cost, node, gem_index * 4 + direction));
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the fields a gem may use in a window search: all fields with a gem in one of
+     * the positions of the window and the fields within the width around them.
+     */
+    private boolean[] getAllowedFields(BitBoard[] positions, int start, int end) {
+        int size = map.getSize();
+        boolean[] result = new boolean[size];
+        int[] queue = new int[size];
+        int[] distances = new int[size];
+        int queue_end = 0;
+
+        Arrays.fill(distances, -1);
+
+        for (int i = start; i <= end; ++i) {
+            for (int index = 0; index < size; ++index) {
+                if (positions[i].isGem(index) && (distances[index] == -1)) {
+                    distances[index] = 0;
+                    queue[queue_end++] = index;
+                }
+            }
+        }
+
+        for (int queue_start = 0; queue_start < queue_end; ++queue_start) {
+            int index = queue[queue_start];
+            result[index] = true;
+
+            if (distances[index] == width) {
+                continue;
+            }
+
+            for (int direction = 0; direction < 4; ++direction) {
+                int neighbour = index + offsets[direction];
+
+                if (!map.isWallOrOutside(neighbour) && (distances[neighbour] == -1)) {
+                    distances[neighbour] = distances[index] + 1;
+                    queue[queue_end++] = neighbour;
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Calculates the number of moves of the keeper to each field, -1 if it can not reach
+     * a field.
+     */
+    private void getKeeperDistances(BitBoard board, int[] distances, int[] queue) {
+        int queue_end = 0;
+
+        Arrays.fill(distances, -1);
+        distances[board.getKeeper()] = 0;
+        queue[queue_end++] = board.getKeeper();
+
+        for (int queue_start = 0; queue_start < queue_end; ++queue_start) {
+            int index = queue[queue_start];
+
+            for (int direction = 0; direction < 4; ++direction) {
+                int neighbour = index + offsets[direction];
+
+                if ((distances[neighbour] == -1) && board.isFree(neighbour)) {
+                    distances[neighbour] = distances[index] + 1;
+                    queue[queue_end++] = neighbour;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the pushes leading to a node of a window search.
+     */
+    private static int[] getPushes(Node node) {
+        int length = 0;
+
+        for (Node act_node = node; act_node.parent != null; act_node = act_node.parent) {
+            ++length;
+        }
+
+        int[] result = new int[length];
+
+        for (Node act_node = node; act_node.parent != null; act_node = act_node.parent) {
+            result[--length] = act_node.push;
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the pushes of a solution.
+     *
+     * @param solution The solution in LURD format.
+     * @throws IllegalArgumentException if the solution does not solve the map.
+     */
+    private int[] getPushes(String solution) {
+        if (!verify(solution)) {
+            throw new IllegalArgumentException("Invalid solution");
+        }
+
+        BitBoard board = new BitBoard(map);
+        int[] result = new int[solution.length()];
+        int length = 0;
+
+        for (int i = 0; i < solution.length(); ++i) {
+            int direction = getDirection(solution.charAt(i));
+            int target = board.getKeeper() + offsets[direction];
+
+            if (board.isGem(target)) {
+                board.moveGem(target, target + offsets[direction]);
+                result[length++] = target * 4 + direction;
+            }
+
+            board.setKeeper(target);
+        }
+
+        return Arrays.copyOf(result, length);
+    }
+
+    /**
+     * Returns the positions after each push, the first one is the start position.
+     */
+    private BitBoard[] getPositions(int[] pushes) {
+        BitBoard[] result = new BitBoard[pushes.length + 1];
+        BitBoard board = new BitBoard(map);
+        result[0] = board;
+
+        for (int i = 0; i < pushes.length; ++i) {
+            int gem_index = pushes[i] >> 2;
+
+            board = board.copy();
+            board.moveGem(gem_index, gem_index + offsets[pushes[i] & 3]);
+            board.setKeeper(gem_index);
+            result[i + 1] = board;
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the costs from the start to each position with the shortest keeper paths.
+     */
+    private long[] getCosts(BitBoard[] positions, int[] pushes) {
+        int size = map.getSize();
+        int[] distances = new int[size];
+        int[] queue = new int[size];
+        long[] result = new long[positions.length];
+
+        for (int i = 0; i < pushes.length; ++i) {
+            getKeeperDistances(positions[i], distances, queue);
+            int keeper_index = (pushes[i] >> 2) - offsets[pushes[i] & 3];
+            result[i + 1] = result[i] + cost(distances[keeper_index] + 1, 1);
+        }
+
+        return result;
+    }
+
+    /**
+     * Creates the solution of the pushes with the shortest keeper paths.
+     */
+    private String createLurd(int[] pushes) {
+        StringBuilder result = new StringBuilder();
+        BitBoard board = new BitBoard(map);
+
+        for (int push: pushes) {
+            int gem_index = push >> 2;
+            int direction = push & 3;
+
+            Solver.appendKeeperPath(board, offsets, board.getKeeper(), gem_index - offsets[direction], result);
+            result.append(Solver.push_chars[direction]);
+            board.moveGem(gem_index, gem_index + offsets[direction]);
+            board.setKeeper(gem_index);
+        }
+
+        return result.toString();
+    }
+
+    /**
+     * Returns the cost of moves and pushes in the metric, the first criterion in the
+     * upper bits.
+     */
+    private long cost(long moves, long pushes) {
+        if (metric == PUSHES_MOVES) {
+            return (pushes << 32) + moves;
+        }
+
+        return (moves << 32) + pushes;
+    }
+
+    /**
+     * Returns the direction of a LURD character or -1.
+     */
+    private static int getDirection(char c) {
+        return "lrud".indexOf(Character.toLowerCase(c));
+    }
+}
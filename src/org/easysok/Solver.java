@@ -0,0 +1,829 @@
+package org.easysok;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+
+/**
+ * This class solves sokoban maps with an A* search over push positions.
+ *
+ * A node is a position after a push. The keeper moves between pushes are not part of
+ * the search, all positions with the same gems and the same keeper area are the same.
+ * The heuristic is the minimal cost gem to goal assignment (MatchingLowerBound), which
+ * is repaired incrementally for each child instead of being recalculated.
+ *
+ * With macro moves (see Topology) a gem is pushed through tunnels and into goal rooms
+ * in a single node. This saves many nodes, but the solution may need a few more pushes
+ * than the optimal one.
+ *
+ * The solution is returned in LURD format: lower case letters for moves and upper case
+ * letters for pushes.
+ *
+ * With a checkpoint file the open nodes and the transposition table are written to disk
+ * at intervals, when the search stops without result and when the memory runs low (see
+ * SolverCheckpoint). The next solve() with the same file continues the search exactly
+ * where it stopped.
+ */
+public class Solver {
+
+    /**
+     * The characters for the moves in the directions left, right, up and down.
+     */
+    static final char[] move_chars = new char[] {'l', 'r', 'u', 'd'};
+
+    /**
+     * The characters for the pushes in the directions left, right, up and down.
+     */
+    static final char[] push_chars = new char[] {'L', 'R', 'U', 'D'};
+
+    /**
+     * The number of expanded nodes between two checks of the free memory.
+     */
+    private static final int MEMORY_CHECK_INTERVAL = 4096;
+
+    /**
+     * The part of the maximum memory, above which the search is suspended.
+     */
+    private static final double MEMORY_LIMIT = 0.85;
+
+    /**
+     * A search node.
+     */
+    static class Node {
+
+        /**
+         * The position.
+         */
+        final BitBoard board;
+
+        /**
+         * The positions of the gems.
+         */
+        final int[] gems;
+
+        /**
+         * The number of pushes from the start.
+         */
+        final int pushes;
+
+        /**
+         * The lower bound of the remaining pushes.
+         */
+        final int lower_bound;
+
+        /**
+         * The parent node or null for the start node.
+         */
+        final Node parent;
+
+        /**
+         * The position of the pushed gem before the push.
+         */
+        final int gem_index;
+
+        /**
+         * The direction of the push.
+         */
+        final int direction;
+
+        /**
+         * The pushes of the macro following the push or null.
+         */
+        final int[] macro;
+
+        /**
+         * The number of the node, used to break ties.
+         */
+        final long number;
+
+        /**
+         * The state of the gem to goal assignment (see MatchingLowerBound.getState()) or
+         * null. It is released when the node is expanded.
+         */
+        int[] matching;
+
+        /**
+         * Creates a node.
+         */
+        Node(BitBoard board, int[] gems, int pushes, int lower_bound, Node parent, int gem_index,
+                int direction, int[] macro, long number, int[] matching) {
+            this.board = board;
+            this.gems = gems;
+            this.pushes = pushes;
+            this.lower_bound = lower_bound;
+            this.parent = parent;
+            this.gem_index = gem_index;
+            this.direction = direction;
+            this.macro = macro;
+            this.number = number;
+            this.matching = matching;
+        }
+    }
+
+    /**
+     * The key of a position in the transposition table.
+     */
+    static class PositionKey {
+
+        /**
+         * The position.
+         */
+        final BitBoard board;
+
+        /**
+         * The hash of the position.
+         */
+        private final int hash;
+
+        /**
+         * Creates the key.
+         *
+         * @param board The position.
+         */
+        PositionKey(BitBoard board) {
+            long long_hash = board.hash();
+
+            this.board = board;
+            this.hash = (int)(long_hash ^ (long_hash >>> 32));
+        }
+
+        /**
+         * Returns the hash code.
+         */
+        public int hashCode() {
+            return hash;
+        }
+
+        /**
+         * Returns <code>true</code> if the other key is the same position.
+         */
+        public boolean equals(Object other) {
+            if (!(other instanceof PositionKey)) {
+                return false;
+            }
+
+            PositionKey other_key = (PositionKey)other;
+
+            return (hash == other_key.hash) && board.samePosition(other_key.board);
+        }
+    }
+
+    /**
+     * The map to solve.
+     */
+    private Map map;
+
+    /**
+     * The analysis of the map.
+     */
+    private MapAnalysis analysis;
+
+    /**
+     * The topology of the map.
+     */
+    private Topology topology;
+
+    /**
+     * The offsets for the directions left, right, up and down.
+     */
+    private int[] offsets;
+
+    /**
+     * If true, macro moves are used.
+     */
+    private boolean use_macros;
+
+    /**
+     * If true, corral and frozen gem deadlocks are pruned.
+     */
+    private boolean use_corrals;
+
+    /**
+     * The deadlock patterns or null.
+     */
+    private DeadlockPatterns patterns;
+
+    /**
+     * If true, new deadlock patterns are learned.
+     */
+    private boolean learn_patterns;
+
+    /**
+     * The maximum number of nodes to expand.
+     */
+    private int max_nodes;
+
+    /**
+     * The checkpoint file or null.
+     */
+    private File checkpoint_file;
+
+    /**
+     * The number of expanded nodes between two checkpoints or 0.
+     */
+    private int checkpoint_interval;
+
+    /**
+     * True, if the last search was suspended because the memory ran low.
+     */
+    private boolean suspended;
+
+    /**
+     * True, if the last search ended without a solution after all positions were
+     * searched.
+     */
+    private boolean exhausted;
+
+    /**
+     * The number of expanded nodes of the last search.
+     */
+    private int nodes_expanded;
+
+    /**
+     * The number of pushes of the last solution.
+     */
+    private int solution_pushes;
+
+    /**
+     * If true, the search stops as soon as possible.
+     */
+    private volatile boolean cancelled;
+
+    /**
+     * Creates a solver.
+     *
+     * @param map The map to solve, which must be valid.
+     * @param analysis The analysis of the map.
+     */
+    public Solver(Map map, MapAnalysis analysis) {
+        this.map = map;
+        this.analysis = analysis;
+        this.offsets = new int[4];
+        this.max_nodes = 1000000;
+        this.use_macros = true;
+        this.use_corrals = true;
+
+        for (int i = 0; i < 4; ++i) {
+            offsets[i] = map.getOffset(i);
+        }
+    }
+
+    /**
+     * Creates a solver, which analyzes the map itself.
+     *
+     * @param map The map to solve, which must be valid.
+     */
+    public Solver(Map map) {
+        this(map, new MapAnalysis(map));
+    }
+
+    /**
+     * Sets the maximum number of nodes expanded by solve().
+     *
+     * @param max_nodes The maximum number of nodes.
+     */
+    public void setMaxNodes(int max_nodes) {
+        this.max_nodes = max_nodes;
+    }
+
+    /**
+     * Enables or disables the macro moves through tunnels and into goal rooms.
+     *
+     * @param use_macros If true, macro moves are used.
+     */
+    public void setUseMacros(boolean use_macros) {
+        this.use_macros = use_macros;
+    }
+
+    /**
+     * Enables or disables the pruning with corrals and frozen gems (see CorralPruner).
+     *
+     * @param use_corrals If true, corrals are used.
+     */
+    public void setUseCorrals(boolean use_corrals) {
+        this.use_corrals = use_corrals;
+    }
+
+    /**
+     * Sets the deadlock patterns checked after each push, which may be shared by the
+     * solvers of several threads.
+     *
+     * @param patterns The patterns or null.
+     * @param learn If true, the freeze deadlocks and the deadlocks found by the lower
+     *              bound are checked for new patterns.
+     */
+    public void setDeadlockPatterns(DeadlockPatterns patterns, boolean learn) {
+        this.patterns = patterns;
+        this.learn_patterns = learn;
+    }
+
+    /**
+     * Sets the file, to which the state of the search is written and from which solve()
+     * continues a previous search of the same map with the same settings. The file is
+     * deleted when the search ends with a solution or without any open node.
+     *
+     * @param file The file or null.
+     * @param interval The number of expanded nodes between two checkpoints or 0, if the
+     *                 state is only written when the search stops.
+     */
+    public void setCheckpoint(File file, int interval) {
+        this.checkpoint_file = file;
+        this.checkpoint_interval = interval;
+    }
+
+    /**
+     * Returns <code>true</code> if the last call of solve() stopped, because the memory
+     * ran low. The state is in the checkpoint file then.
+     */
+    public boolean isSuspended() {
+        return suspended;
+    }
+
+    /**
+     * Returns <code>true</code> if the last call of solve() searched all positions
+     * without finding a solution, so the level has none. It is <code>false</code> if the
+     * search was stopped by cancel(), the node limit or low memory.
+     */
+    public boolean isExhausted() {
+        return exhausted;
+    }
+
+    /**
+     * Returns the number of nodes expanded by the last call of solve().
+     */
+    public int getNodesExpanded() {
+        return nodes_expanded;
+    }
+
+    /**
+     * Returns the number of pushes of the last solution.
+     */
+    public int getSolutionPushes() {
+        return solution_pushes;
+    }
+
+    /**
+     * Stops a running search. May be called from any thread.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Solves the map.
+     *
+     * @return The solution in LURD format or null, if no solution was found within the
+     *         node limit or the search was cancelled.
+     */
+    public String solve() {
+        long start = Metrics.start();
+
+        try {
+            Node solution = search();
+
+            if (solution == null) {
+                return null;
+            }
+
+            solution_pushes = solution.pushes;
+
+            return createLurd(solution);
+        }
+        finally {
+            Metrics.stop(Metrics.SOLVE, start);
+        }
+    }
+
+    /**
+     * Runs the A* search.
+     *
+     * @return The solved node or null.
+     */
+    private Node search() {
+        nodes_expanded = 0;
+        suspended = false;
+        exhausted = false;
+
+        if (use_macros && (topology == null)) {
+            topology = new Topology(map);
+        }
+
+        BitBoard start_board = new BitBoard(map);
+        int[] start_gems = getGems(start_board);
+
+        if (start_gems.length != analysis.numberOfGoals()) {
+            return null;
+        }
+
+        CorralPruner pruner = use_corrals ? new CorralPruner(map, analysis) : null;
+        MatchingLowerBound bound = new MatchingLowerBound(analysis, start_gems);
+        MatchingLowerBound child_bound = new MatchingLowerBound(analysis, start_gems);
+        int start_lower_bound = bound.getLowerBound();
+
+        if (start_lower_bound == MatchingLowerBound.DEADLOCK) {
+            exhausted = true;
+
+            return null;
+        }
+
+        PriorityQueue<Node> open = new PriorityQueue<Node>(1024, new Comparator<Node>() {
+            public int compare(Node lhs, Node rhs) {
+                int lhs_cost = lhs.pushes + lhs.lower_bound;
+                int rhs_cost = rhs.pushes + rhs.lower_bound;
+
+                if (lhs_cost != rhs_cost) {
+                    return (lhs_cost < rhs_cost) ? -1 : 1;
+                }
+
+                if (lhs.lower_bound != rhs.lower_bound) {
+                    return (lhs.lower_bound < rhs.lower_bound) ? -1 : 1;
+                }
+
+                return (lhs.number < rhs.number) ? -1 : ((lhs.number > rhs.number) ? 1 : 0);
+            }
+        });
+
+        HashMap<PositionKey, Integer> seen = new HashMap<PositionKey, Integer>();
+        long node_number = 0;
+        Node start_node = new Node(start_board, start_gems, 0, start_lower_bound, null, -1, -1, null,
+                node_number++, bound.getState());
+        SolverCheckpoint checkpoint = readCheckpoint(start_node);
+
+        if (checkpoint != null) {
+            open.addAll(checkpoint.open);
+            seen = checkpoint.seen;
+            node_number = checkpoint.node_number;
+            nodes_expanded = checkpoint.nodes_expanded;
+        }
+        else {
+            open.add(start_node);
+            seen.put(new PositionKey(start_board), 0);
+        }
+
+        int next_checkpoint = nodes_expanded + checkpoint_interval;
+        int next_memory_check = nodes_expanded + MEMORY_CHECK_INTERVAL;
+
+        while (!open.isEmpty() && !cancelled && (nodes_expanded < max_nodes)) {
+            if ((checkpoint_file != null) && (checkpoint_interval > 0) && (nodes_expanded >= next_checkpoint)) {
+                writeCheckpoint(start_node, open, seen, node_number);
+                next_checkpoint = nodes_expanded + checkpoint_interval;
+            }
+
+            if ((checkpoint_file != null) && (nodes_expanded >= next_memory_check)) {
+                next_memory_check = nodes_expanded + MEMORY_CHECK_INTERVAL;
+
+                if (isMemoryLow() && writeCheckpoint(start_node, open, seen, node_number)) {
+                    suspended = true;
+
+                    return null;
+                }
+            }
+
+            Node node = open.poll();
+            Integer best_pushes = seen.get(new PositionKey(node.board));
+
+            if ((best_pushes != null) && (best_pushes < node.pushes)) {
+                continue;
+            }
+
+            if (node.board.isSolved()) {
+                deleteCheckpoint();
+
+                return node;
+            }
+
+            ++nodes_expanded;
+            Metrics.count(Metrics.SOLVER_NODE);
+
+            BitBoard board = node.board;
+
+            // The assignment of the parent was repaired for this node, only the nodes read
+            // from a checkpoint need a new one.
+            if (node.matching != null) {
+                bound.setState(node.gems, node.matching);
+                node.matching = null;
+            }
+            else {
+                bound.setGems(node.gems);
+            }
+
+            // An unsolved PI-corral has to be entered first, all other pushes can wait.
+            boolean corral_pushes_only = (pruner != null) &&
+                    (pruner.checkCorrals(board) == CorralPruner.MUST_PUSH);
+
+            for (int gem = 0; gem < node.gems.length; ++gem) {
+                int gem_index = node.gems[gem];
+
+                for (int direction = 0; direction < 4; ++direction) {
+                    int keeper_index = gem_index - offsets[direction];
+                    int target_index = gem_index + offsets[direction];
+
+                    if (!board.isFree(target_index) || board.isDead(target_index) ||
+                        !board.isReachable(keeper_index)) {
+                        continue;
+                    }
+
+                    if (corral_pushes_only && !pruner.isCorralPush(gem_index, direction)) {
+                        continue;
+                    }
+
+                    BitBoard child = board.copy();
+                    child.moveGem(gem_index, target_index);
+                    child.setKeeper(gem_index);
+
+                    int[] macro = use_macros ? getMacro(child, target_index, direction) : null;
+                    int child_pushes = node.pushes + 1;
+
+                    if (macro != null) {
+                        for (int push: macro) {
+                            int from = push >> 2;
+                            target_index = from + offsets[push & 3];
+                            child.moveGem(from, target_index);
+                            child.setKeeper(from);
+                        }
+
+                        child_pushes += macro.length;
+                    }
+
+                    if (!child.isGoal(target_index) && child.hasFreezeDeadlock()) {
+                        learnPattern(child, target_index);
+                        continue;
+                    }
+
+                    if ((patterns != null) && patterns.isDeadlock(child, target_index)) {
+                        continue;
+                    }
+
+                    // A pruned corral push is only postponed, it is no deadlock to learn from.
+                    if ((pruner != null) && (pruner.checkPush(child, target_index) == CorralPruner.PRUNE)) {
+                        continue;
+                    }
+
+                    PositionKey key = new PositionKey(child);
+                    Integer seen_pushes = seen.get(key);
+
+                    if ((seen_pushes != null) && (seen_pushes <= child_pushes)) {
+                        continue;
+                    }
+
+                    child_bound.copyFrom(bound);
+                    child_bound.moveGem(gem, target_index);
+                    int lower_bound = child_bound.getLowerBound();
+
+                    if (lower_bound == MatchingLowerBound.DEADLOCK) {
+                        learnPattern(child, target_index);
+                        continue;
+                    }
+
+                    int[] child_gems = node.gems.clone();
+                    child_gems[gem] = target_index;
+
+                    seen.put(key, child_pushes);
+                    open.add(new Node(child, child_gems, child_pushes, lower_bound, node, gem_index,
+                            direction, macro, node_number++, child_bound.getState()));
+                }
+            }
+        }
+
+        if (open.isEmpty()) {
+            // There is no solution, so there is nothing to continue.
+            exhausted = true;
+            deleteCheckpoint();
+        }
+        else if (checkpoint_file != null) {
+            writeCheckpoint(start_node, open, seen, node_number);
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the settings, which must be the same to continue a search.
+     */
+    private int getSettings() {
+        return (use_macros ? 1 : 0) | (use_corrals ? 2 : 0);
+    }
+
+    /**
+     * Reads the checkpoint file.
+     *
+     * @param start_node The start node of the search.
+     * @return The checkpoint or null, if there is none or it cannot be read.
+     */
+    private SolverCheckpoint readCheckpoint(Node start_node) {
+        if (checkpoint_file == null) {
+            return null;
+        }
+
+        try {
+            return SolverCheckpoint.read(checkpoint_file, analysis.getLayoutHash(), getSettings(), start_node,
+                    offsets);
+        }
+        catch (IOException e) {
+            // A broken checkpoint only costs the search done so far.
+            return null;
+        }
+    }
+
+    /**
+     * Writes the checkpoint file.
+     *
+     * @return <code>false</code> if the file could not be written.
+     */
+    private boolean writeCheckpoint(Node start_node, Iterable<Node> open, HashMap<PositionKey, Integer> seen,
+            long node_number) {
+        try {
+            SolverCheckpoint.write(checkpoint_file, analysis.getLayoutHash(), getSettings(), start_node,
+                    node_number, nodes_expanded, open, seen);
+
+            return true;
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Deletes the checkpoint file, if there is one.
+     */
+    private void deleteCheckpoint() {
+        if (checkpoint_file != null) {
+            checkpoint_file.delete();
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if the used memory exceeds MEMORY_LIMIT even after a
+     * garbage collection.
+     */
+    private static boolean isMemoryLow() {
+        Runtime runtime = Runtime.getRuntime();
+        long limit = (long)(runtime.maxMemory() * MEMORY_LIMIT);
+
+        if (runtime.totalMemory() - runtime.freeMemory() < limit) {
+            return false;
+        }
+
+        System.gc();
+
+        return runtime.totalMemory() - runtime.freeMemory() >= limit;
+    }
+
+    /**
+     * Learns the deadlock patterns around a pushed gem, if learning is enabled.
+     *
+     * @param board The deadlocked position.
+     * @param gem_index The position of the pushed gem.
+     */
+    private void learnPattern(BitBoard board, int gem_index) {
+        if ((patterns != null) && learn_patterns) {
+            patterns.learn(board, gem_index);
+        }
+    }
+
+    /**
+     * Returns the macro following a push or null.
+     *
+     * @param board The position after the push.
+     * @param gem_index The position of the pushed gem.
+     * @param direction The direction of the push.
+     */
+    private int[] getMacro(BitBoard board, int gem_index, int direction) {
+        int room = topology.getRoomOfEntrance(gem_index);
+
+        if (room != -1) {
+            // Only gems pushed towards the room are moved in.
+            int next_index = gem_index + offsets[direction];
+
+            if (map.isValidIndex(next_index) && (topology.getRoomOfField(next_index) == room)) {
+                return topology.goalRoomMacro(board, gem_index);
+            }
+
+            return null;
+        }
+
+        int[] result = topology.tunnelMacro(board, gem_index, direction);
+
+        return (result.length == 0) ? null : result;
+    }
+
+    /**
+     * Returns the positions of all gems of the board.
+     *
+     * @param board The board.
+     */
+    static int[] getGems(BitBoard board) {
+        int size = board.getSize();
+        int count = board.numberOfGems();
+        int[] result = new int[count];
+        count = 0;
+
+        for (int i = 0; i < size; ++i) {
+            if (board.isGem(i)) {
+                result[count++] = i;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Creates the LURD string of the pushes leading to the node.
+     *
+     * @param node The solved node.
+     */
+    private String createLurd(Node node) {
+        int pushes = node.pushes;
+        int[] gem_indices = new int[pushes];
+        int[] directions = new int[pushes];
+
+        for (Node act_node = node; act_node.parent != null; act_node = act_node.parent) {
+            if (act_node.macro != null) {
+                for (int i = act_node.macro.length - 1; i >= 0; --i) {
+                    --pushes;
+                    gem_indices[pushes] = act_node.macro[i] >> 2;
+                    directions[pushes] = act_node.macro[i] & 3;
+                }
+            }
+
+            --pushes;
+            gem_indices[pushes] = act_node.gem_index;
+            directions[pushes] = act_node.direction;
+        }
+
+        StringBuilder result = new StringBuilder();
+        BitBoard board = new BitBoard(map);
+
+        for (int i = 0; i < gem_indices.length; ++i) {
+            int gem_index = gem_indices[i];
+            int direction = directions[i];
+
+            appendKeeperPath(board, offsets, board.getKeeper(), gem_index - offsets[direction], result);
+            result.append(push_chars[direction]);
+            board.moveGem(gem_index, gem_index + offsets[direction]);
+            board.setKeeper(gem_index);
+        }
+
+        return result.toString();
+    }
+
+    /**
+     * Appends the shortest keeper path between two fields in LURD format.
+     *
+     * @param board The position.
+     * @param offsets The offsets for the directions left, right, up and down.
+     * @param from The start of the path.
+     * @param to The end of the path, which must be reachable.
+     * @param result Where to append the path.
+     */
+    static void appendKeeperPath(BitBoard board, int[] offsets, int from, int to, StringBuilder result) {
+        if (from == to) {
+            return;
+        }
+
+        int size = board.getSize();
+        int[] previous_direction = new int[size];
+        int[] queue = new int[size];
+        int queue_end = 0;
+
+        Arrays.fill(previous_direction, -1);
+        queue[queue_end++] = from;
+        previous_direction[from] = 4;
+
+        for (int queue_start = 0; queue_start < queue_end; ++queue_start) {
+            int index = queue[queue_start];
+
+            if (index == to) {
+                break;
+            }
+
+            for (int direction = 0; direction < 4; ++direction) {
+                int next = index + offsets[direction];
+
+                if ((previous_direction[next] == -1) && board.isFree(next)) {
+                    previous_direction[next] = direction;
+                    queue[queue_end++] = next;
+                }
+            }
+        }
+
+        assert previous_direction[to] != -1;
+
+        int length = 0;
+
+        for (int index = to; index != from; index -= offsets[previous_direction[index]]) {
+            ++length;
+        }
+
+        char[] path = new char[length];
+
+        for (int index = to; index != from; index -= offsets[previous_direction[index]]) {
+            path[--length] = move_chars[previous_direction[index]];
+        }
+
+        result.append(path);
+    }
+}
@@ -0,0 +1,148 @@
+package org.easysok;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * This class compares the solver with and without corral pruning on level packs.
+ *
+ * Usage: SolverBenchmark [-levels n] [-nodes n] file.xsb...
+ *
+ * For each pack the number of solved levels, the expanded nodes and the time are
+ * printed for both runs. The nodes are only summed over levels solved in both runs, so
+ * the reduction is not hidden by levels hitting the node limit.
+ */
+public class SolverBenchmark {
+
+    /**
+     * The results of one run over a pack.
+     */
+    private static class Result {
+
+        /**
+         * The number of solved levels.
+         */
+        int solved;
+
+        /**
+         * The expanded nodes of the levels solved by both runs.
+         */
+        long nodes;
+
+        /**
+         * The time in milliseconds.
+         */
+        long time;
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args The command line arguments.
+     */
+    public static void main(String[] args) throws IOException {
+        int max_levels = Integer.MAX_VALUE;
+        int max_nodes = 200000;
+        int i = 0;
+
+        for (; i < args.length - 1; i += 2) {
+            if (args[i].equals("-levels")) {
+                max_levels = Integer.parseInt(args[i + 1]);
+            }
+            else if (args[i].equals("-nodes")) {
+                max_nodes = Integer.parseInt(args[i + 1]);
+            }
+            else {
+                break;
+            }
+        }
+
+        if (i == args.length) {
+            System.err.println("Usage: SolverBenchmark [-levels n] [-nodes n] file.xsb...");
+            System.exit(1);
+        }
+
+        for (; i < args.length; ++i) {
+            InputStream in = new FileInputStream(args[i]);
+            Collection collection;
+
+            try {
+                collection = Collection.read(in, "ISO-8859-1", args[i]);
+            }
+            finally {
+                in.close();
+            }
+
+            Result without = new Result();
+            Result with = new Result();
+            AnalysisCache analyses = new AnalysisCache(null, 16);
+            int levels = 0;
+
+            for (Level level: collection.getLevels()) {
+                Map map = level.getMap();
+
+                if (!map.isValid()) {
+                    continue;
+                }
+
+                if (++levels > max_levels) {
+                    break;
+                }
+
+                MapAnalysis analysis = analyses.get(map);
+                int without_nodes = run(map, analysis, max_nodes, false, without);
+                int with_nodes = run(map, analysis, max_nodes, true, with);
+
+                if ((without_nodes >= 0) && (with_nodes >= 0)) {
+                    without.nodes += without_nodes;
+                    with.nodes += with_nodes;
+                }
+            }
+
+            System.out.println(args[i] + ": " + Math.min(levels, max_levels) + " levels");
+            print("  without corrals", without);
+            print("  with corrals   ", with);
+
+            if (without.nodes > 0) {
+                System.out.println("  node reduction: " + (100 - with.nodes * 100 / without.nodes) + "%");
+            }
+        }
+    }
+
+    /**
+     * Solves a level.
+     *
+     * @param map The map.
+     * @param analysis The analysis of the map.
+     * @param max_nodes The node limit.
+     * @param use_corrals If true, the corral pruning is used.
+     * @param result Where the solved levels and the time are added.
+     * @return The expanded nodes or -1, if the level was not solved.
+     */
+    private static int run(Map map, MapAnalysis analysis, int max_nodes, boolean use_corrals, Result result) {
+        Solver solver = new Solver(map, analysis);
+        solver.setMaxNodes(max_nodes);
+        solver.setUseCorrals(use_corrals);
+
+        long start = System.currentTimeMillis();
+        String solution = solver.solve();
+        result.time += System.currentTimeMillis() - start;
+
+        if (solution == null) {
+            return -1;
+        }
+
+        ++result.solved;
+
+        return solver.getNodesExpanded();
+    }
+
+    /**
+     * Prints the results of a run.
+     */
+    private static void print(String name, Result result) {
+        System.out.println(name + ": solved " + result.solved + ", nodes " + result.nodes + ", " +
+                result.time + " ms");
+    }
+}
@@ -0,0 +1,382 @@
+package org.easysok;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/**
+ * This class stores the state of a Solver search in a file, so a long search survives
+ * a restart of the process.
+ *
+ * The open nodes are stored as a tree of pushes from the start position. Each node has
+ * its parent, the push, the macro, the lower bound and the number used to break ties,
+ * so the positions are replayed on reading and the search continues exactly where it
+ * stopped. The transposition table is sorted by the gem positions and each entry only
+ * stores the gems after the ones it shares with the previous entry. All numbers are
+ * written as variable length integers.
+ *
+ * The header contains the layout hash, the settings of the solver and the start
+ * position, so a checkpoint is never continued on another level with the same layout.
+ */
+final class SolverCheckpoint {
+
+    /**
+     * The magic number at the start of the file.
+     */
+    private static final int MAGIC = 0x45534333;
+
+    /**
+     * The number of the next node.
+     */
+    final long node_number;
+
+    /**
+     * The number of expanded nodes.
+     */
+    final int nodes_expanded;
+
+    /**
+     * The open nodes.
+     */
+    final ArrayList<Solver.Node> open;
+
+    /**
+     * The transposition table with the pushes of each position.
+     */
+    final HashMap<Solver.PositionKey, Integer> seen;
+
+    /**
+     * Creates a checkpoint read from a file.
+     */
+    private SolverCheckpoint(long node_number, int nodes_expanded, ArrayList<Solver.Node> open,
+            HashMap<Solver.PositionKey, Integer> seen) {
+        this.node_number = node_number;
+        this.nodes_expanded = nodes_expanded;
+        this.open = open;
+        this.seen = seen;
+    }
+
+    /**
+     * Writes the state of a search. The file is written by FileUtils.write(), so a crash
+     * while writing keeps the previous checkpoint.
+     *
+     * @param file The file.
+     * @param layout_hash The layout hash of the map.
+     * @param settings The settings of the solver, which must match on reading.
+     * @param start_node The start node of the search.
+     * @param node_number The number of the next node.
+     * @param nodes_expanded The number of expanded nodes.
+     * @param open The open nodes.
+     * @param seen The transposition table.
+     */
+    static void write(File file, final long layout_hash, final int settings, final Solver.Node start_node,
+            final long node_number, final int nodes_expanded, final Iterable<Solver.Node> open,
+            final HashMap<Solver.PositionKey, Integer> seen) throws IOException {
+        FileUtils.write(file, new FileUtils.Content() {
+            public void write(OutputStream stream) throws IOException {
+                DataOutputStream out = new DataOutputStream(stream);
+
+                out.writeInt(MAGIC);
+                out.writeLong(layout_hash);
+                out.writeInt(settings);
+                writeVarLong(out, start_node.gems.length);
+
+                for (int gem: start_node.gems) {
+                    writeVarLong(out, gem);
+                }
+
+                writeVarLong(out, start_node.board.normalizedKeeper());
+                out.writeLong(node_number);
+                out.writeInt(nodes_expanded);
+                writeTree(out, open);
+                writeSeen(out, seen);
+                out.flush();
+            }
+        });
+    }
+
+    /**
+     * Reads the state of a search.
+     *
+     * @param file The file.
+     * @param layout_hash The layout hash of the map.
+     * @param settings The settings of the solver.
+     * @param start_node The start node of the search.
+     * @param offsets The offsets for the directions left, right, up and down.
+     * @return The checkpoint or null, if the file does not exist or belongs to another
+     *         map, another start position or other settings.
+     */
+    static SolverCheckpoint read(File file, long layout_hash, int settings, Solver.Node start_node,
+            int[] offsets) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+
+        try {
+            if ((in.readInt() != MAGIC) || (in.readLong() != layout_hash) || (in.readInt() != settings) ||
+                !readStart(in, start_node)) {
+                return null;
+            }
+
+            long node_number = in.readLong();
+            int nodes_expanded = in.readInt();
+            ArrayList<Solver.Node> open = readTree(in, start_node, offsets);
+            HashMap<Solver.PositionKey, Integer> seen = readSeen(in, start_node.board);
+
+            return new SolverCheckpoint(node_number, nodes_expanded, open, seen);
+        }
+        finally {
+            FileUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Reads the start position and returns <code>true</code> if it is the one of the
+     * start node.
+     */
+    private static boolean readStart(DataInputStream in, Solver.Node start_node) throws IOException {
+        if (readVarLong(in) != start_node.gems.length) {
+            return false;
+        }
+
+        for (int gem: start_node.gems) {
+            if (readVarLong(in) != gem) {
+                return false;
+            }
+        }
+
+        return readVarLong(in) == start_node.board.normalizedKeeper();
+    }
+
+    /**
+     * Writes the open nodes with all their ancestors, parents before children. The
+     * start node is not written, it has the number 0.
+     */
+    private static void writeTree(DataOutputStream out, Iterable<Solver.Node> open) throws IOException {
+        IdentityHashMap<Solver.Node, Integer> ids = new IdentityHashMap<Solver.Node, Integer>();
+        ArrayList<Solver.Node> tree = new ArrayList<Solver.Node>();
+        ArrayList<Solver.Node> chain = new ArrayList<Solver.Node>();
+        int open_count = 0;
+
+        for (Solver.Node node: open) {
+            chain.clear();
+
+            for (Solver.Node act = node; !ids.containsKey(act); act = act.parent) {
+                if (act.parent == null) {
+                    ids.put(act, 0);
+                    break;
+                }
+
+                chain.add(act);
+            }
+
+            for (int i = chain.size() - 1; i >= 0; --i) {
+                tree.add(chain.get(i));
+                ids.put(chain.get(i), tree.size());
+            }
+
+            ++open_count;
+        }
+
+        writeVarLong(out, tree.size());
+
+        for (int i = 0; i < tree.size(); ++i) {
+            Solver.Node node = tree.get(i);
+
+            writeVarLong(out, i + 1 - ids.get(node.parent));
+            writeVarLong(out, node.gem_index);
+            out.writeByte(node.direction);
+            writeVarLong(out, (node.macro == null) ? 0 : node.macro.length + 1);
+
+            if (node.macro != null) {
+                for (int push: node.macro) {
+                    writeVarLong(out, push);
+                }
+            }
+
+            writeVarLong(out, node.lower_bound);
+            writeVarLong(out, node.number);
+        }
+
+        writeVarLong(out, open_count);
+
+        for (Solver.Node node: open) {
+            writeVarLong(out, ids.get(node));
+        }
+    }
+
+    /**
+     * Reads the tree of nodes and replays their pushes.
+     *
+     * @return The open nodes.
+     */
+    private static ArrayList<Solver.Node> readTree(DataInputStream in, Solver.Node start_node, int[] offsets)
+            throws IOException {
+        int count = (int)readVarLong(in);
+        ArrayList<Solver.Node> tree = new ArrayList<Solver.Node>(count + 1);
+
+        tree.add(start_node);
+
+        for (int i = 1; i <= count; ++i) {
+            Solver.Node parent = tree.get(i - (int)readVarLong(in));
+            int gem_index = (int)readVarLong(in);
+            int direction = in.readByte();
+            int macro_length = (int)readVarLong(in);
+            int[] macro = (macro_length == 0) ? null : new int[macro_length - 1];
+
+            if (macro != null) {
+                for (int j = 0; j < macro.length; ++j) {
+                    macro[j] = (int)readVarLong(in);
+                }
+            }
+
+            int lower_bound = (int)readVarLong(in);
+            long number = readVarLong(in);
+
+            BitBoard board = parent.board.copy();
+            int target_index = gem_index + offsets[direction];
+
+            board.moveGem(gem_index, target_index);
+            board.setKeeper(gem_index);
+
+            if (macro != null) {
+                for (int push: macro) {
+                    int from = push >> 2;
+                    target_index = from + offsets[push & 3];
+                    board.moveGem(from, target_index);
+                    board.setKeeper(from);
+                }
+            }
+
+            int[] gems = parent.gems.clone();
+            int pushes = parent.pushes + 1 + ((macro == null) ? 0 : macro.length);
+
+            for (int j = 0; j < gems.length; ++j) {
+                if (gems[j] == gem_index) {
+                    gems[j] = target_index;
+                }
+            }
+
+            tree.add(new Solver.Node(board, gems, pushes, lower_bound, parent, gem_index, direction,
+                    macro, number, null));
+        }
+
+        int open_count = (int)readVarLong(in);
+        ArrayList<Solver.Node> result = new ArrayList<Solver.Node>(open_count);
+
+        for (int i = 0; i < open_count; ++i) {
+            result.add(tree.get((int)readVarLong(in)));
+        }
+
+        return result;
+    }
+
+    /**
+     * Writes the transposition table sorted by the gem positions.
+     */
+    private static void writeSeen(DataOutputStream out, HashMap<Solver.PositionKey, Integer> seen)
+            throws IOException {
+        Solver.PositionKey[] keys = seen.keySet().toArray(new Solver.PositionKey[seen.size()]);
+
+        Arrays.sort(keys, new Comparator<Solver.PositionKey>() {
+            public int compare(Solver.PositionKey lhs, Solver.PositionKey rhs) {
+                return lhs.board.comparePosition(rhs.board);
+            }
+        });
+
+        int[] previous = new int[0];
+
+        writeVarLong(out, keys.length);
+
+        for (Solver.PositionKey key: keys) {
+            int[] gems = Solver.getGems(key.board);
+            int shared = 0;
+
+            while ((shared < gems.length) && (shared < previous.length) && (gems[shared] == previous[shared])) {
+                ++shared;
+            }
+
+            writeVarLong(out, shared);
+            writeVarLong(out, gems.length - shared);
+
+            for (int i = shared; i < gems.length; ++i) {
+                writeVarLong(out, gems[i] - ((i == 0) ? 0 : gems[i - 1]));
+            }
+
+            writeVarLong(out, key.board.normalizedKeeper());
+            writeVarLong(out, seen.get(key));
+            previous = gems;
+        }
+    }
+
+    /**
+     * Reads the transposition table.
+     *
+     * @param start_board The board of the start position.
+     */
+    private static HashMap<Solver.PositionKey, Integer> readSeen(DataInputStream in, BitBoard start_board)
+            throws IOException {
+        int count = (int)readVarLong(in);
+        HashMap<Solver.PositionKey, Integer> result = new HashMap<Solver.PositionKey, Integer>(count * 4 / 3 + 1);
+        int[] previous = new int[0];
+
+        for (int i = 0; i < count; ++i) {
+            int shared = (int)readVarLong(in);
+            int[] gems = Arrays.copyOf(previous, shared + (int)readVarLong(in));
+
+            for (int j = shared; j < gems.length; ++j) {
+                gems[j] = (int)readVarLong(in) + ((j == 0) ? 0 : gems[j - 1]);
+            }
+
+            BitBoard board = start_board.copy();
+
+            board.setGems(gems);
+            board.setKeeper((int)readVarLong(in));
+            result.put(new Solver.PositionKey(board), (int)readVarLong(in));
+            previous = gems;
+        }
+
+        return result;
+    }
+
+    /**
+     * Writes a non negative number with 7 bits per byte, the highest bit marks that
+     * more bytes follow.
+     */
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int)(value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+
+        out.writeByte((int)value);
+    }
+
+    /**
+     * Reads a number written by writeVarLong().
+     */
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long result = 0;
+
+        for (int shift = 0; ; shift += 7) {
+            int b = in.readUnsignedByte();
+
+            result |= (long)(b & 0x7f) << shift;
+
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package org.easysok;
+
+import java.util.HashMap;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+/**
+ * This class decodes the images of a theme at the tile size they are drawn at.
+ *
+ * Each image is decoded once per size with the largest power of two subsampling, that
+ * still keeps it at least as large as the tile, and then scaled into a bitmap of the
+ * exact tile size. Resources choose the drawable for the density of the device, the
+ * automatic density scaling on decoding is disabled, because the image is scaled to the
+ * tile size anyway.
+ *
+ * The images in use and the pooled bitmaps together never exceed a fixed number of
+ * bytes. When switching themes, startTheme() moves the bitmaps of the old theme into
+ * the pool, from where the new theme reuses bitmaps of the same size. Bitmaps of other
+ * sizes are recycled before new ones are allocated.
+ *
+ * All methods are thread safe.
+ */
+public class ThemeImages {
+
+    /**
+     * The prefix of image names referring to drawable resources.
+     */
+    private static final String DRAWABLE_PREFIX = "@drawable/";
+
+    /**
+     * The resources.
+     */
+    private Resources resources;
+
+    /**
+     * The package of the drawable resources.
+     */
+    private String package_name;
+
+    /**
+     * The maximum number of bytes of the images in use and the pool.
+     */
+    private int max_bytes;
+
+    /**
+     * The number of bytes of the images in use.
+     */
+    private int bytes;
+
+    /**
+     * The images of the current theme keyed by name and size.
+     */
+    private HashMap<String, Bitmap> images;
+
+    /**
+     * The unused bitmaps.
+     */
+    private BitmapPool pool;
+
+    /**
+     * The paint used for scaling.
+     */
+    private Paint paint;
+
+    /**
+     * Creates the image loader.
+     *
+     * @param resources The resources containing the drawables.
+     * @param package_name The package of the drawables.
+     * @param max_bytes The maximum number of bytes of all bitmaps.
+     */
+    public ThemeImages(Resources resources, String package_name, int max_bytes) {
+        this.resources = resources;
+        this.package_name = package_name;
+        this.max_bytes = max_bytes;
+        this.images = new HashMap<String, Bitmap>();
+        this.pool = new BitmapPool(max_bytes);
+        this.paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    }
+
+    /**
+     * Returns the tile size in pixels for a size in density independent pixels.
+     *
+     * @param size_dip The size in density independent pixels.
+     */
+    public int getTileSize(float size_dip) {
+        return Math.max(1, Math.round(size_dip * resources.getDisplayMetrics().density));
+    }
+
+    /**
+     * Releases the images of the current theme into the pool. Must be called before the
+     * images of a new theme are requested.
+     */
+    public synchronized void startTheme() {
+        for (Bitmap bitmap: images.values()) {
+            pool.put(bitmap);
+        }
+
+        images.clear();
+        bytes = 0;
+    }
+
+    /**
+     * Returns an image scaled to the given size. The image is decoded on first use.
+     *
+     * The bitmap belongs to this class and must not be recycled or changed by the
+     * caller. It stays valid until the next call of startTheme() or release().
+     *
+     * @param image The name of the image, e.g. "@drawable/space_gem.png".
+     * @param width The width in pixels.
+     * @param height The height in pixels.
+     * @return The image or null, if it could not be decoded or exceeds the memory limit.
+     */
+    public synchronized Bitmap getImage(String image, int width, int height) {
+        String key = image + '@' + width + 'x' + height;
+        Bitmap result = images.get(key);
+
+        if (result != null) {
+            Metrics.count(Metrics.THEME_HIT);
+
+            return result;
+        }
+
+        Metrics.count(Metrics.THEME_MISS);
+
+        int id = getResourceId(image);
+
+        if (id == 0) {
+            return null;
+        }
+
+        long start = Metrics.start();
+
+        result = decode(id, width, height);
+        Metrics.stop(Metrics.DECODE_IMAGE, start);
+
+        if (result != null) {
+            images.put(key, result);
+            bytes += BitmapPool.sizeOf(result);
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the number of bytes of the images in use.
+     */
+    public synchronized int getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Returns the number of bytes of the pooled bitmaps.
+     */
+    public int getPoolBytes() {
+        return pool.getBytes();
+    }
+
+    /**
+     * Recycles all bitmaps, e.g. when the game screen is left.
+     */
+    public synchronized void release() {
+        startTheme();
+        pool.clear();
+    }
+
+    /**
+     * Returns the resource id of an image.
+     *
+     * @param image The name of the image.
+     * @return The id or 0, if there is no such drawable.
+     */
+    private int getResourceId(String image) {
+        if (!image.startsWith(DRAWABLE_PREFIX)) {
+            return 0;
+        }
+
+        int end = image.lastIndexOf('.');
+
+        if (end < DRAWABLE_PREFIX.length()) {
+            end = image.length();
+        }
+
+        return resources.getIdentifier(image.substring(DRAWABLE_PREFIX.length(), end), "drawable", package_name);
+    }
+
+    /**
+     * Decodes a drawable at the given size.
+     *
+     * @param id The resource id.
+     * @param width The width in pixels.
+     * @param height The height in pixels.
+     * @return The bitmap or null.
+     */
+    private Bitmap decode(int id, int width, int height) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+
+        options.inJustDecodeBounds = true;
+        options.inScaled = false;
+        BitmapFactory.decodeResource(resources, id, options);
+
+        if ((options.outWidth <= 0) || (options.outHeight <= 0)) {
+            return null;
+        }
+
+        int sample_size = 1;
+
+        while ((options.outWidth / (sample_size * 2) >= width) && (options.outHeight / (sample_size * 2) >= height)) {
+            sample_size *= 2;
+        }
+
+        int decoded_width = (options.outWidth + sample_size - 1) / sample_size;
+        int decoded_height = (options.outHeight + sample_size - 1) / sample_size;
+        boolean exact = (decoded_width == width) && (decoded_height == height);
+        int decoded_bytes = decoded_width * decoded_height * 4;
+        int needed_bytes = exact ? decoded_bytes : decoded_bytes + width * height * 4;
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sample_size;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        options.inMutable = true;
+
+        // Decoding into an existing bitmap needs the exact size and no subsampling.
+        if (sample_size == 1) {
+            options.inBitmap = pool.get(decoded_width, decoded_height, Bitmap.Config.ARGB_8888);
+        }
+
+        if (!makeRoom((options.inBitmap != null) ? needed_bytes - decoded_bytes : needed_bytes)) {
+            if (options.inBitmap != null) {
+                pool.put(options.inBitmap);
+            }
+
+            return null;
+        }
+
+        Bitmap decoded = decodeResource(id, options);
+
+        if ((decoded == null) || ((decoded.getWidth() == width) && (decoded.getHeight() == height))) {
+            return decoded;
+        }
+
+        Bitmap result = pool.get(width, height, Bitmap.Config.ARGB_8888);
+
+        if (result == null) {
+            result = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        else {
+            result.eraseColor(0);
+        }
+
+        new Canvas(result).drawBitmap(decoded, null, new Rect(0, 0, width, height), paint);
+        pool.put(decoded);
+        pool.trimToSize(max_bytes - bytes - BitmapPool.sizeOf(result));
+
+        return result;
+    }
+
+    /**
+     * Decodes a drawable and falls back to a new bitmap, if the pooled bitmap can not be
+     * reused.
+     */
+    private Bitmap decodeResource(int id, BitmapFactory.Options options) {
+        if (options.inBitmap != null) {
+            try {
+                return BitmapFactory.decodeResource(resources, id, options);
+            }
+            catch (IllegalArgumentException e) {
+                pool.put(options.inBitmap);
+                options.inBitmap = null;
+            }
+        }
+
+        return BitmapFactory.decodeResource(resources, id, options);
+    }
+
+    /**
+     * Shrinks the pool, so that the given number of bytes can be allocated.
+     *
+     * @param needed_bytes The number of bytes to allocate.
+     * @return false, if the images in use leave not enough room.
+     */
+    private boolean makeRoom(int needed_bytes) {
+        int free_bytes = max_bytes - bytes - needed_bytes;
+
+        if (free_bytes < 0) {
+            return false;
+        }
+
+        pool.trimToSize(free_bytes);
+
+        return true;
+    }
+}
@@ -0,0 +1,538 @@
+package org.easysok;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.LruCache;
+
+/**
+ * This class renders and caches the thumbnails of the levels shown in the level chooser.
+ *
+ * A thumbnail has one square tile of tile_size pixels per field. Only the pieces of the
+ * maps are hashed and copied on the UI thread, no MapSnapshot with its deadlock analysis
+ * is built, and they are rendered on a background pool. The bitmaps are kept in a
+ * memory cache bounded by bytes and written as PNG into a disk cache keyed by the hash of
+ * the map, so reopening a pack only decodes small files.
+ *
+ * The methods must be called on the UI thread, the listener is called on it as well.
+ */
+public class ThumbnailCache {
+
+    /**
+     * Is called when a requested thumbnail is ready.
+     */
+    public interface Listener {
+
+        /**
+         * Is called on the UI thread when a thumbnail is ready.
+         *
+         * @param position The position of the level in the list.
+         * @param thumbnail The thumbnail.
+         */
+        void onThumbnailReady(int position, Bitmap thumbnail);
+    }
+
+    /**
+     * The ARGB colors of the pieces, indexed by the constants of Map.
+     */
+    private static final int[] colors = new int[] {
+        0xff2060e0, 0xff2060e0, 0xffc08020, 0xff40a040, 0xffd0d0c0, 0xffe0c040, 0xff505050, 0x00000000
+    };
+
+    /**
+     * The color of the goal mark drawn around keeper and gems on goals.
+     */
+    private static final int goal_color = 0xffe0c040;
+
+    /**
+     * The levels of the list or null.
+     */
+    private List<Level> levels;
+
+    /**
+     * The listener or null.
+     */
+    private Listener listener;
+
+    /**
+     * The size of the tile of a field in pixels.
+     */
+    private int tile_size;
+
+    /**
+     * The directory of the disk cache or null, if only the memory cache is used.
+     */
+    private File directory;
+
+    /**
+     * The thumbnails in memory keyed by the map hash.
+     */
+    private LruCache<Long, Bitmap> memory_cache;
+
+    /**
+     * The pool rendering the thumbnails.
+     */
+    private ExecutorService executor;
+
+    /**
+     * Posts the results to the UI thread.
+     */
+    private Handler handler;
+
+    /**
+     * The pending tasks keyed by the position.
+     */
+    private HashMap<Integer, Task> pending;
+
+    /**
+     * Renders one thumbnail.
+     */
+    private class Task implements Runnable {
+
+        /**
+         * The position of the level.
+         */
+        final int position;
+
+        /**
+         * The width of the map.
+         */
+        final int width;
+
+        /**
+         * The height of the map.
+         */
+        final int height;
+
+        /**
+         * The pieces of the map.
+         */
+        final byte[] pieces;
+
+        /**
+         * The hash of the map.
+         */
+        final long hash;
+
+        /**
+         * The future of the task.
+         */
+        Future<?> future;
+
+        /**
+         * Creates a task.
+         */
+        Task(int position, int width, int height, byte[] pieces, long hash) {
+            this.position = position;
+            this.width = width;
+            this.height = height;
+            this.pieces = pieces;
+            this.hash = hash;
+        }
+
+        /**
+         * Loads or renders the thumbnail and posts it to the UI thread.
+         */
+        public void run() {
+            Bitmap thumbnail = load(hash);
+
+            if (thumbnail == null) {
+                long start = Metrics.start();
+
+                thumbnail = render(width, height, pieces, tile_size);
+                Metrics.stop(Metrics.RENDER, start);
+                store(hash, thumbnail);
+            }
+
+            memory_cache.put(hash, thumbnail);
+
+            final Bitmap result = thumbnail;
+
+            handler.post(new Runnable() {
+                public void run() {
+                    deliver(Task.this, result);
+                }
+            });
+        }
+    }
+
+    /**
+     * Creates a cache.
+     *
+     * @param directory The directory of the disk cache or null for a memory only cache.
+     * @param max_memory_bytes The maximum number of bytes of the thumbnails in memory.
+     * @param tile_size The size of the tile of a field in pixels (1 or more).
+     * @param threads The number of render threads.
+     */
+    public ThumbnailCache(File directory, int max_memory_bytes, int tile_size, int threads) {
+        this.directory = directory;
+        this.tile_size = Math.max(1, tile_size);
+        this.handler = new Handler(Looper.getMainLooper());
+        this.pending = new HashMap<Integer, Task>();
+        this.memory_cache = new LruCache<Long, Bitmap>(max_memory_bytes) {
+            protected int sizeOf(Long key, Bitmap value) {
+                return value.getRowBytes() * value.getHeight();
+            }
+        };
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread result = new Thread(runnable, "ThumbnailCache");
+
+                // Rendering must not slow down scrolling.
+                result.setPriority(Thread.MIN_PRIORITY);
+                result.setDaemon(true);
+
+                return result;
+            }
+        });
+
+        if (directory != null) {
+            directory.mkdirs();
+        }
+    }
+
+    /**
+     * Sets the levels of the list and cancels the pending requests of the old ones.
+     *
+     * @param levels The levels.
+     */
+    public void setLevels(List<Level> levels) {
+        cancelAll();
+        this.levels = levels;
+    }
+
+    /**
+     * Sets the listener.
+     *
+     * @param listener The listener or null.
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Returns the thumbnail of a level if it is in memory, otherwise the thumbnail is
+     * requested and the listener is called when it is ready.
+     *
+     * @param position The position of the level.
+     * @return The thumbnail or null.
+     */
+    public Bitmap get(int position) {
+        Map map = levels.get(position).getMap();
+        long hash = hash(map);
+        Bitmap result = memory_cache.get(hash);
+
+        if (result != null) {
+            Metrics.count(Metrics.THUMBNAIL_HIT);
+
+            return result;
+        }
+
+        request(position, map, hash);
+
+        return null;
+    }
+
+    /**
+     * Requests the thumbnails around the visible levels, nearest first, and cancels the
+     * pending requests outside of that range.
+     *
+     * @param first_visible The position of the first visible level.
+     * @param last_visible The position of the last visible level.
+     * @param margin The number of levels before and after the visible ones.
+     */
+    public void prefetch(int first_visible, int last_visible, int margin) {
+        int first = Math.max(0, first_visible - margin);
+        int last = Math.min(levels.size() - 1, last_visible + margin);
+
+        Iterator<Task> iterator = pending.values().iterator();
+
+        while (iterator.hasNext()) {
+            Task task = iterator.next();
+
+            if ((task.position < first) || (task.position > last)) {
+                task.future.cancel(false);
+                iterator.remove();
+            }
+        }
+
+        for (int i = first_visible; i <= last_visible; ++i) {
+            prefetch(i);
+        }
+
+        for (int distance = 1; distance <= margin; ++distance) {
+            prefetch(last_visible + distance);
+            prefetch(first_visible - distance);
+        }
+    }
+
+    /**
+     * Removes all thumbnails from memory.
+     */
+    public void clearMemory() {
+        memory_cache.evictAll();
+    }
+
+    /**
+     * Deletes the least recently used files of the disk cache until it is not larger than
+     * the given size.
+     *
+     * @param max_disk_bytes The maximum size of the disk cache.
+     */
+    public void trimDisk(long max_disk_bytes) {
+        if (directory == null) {
+            return;
+        }
+
+        File[] files = directory.listFiles();
+
+        if (files == null) {
+            return;
+        }
+
+        long size = 0;
+
+        for (File file: files) {
+            size += file.length();
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File file1, File file2) {
+                long modified1 = file1.lastModified();
+                long modified2 = file2.lastModified();
+
+                return (modified1 < modified2) ? -1 : ((modified1 == modified2) ? 0 : 1);
+            }
+        });
+
+        for (int i = 0; (i < files.length) && (size > max_disk_bytes); ++i) {
+            size -= files[i].length();
+            files[i].delete();
+        }
+    }
+
+    /**
+     * Cancels all requests and stops the render threads.
+     */
+    public void shutdown() {
+        cancelAll();
+        executor.shutdownNow();
+    }
+
+    /**
+     * Returns the hash of the size and the pieces of a map, which is the same as the one
+     * of its snapshot (see MapSnapshot.hash()).
+     *
+     * @param map The map.
+     */
+    static long hash(Map map) {
+        long result = 0xcbf29ce484222325L;
+        int size = map.getSize();
+
+        result = (result ^ map.getWith()) * 0x100000001b3L;
+        result = (result ^ map.getHeight()) * 0x100000001b3L;
+
+        for (int i = 0; i < size; ++i) {
+            result = (result ^ map.getPiece(i)) * 0x100000001b3L;
+        }
+
+        return result;
+    }
+
+    /**
+     * Renders the thumbnail of a map.
+     *
+     * @param map_width The width of the map.
+     * @param map_height The height of the map.
+     * @param pieces The pieces of the map.
+     * @param tile_size The size of the tile of a field in pixels.
+     */
+    static Bitmap render(int map_width, int map_height, byte[] pieces, int tile_size) {
+        int width = map_width * tile_size;
+        int height = map_height * tile_size;
+        int[] pixels = renderPixels(map_width, map_height, pieces, tile_size);
+
+        return Bitmap.createBitmap(pixels, Math.max(1, width), Math.max(1, height), Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Renders the pixels of the thumbnail of a map row by row.
+     *
+     * With tiles of 3 pixels or more keepers and gems on goals get a border in the goal
+     * color, smaller tiles only show the color of the piece.
+     *
+     * @param map_width The width of the map.
+     * @param map_height The height of the map.
+     * @param pieces The pieces of the map.
+     * @param tile_size The size of the tile of a field in pixels.
+     */
+    static int[] renderPixels(int map_width, int map_height, byte[] pieces, int tile_size) {
+        int width = map_width * tile_size;
+        int[] pixels = new int[Math.max(1, width * map_height * tile_size)];
+
+        for (int y = 0; y < map_height; ++y) {
+            for (int x = 0; x < map_width; ++x) {
+                int piece = pieces[x + y * map_width];
+                int color = colors[piece];
+                boolean mark = (tile_size >= 3) && ((piece == Map.KEEPER_ON_GOAL) || (piece == Map.GEM_ON_GOAL));
+                int start = y * tile_size * width + x * tile_size;
+
+                for (int tile_y = 0; tile_y < tile_size; ++tile_y) {
+                    int row = start + tile_y * width;
+                    boolean border_row = (tile_y == 0) || (tile_y == tile_size - 1);
+
+                    for (int tile_x = 0; tile_x < tile_size; ++tile_x) {
+                        boolean border = border_row || (tile_x == 0) || (tile_x == tile_size - 1);
+
+                        pixels[row + tile_x] = (mark && border) ? goal_color : color;
+                    }
+                }
+            }
+        }
+
+        return pixels;
+    }
+
+    /**
+     * Requests a thumbnail, if it is not in memory or pending.
+     *
+     * @param position The position of the level.
+     */
+    private void prefetch(int position) {
+        if ((position < 0) || (position >= levels.size()) || pending.containsKey(position)) {
+            return;
+        }
+
+        Map map = levels.get(position).getMap();
+        long hash = hash(map);
+
+        if (memory_cache.get(hash) == null) {
+            request(position, map, hash);
+        }
+    }
+
+    /**
+     * Submits a task with a copy of the pieces, if there is none for the position.
+     */
+    private void request(int position, Map map, long hash) {
+        if (pending.containsKey(position)) {
+            return;
+        }
+
+        Metrics.count(Metrics.THUMBNAIL_MISS);
+
+        byte[] pieces = new byte[map.getSize()];
+
+        for (int i = 0; i < pieces.length; ++i) {
+            pieces[i] = (byte)map.getPiece(i);
+        }
+
+        Task task = new Task(position, map.getWith(), map.getHeight(), pieces, hash);
+
+        pending.put(position, task);
+        task.future = executor.submit(task);
+    }
+
+    /**
+     * Passes a finished thumbnail to the listener, unless the task was cancelled.
+     */
+    private void deliver(Task task, Bitmap thumbnail) {
+        if (pending.get(task.position) != task) {
+            return;
+        }
+
+        pending.remove(task.position);
+
+        if (listener != null) {
+            listener.onThumbnailReady(task.position, thumbnail);
+        }
+    }
+
+    /**
+     * Cancels all pending requests.
+     */
+    private void cancelAll() {
+        for (Task task: pending.values()) {
+            task.future.cancel(false);
+        }
+
+        pending.clear();
+    }
+
+    /**
+     * Returns the file of the disk cache for the hash.
+     *
+     * @param hash The map hash.
+     */
+    private File getFile(long hash) {
+        return new File(directory, Long.toHexString(hash) + "_" + tile_size + ".png");
+    }
+
+    /**
+     * Loads a thumbnail from the disk cache.
+     *
+     * @param hash The map hash.
+     * @return The thumbnail or null, if there is no valid file.
+     */
+    private Bitmap load(long hash) {
+        if (directory == null) {
+            return null;
+        }
+
+        File file = getFile(hash);
+
+        if (!file.exists()) {
+            return null;
+        }
+
+        Bitmap result = BitmapFactory.decodeFile(file.getPath());
+
+        if (result != null) {
+            // Keeps the file from being trimmed soon.
+            file.setLastModified(System.currentTimeMillis());
+        }
+
+        return result;
+    }
+
+    /**
+     * Stores a thumbnail in the disk cache.
+     *
+     * The file is written by FileUtils.write(), so a partial file is never loaded.
+     *
+     * @param hash The map hash.
+     * @param thumbnail The thumbnail.
+     */
+    private void store(long hash, final Bitmap thumbnail) {
+        if (directory == null) {
+            return;
+        }
+
+        try {
+            FileUtils.write(getFile(hash), new FileUtils.Content() {
+                public void write(OutputStream out) throws IOException {
+                    if (!thumbnail.compress(Bitmap.CompressFormat.PNG, 100, out)) {
+                        throw new IOException("Could not compress the thumbnail");
+                    }
+                }
+            });
+        }
+        catch (IOException e) {
+            // The thumbnail is rendered again next time.
+        }
+    }
+}
@@ -0,0 +1,704 @@
+package org.easysok;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class analyzes the topology of a map: tunnels, articulation fields and goal rooms.
+ *
+ * From this it derives macro moves, which replace long chains of single pushes:
+ *
+ * - A gem pushed into a tunnel, with the keeper following inside the tunnel, is pushed
+ *   through the tunnel in one step.
+ * - A goal room is a region containing goals (and initially no gems or keeper), which
+ *   can only be entered through one articulation field. A gem arriving on the entrance is
+ *   pushed to the next goal of a precalculated fill order in one step.
+ *
+ * Pushes are encoded as gem_index * 4 + direction.
+ */
+public class Topology {
+
+    /**
+     * A region with goals and a single entrance.
+     */
+    public static class GoalRoom {
+
+        /**
+         * The entrance field.
+         */
+        private final int entrance;
+
+        /**
+         * The fields of the room (without the entrance).
+         */
+        private final int[] fields;
+
+        /**
+         * The goals of the room in the order they have to be filled.
+         */
+        private final int[] fill_order;
+
+        /**
+         * Creates a goal room.
+         */
+        GoalRoom(int entrance, int[] fields, int[] fill_order) {
+            this.entrance = entrance;
+            this.fields = fields;
+            this.fill_order = fill_order;
+        }
+
+        /**
+         * Returns the index of the entrance field.
+         */
+        public int getEntrance() {
+            return entrance;
+        }
+
+        /**
+         * Returns the indices of the fields of the room (without the entrance).
+         */
+        public int[] getFields() {
+            return fields;
+        }
+
+        /**
+         * Returns the indices of the goals in the order they have to be filled.
+         */
+        public int[] getFillOrder() {
+            return fill_order;
+        }
+    }
+
+    /**
+     * The map.
+     */
+    private Map map;
+
+    /**
+     * The number of fields.
+     */
+    private int size;
+
+    /**
+     * The offsets for the directions left, right, up and down.
+     */
+    private int[] offsets;
+
+    /**
+     * For each field, if it is a floor field (not wall or outside).
+     */
+    private boolean[] floor;
+
+    /**
+     * For each field, if it is an articulation field of the floor.
+     */
+    private boolean[] articulation;
+
+    /**
+     * For each field a bit mask of the directions (1 << direction) it is a tunnel in.
+     */
+    private int[] tunnels;
+
+    /**
+     * For each field the number of the goal room it belongs to or -1.
+     */
+    private int[] room_of_field;
+
+    /**
+     * For each field the number of the goal room it is the entrance of or -1.
+     */
+    private int[] room_of_entrance;
+
+    /**
+     * The goal rooms.
+     */
+    private List<GoalRoom> goal_rooms;
+
+    /**
+     * Analyzes the topology of the map.
+     *
+     * @param map The map, which must be valid.
+     */
+    public Topology(Map map) {
+        this.map = map;
+        this.size = map.getSize();
+        this.offsets = new int[4];
+        this.floor = new boolean[size];
+        this.tunnels = new int[size];
+        this.goal_rooms = new ArrayList<GoalRoom>();
+        this.room_of_field = new int[size];
+        this.room_of_entrance = new int[size];
+
+        Arrays.fill(room_of_field, -1);
+        Arrays.fill(room_of_entrance, -1);
+
+        for (int i = 0; i < 4; ++i) {
+            offsets[i] = map.getOffset(i);
+        }
+
+        for (int i = 0; i < size; ++i) {
+            floor[i] = !map.isWallOrOutside(i);
+        }
+
+        setupTunnels();
+        setupArticulations();
+        setupGoalRooms();
+    }
+
+    /**
+     * Returns <code>true</code> if the field is an articulation field, which means that
+     * a wall there would split the floor into several parts.
+     *
+     * @param index The index of the field.
+     */
+    public boolean isArticulation(int index) {
+        return articulation[index];
+    }
+
+    /**
+     * Returns <code>true</code> if the field is a tunnel in the given direction (walls on
+     * both sides perpendicular to the direction).
+     *
+     * @param index The index of the field.
+     * @param direction The direction.
+     */
+    public boolean isTunnel(int index, int direction) {
+        return (tunnels[index] & (1 << direction)) != 0;
+    }
+
+    /**
+     * Returns the number of goal rooms.
+     */
+    public int numberOfGoalRooms() {
+        return goal_rooms.size();
+    }
+
+    /**
+     * Returns the goal room with the given number.
+     *
+     * @param room The number of the room.
+     */
+    public GoalRoom getGoalRoom(int room) {
+        return goal_rooms.get(room);
+    }
+
+    /**
+     * Returns the number of the goal room the field is the entrance of or -1.
+     *
+     * @param index The index of the field.
+     */
+    public int getRoomOfEntrance(int index) {
+        return room_of_entrance[index];
+    }
+
+    /**
+     * Returns the number of the goal room the field belongs to or -1.
+     *
+     * @param index The index of the field.
+     */
+    public int getRoomOfField(int index) {
+        return room_of_field[index];
+    }
+
+    /**
+     * Returns the pushes of the tunnel macro after a gem was pushed.
+     *
+     * If the keeper stands in a tunnel behind the gem, which is in the same tunnel and
+     * not on a goal, the gem is pushed on until it leaves the tunnel, reaches a goal or
+     * is blocked.
+     *
+     * @param board The position after the push.
+     * @param gem_index The position of the pushed gem.
+     * @param direction The direction of the push.
+     * @return The additional pushes (may be empty).
+     */
+    public int[] tunnelMacro(BitBoard board, int gem_index, int direction) {
+        int offset = offsets[direction];
+        int count = 0;
+        int index = gem_index;
+
+        while (isTunnel(index, direction) && isTunnel(index - offset, direction) &&
+               !board.isGoal(index) && board.isFree(index + offset) && !board.isDead(index + offset) &&
+               (room_of_entrance[index] == -1)) {
+            ++count;
+            index += offset;
+        }
+
+        int[] result = new int[count];
+
+        for (int i = 0; i < count; ++i) {
+            result[i] = (gem_index + i * offset) * 4 + direction;
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the pushes of the goal room macro for a gem on the entrance of a goal room.
+     *
+     * The gem is pushed to the first goal of the fill order, which does not contain a gem.
+     * The macro is only used, if the goals before it are all filled.
+     *
+     * @param board The position, the keeper must be next to the gem.
+     * @param gem_index The position of the gem on the entrance.
+     * @return The pushes or null, if the macro can not be used.
+     */
+    public int[] goalRoomMacro(BitBoard board, int gem_index) {
+        int room_number = room_of_entrance[gem_index];
+
+        if (room_number == -1) {
+            return null;
+        }
+
+        GoalRoom room = goal_rooms.get(room_number);
+        int[] fill_order = room.getFillOrder();
+        int next = 0;
+
+        while ((next < fill_order.length) && board.isGem(fill_order[next])) {
+            ++next;
+        }
+
+        if (next == fill_order.length) {
+            return null;
+        }
+
+        for (int i = next + 1; i < fill_order.length; ++i) {
+            if (board.isGem(fill_order[i])) {
+                return null;
+            }
+        }
+
+        return pushPath(board, gem_index, fill_order[next], room_number);
+    }
+
+    /**
+     * Finds the shortest push path of one gem inside a goal room.
+     *
+     * @param board The position.
+     * @param from The position of the gem.
+     * @param to The target of the gem.
+     * @param room_number The goal room, the gem may only move inside it.
+     * @return The pushes or null, if there is no path.
+     */
+    private int[] pushPath(BitBoard board, int from, int to, int room_number) {
+        // A state is gem_index * 4 + direction, the keeper stands at gem_index - offset[direction]
+        // and can push in direction.
+        int states = size * 4;
+        int[] previous = new int[states];
+        int[] queue = new int[states];
+        int queue_end = 0;
+        BitBoard act_board = board.copy();
+
+        Arrays.fill(previous, -2);
+
+        for (int direction = 0; direction < 4; ++direction) {
+            if (act_board.isReachable(from - offsets[direction])) {
+                int state = from * 4 + direction;
+                previous[state] = -1;
+                queue[queue_end++] = state;
+            }
+        }
+
+        int gem_index = from;
+        int found = -1;
+
+        for (int queue_start = 0; (queue_start < queue_end) && (found == -1); ++queue_start) {
+            int state = queue[queue_start];
+            int index = state >> 2;
+            int target = index + offsets[state & 3];
+
+            if (!isFloor(target) || (room_of_field[target] != room_number)) {
+                continue;
+            }
+
+            // Restore the position of this state, the board still holds the one of the
+            // previous state.
+            if (gem_index != index) {
+                act_board.moveGem(gem_index, index);
+                gem_index = index;
+            }
+
+            act_board.setKeeper(index - offsets[state & 3]);
+
+            if (!act_board.isFree(target)) {
+                continue;
+            }
+
+            act_board.moveGem(gem_index, target);
+            act_board.setKeeper(index);
+            gem_index = target;
+
+            for (int direction = 0; direction < 4; ++direction) {
+                int next_state = target * 4 + direction;
+
+                if ((previous[next_state] == -2) && act_board.isReachable(target - offsets[direction])) {
+                    previous[next_state] = state;
+                    queue[queue_end++] = next_state;
+
+                    if (target == to) {
+                        found = next_state;
+
+                        break;
+                    }
+                }
+            }
+        }
+
+        if (found == -1) {
+            return null;
+        }
+
+        int length = 0;
+
+        for (int state = previous[found]; state != -1; state = previous[state]) {
+            ++length;
+        }
+
+        int[] result = new int[length];
+
+        for (int state = previous[found]; state != -1; state = previous[state]) {
+            result[--length] = state;
+        }
+
+        return result;
+    }
+
+    /**
+     * Sets up the tunnel masks.
+     */
+    private void setupTunnels() {
+        for (int i = 0; i < size; ++i) {
+            if (!floor[i]) {
+                continue;
+            }
+
+            boolean walls_horizontal = !isFloor(i + offsets[0]) && !isFloor(i + offsets[1]);
+            boolean walls_vertical = !isFloor(i + offsets[2]) && !isFloor(i + offsets[3]);
+
+            if (walls_vertical && !walls_horizontal) {
+                tunnels[i] |= 3;
+            }
+
+            if (walls_horizontal && !walls_vertical) {
+                tunnels[i] |= 12;
+            }
+        }
+    }
+
+    /**
+     * Finds the articulation fields with an iterative version of Tarjan's algorithm.
+     */
+    private void setupArticulations() {
+        articulation = new boolean[size];
+
+        int[] discovery = new int[size];
+        int[] low = new int[size];
+        int[] parent = new int[size];
+        int[] next_direction = new int[size];
+        int[] stack = new int[size];
+        int time = 0;
+
+        for (int root = 0; root < size; ++root) {
+            if (!floor[root] || (discovery[root] != 0)) {
+                continue;
+            }
+
+            int stack_size = 0;
+            int root_children = 0;
+
+            discovery[root] = low[root] = ++time;
+            parent[root] = -1;
+            stack[stack_size++] = root;
+
+            while (stack_size > 0) {
+                int index = stack[stack_size - 1];
+
+                if (next_direction[index] < 4) {
+                    int neighbour = index + offsets[next_direction[index]++];
+
+                    if (!isFloor(neighbour)) {
+                        continue;
+                    }
+
+                    if (discovery[neighbour] == 0) {
+                        parent[neighbour] = index;
+                        discovery[neighbour] = low[neighbour] = ++time;
+                        stack[stack_size++] = neighbour;
+
+                        if (index == root) {
+                            ++root_children;
+                        }
+                    }
+                    else if (neighbour != parent[index]) {
+                        low[index] = Math.min(low[index], discovery[neighbour]);
+                    }
+                }
+                else {
+                    --stack_size;
+                    int parent_index = parent[index];
+
+                    if (parent_index != -1) {
+                        low[parent_index] = Math.min(low[parent_index], low[index]);
+
+                        if ((parent_index != root) && (low[index] >= discovery[parent_index])) {
+                            articulation[parent_index] = true;
+                        }
+                    }
+                }
+            }
+
+            articulation[root] = root_children > 1;
+        }
+    }
+
+    /**
+     * Finds the goal rooms and their fill orders.
+     */
+    private void setupGoalRooms() {
+        int keeper = map.getKeeperIndex();
+        int[] component = new int[size];
+        int[] queue = new int[size];
+        int mark = 0;
+
+        for (int entrance = 0; entrance < size; ++entrance) {
+            if (!articulation[entrance] || map.containsGoal(entrance) || map.containsGem(entrance)) {
+                continue;
+            }
+
+            int first_mark = mark + 1;
+
+            for (int direction = 0; direction < 4; ++direction) {
+                int start = entrance + offsets[direction];
+
+                // Skip parts already visited from another side of the entrance.
+                if (!isFloor(start) || (room_of_field[start] != -1) || (component[start] >= first_mark)) {
+                    continue;
+                }
+
+                // The part of the floor behind the entrance in this direction.
+                int fields = 0;
+                int goals = 0;
+                boolean usable = true;
+                queue[fields++] = start;
+                component[start] = ++mark;
+
+                for (int queue_start = 0; queue_start < fields; ++queue_start) {
+                    int index = queue[queue_start];
+
+                    if (map.containsGem(index) || (index == keeper) || (room_of_field[index] != -1)) {
+                        usable = false;
+                    }
+
+                    if (map.containsGoal(index)) {
+                        ++goals;
+                    }
+
+                    for (int i = 0; i < 4; ++i) {
+                        int neighbour = index + offsets[i];
+
+                        if (isFloor(neighbour) && (neighbour != entrance) && (component[neighbour] != mark)) {
+                            component[neighbour] = mark;
+                            queue[fields++] = neighbour;
+                        }
+                    }
+                }
+
+                if (!usable || (goals == 0)) {
+                    continue;
+                }
+
+                int[] room_fields = Arrays.copyOf(queue, fields);
+                int[] fill_order = createFillOrder(entrance, room_fields, goals);
+
+                if (fill_order == null) {
+                    continue;
+                }
+
+                int room_number = goal_rooms.size();
+                goal_rooms.add(new GoalRoom(entrance, room_fields, fill_order));
+                room_of_entrance[entrance] = room_number;
+
+                for (int index: room_fields) {
+                    room_of_field[index] = room_number;
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates the order in which the goals of a room can be filled.
+     *
+     * The goals are filled from the farthest to the nearest. A goal is only chosen, if a
+     * gem can be pushed to it from the entrance by a keeper coming from outside and all
+     * other empty goals stay reachable for the keeper, while the filled goals act as walls.
+     *
+     * @param entrance The entrance of the room.
+     * @param room_fields The fields of the room.
+     * @param goals The number of goals in the room.
+     * @return The fill order or null, if none was found.
+     */
+    private int[] createFillOrder(int entrance, int[] room_fields, int goals) {
+        boolean[] blocked = new boolean[size];
+        boolean[] in_room = new boolean[size];
+        int[] result = new int[goals];
+
+        for (int index: room_fields) {
+            in_room[index] = true;
+        }
+
+        for (int filled = 0; filled < goals; ++filled) {
+            int[] distances = pushDistances(entrance, in_room, blocked);
+            int best_goal = -1;
+
+            for (int index: room_fields) {
+                if (!map.containsGoal(index) || blocked[index] || (distances[index] < 0)) {
+                    continue;
+                }
+
+                if ((best_goal != -1) && (distances[index] <= distances[best_goal])) {
+                    continue;
+                }
+
+                blocked[index] = true;
+
+                if (allGoalsReachable(entrance, room_fields, blocked)) {
+                    best_goal = index;
+                }
+
+                blocked[index] = false;
+            }
+
+            if (best_goal == -1) {
+                return null;
+            }
+
+            blocked[best_goal] = true;
+            result[filled] = best_goal;
+        }
+
+        return result;
+    }
+
+    /**
+     * Calculates for each field of the room the number of pushes to bring a gem there
+     * from the entrance, with the keeper coming from outside and the blocked fields
+     * acting as walls.
+     *
+     * @param entrance The entrance of the room.
+     * @param in_room For each field, if it belongs to the room.
+     * @param blocked The blocked fields.
+     * @return The distances, -1 for unreachable fields.
+     */
+    private int[] pushDistances(int entrance, boolean[] in_room, boolean[] blocked) {
+        // A state is gem_index * 4 + direction, the keeper can push in direction.
+        int[] distances = new int[size];
+        boolean[] visited = new boolean[size * 4];
+        int[] queue = new int[size * 4];
+        int queue_end = 0;
+        boolean[] reached = new boolean[size];
+        int[] keeper_queue = new int[size];
+
+        Arrays.fill(distances, -1);
+        distances[entrance] = 0;
+
+        for (int direction = 0; direction < 4; ++direction) {
+            int keeper_index = entrance - offsets[direction];
+
+            if (isOpen(keeper_index, blocked) && !in_room[keeper_index]) {
+                visited[entrance * 4 + direction] = true;
+                queue[queue_end++] = entrance * 4 + direction;
+            }
+        }
+
+        for (int queue_start = 0; queue_start < queue_end; ++queue_start) {
+            int index = queue[queue_start] >> 2;
+            int target = index + offsets[queue[queue_start] & 3];
+
+            if (!in_room[target] || !isOpen(target, blocked)) {
+                continue;
+            }
+
+            if (distances[target] == -1) {
+                distances[target] = distances[index] + 1;
+            }
+
+            // The fields the keeper reaches after the push.
+            int keeper_queue_end = 0;
+            Arrays.fill(reached, false);
+            reached[index] = true;
+            keeper_queue[keeper_queue_end++] = index;
+
+            for (int keeper_start = 0; keeper_start < keeper_queue_end; ++keeper_start) {
+                for (int direction = 0; direction < 4; ++direction) {
+                    int neighbour = keeper_queue[keeper_start] + offsets[direction];
+
+                    if ((neighbour != target) && isOpen(neighbour, blocked) && !reached[neighbour]) {
+                        reached[neighbour] = true;
+                        keeper_queue[keeper_queue_end++] = neighbour;
+                    }
+                }
+            }
+
+            for (int direction = 0; direction < 4; ++direction) {
+                int state = target * 4 + direction;
+                int keeper_index = target - offsets[direction];
+
+                if (!visited[state] && isFloor(keeper_index) && reached[keeper_index]) {
+                    visited[state] = true;
+                    queue[queue_end++] = state;
+                }
+            }
+        }
+
+        return distances;
+    }
+
+    /**
+     * Returns <code>true</code> if all empty goals of the room can be reached from the
+     * entrance.
+     */
+    private boolean allGoalsReachable(int entrance, int[] room_fields, boolean[] blocked) {
+        boolean[] reached = new boolean[size];
+        int[] queue = new int[size];
+        int queue_end = 0;
+
+        reached[entrance] = true;
+        queue[queue_end++] = entrance;
+
+        for (int queue_start = 0; queue_start < queue_end; ++queue_start) {
+            int index = queue[queue_start];
+
+            for (int direction = 0; direction < 4; ++direction) {
+                int neighbour = index + offsets[direction];
+
+                if (isOpen(neighbour, blocked) && !reached[neighbour]) {
+                    reached[neighbour] = true;
+                    queue[queue_end++] = neighbour;
+                }
+            }
+        }
+
+        for (int index: room_fields) {
+            if (map.containsGoal(index) && !blocked[index] && !reached[index]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns <code>true</code> if the field is floor and not blocked.
+     */
+    private boolean isOpen(int index, boolean[] blocked) {
+        return isFloor(index) && !blocked[index];
+    }
+
+    /**
+     * Returns <code>true</code> if the index is valid and the field is floor.
+     */
+    private boolean isFloor(int index) {
+        return map.isValidIndex(index) && floor[index];
+    }
+}